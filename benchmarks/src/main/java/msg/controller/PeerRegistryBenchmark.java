@@ -0,0 +1,62 @@
+package msg.controller;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The peer list bookkeeping with N peers, which replaced {@code Controller.getDisplayPeers}:
+ * refreshing every peer, renaming one and resolving a selected row back to its IP address.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PeerRegistryBenchmark {
+	private static final String MY_IP = "10.0.0.1";
+
+	@Param({ "10", "100", "1000" })
+	int peers;
+
+	private PeerRegistry registry;
+	private String[] ips;
+	private String[] names;
+	private String[] displays;
+	private int next;
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		registry = new PeerRegistry(MY_IP, (ip, display) -> blackhole.consume(display));
+		ips = new String[peers];
+		names = new String[peers];
+		displays = new String[peers];
+		for (int i = 0; i < peers; i++) {
+			ips[i] = "10.0." + (i / 250 + 1) + "." + (i % 250 + 2);
+			names[i] = i % 2 == 0 ? "Peer " + i : null;
+			displays[i] = registry.put(ips[i], names[i]);
+		}
+	}
+
+	@Benchmark
+	public void refreshAll() {
+		// What a full rebuild of the list costs now: every peer put again, nothing changed
+		for (int i = 0; i < peers; i++) {
+			registry.put(ips[i], names[i]);
+		}
+	}
+
+	@Benchmark
+	public String renameOne() {
+		int i = next++ % peers;
+		String ip = ips[i];
+		registry.put(ip, "Rinominato " + i);
+		return registry.put(ip, names[i]);
+	}
+
+	@Benchmark
+	public String resolveSelection() {
+		return registry.ipOf(displays[next++ % peers]);
+	}
+}
@@ -0,0 +1,391 @@
+package msg.load;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.crypto.KeyGenerator;
+import msg.model.CryptoEngine;
+import msg.net.Frame;
+import msg.net.NetworkService;
+import msg.util.Histogram;
+import msg.util.LoggerUtil;
+import msg.util.Metrics;
+
+/**
+ * Headless load test: starts N peers in one JVM, each with its own
+ * {@link NetworkService} on its own loopback address, and drives message, image
+ * and churn workloads between them. Throughput, latency percentiles, thread count
+ * and heap use are printed every second and summarized at the end.
+ * <p>
+ * Options are given as {@code --name=value}; run with {@code --help} to list them.
+ * Each peer needs its own address: Linux routes all of 127.0.0.0/8 to the loopback
+ * interface, other systems need the addresses added as loopback aliases first.
+ */
+public final class LoadTest {
+    private static final Map<String, String> OPTIONS = new HashMap<>();
+
+    static {
+        OPTIONS.put("peers", "20");
+        OPTIONS.put("transport", "socket");
+        OPTIONS.put("nio-threads", "2");
+        OPTIONS.put("wire", "binary");
+        OPTIONS.put("base", "127.0.1.1");
+        OPTIONS.put("port", "19000");
+        OPTIONS.put("contacts", "8");
+        OPTIONS.put("senders", "4");
+        OPTIONS.put("rate", "1000");
+        OPTIONS.put("text-bytes", "100");
+        OPTIONS.put("image-ratio", "0.02");
+        OPTIONS.put("image-kb", "200");
+        OPTIONS.put("churn-ms", "0");
+        OPTIONS.put("downtime-ms", "2000");
+        OPTIONS.put("duration", "30");
+        OPTIONS.put("warmup", "5");
+        OPTIONS.put("log-level", "WARNING");
+    }
+
+    private static final String HELP = String.join("\n",
+            "Usage: java -cp benchmarks.jar msg.load.LoadTest [--name=value ...]",
+            "  --peers        number of simulated peers",
+            "  --transport    socket or nio",
+            "  --nio-threads  event-loop threads per peer with --transport=nio",
+            "  --wire         binary, auto or text (text sends no images)",
+            "  --base         address of the first peer, the others follow it",
+            "  --port         port every peer listens on, on its own address",
+            "  --contacts     peers each peer connects and sends to",
+            "  --senders      threads generating messages",
+            "  --rate         messages per second over all peers, 0 for as fast as possible",
+            "  --text-bytes   size of a text message",
+            "  --image-ratio  fraction of messages that are images",
+            "  --image-kb     size of an image",
+            "  --churn-ms     interval between peers leaving the network, 0 for no churn",
+            "  --downtime-ms  how long a peer that left stays away",
+            "  --duration     seconds measured, after the warmup",
+            "  --warmup       seconds run before measuring",
+            "  --log-level    level of logs/secretMessenger.log");
+
+    final int port;
+    final int selectorThreads;
+    final NetworkService.WireFormat wireFormat;
+    final CryptoEngine crypto;
+    final Stats stats = new Stats();
+
+    private final List<SimulatedPeer> peers = new ArrayList<>();
+    private final int senders;
+    private final long rate;
+    private final int textBytes;
+    private final double imageRatio;
+    private final int imageBytes;
+    private final long churnMs;
+    private final long downtimeMs;
+    private final int duration;
+    private final int warmup;
+    private final ScheduledExecutorService churn = Executors.newSingleThreadScheduledExecutor();
+    private volatile boolean running = true;
+
+    private LoadTest(Map<String, String> options) throws Exception {
+        port = Integer.parseInt(options.get("port"));
+        selectorThreads = options.get("transport").equalsIgnoreCase("nio")
+                ? Math.max(1, Integer.parseInt(options.get("nio-threads"))) : 0;
+        wireFormat = NetworkService.WireFormat.valueOf(options.get("wire").toUpperCase(Locale.ROOT));
+        senders = Math.max(1, Integer.parseInt(options.get("senders")));
+        rate = Long.parseLong(options.get("rate"));
+        textBytes = Math.max(Long.BYTES, Integer.parseInt(options.get("text-bytes")));
+        imageRatio = wireFormat == NetworkService.WireFormat.TEXT ? 0 : Double.parseDouble(options.get("image-ratio"));
+        imageBytes = Math.max(Long.BYTES, Integer.parseInt(options.get("image-kb")) * 1024);
+        churnMs = Long.parseLong(options.get("churn-ms"));
+        downtimeMs = Long.parseLong(options.get("downtime-ms"));
+        duration = Integer.parseInt(options.get("duration"));
+        warmup = Integer.parseInt(options.get("warmup"));
+
+        // All peers share the key, as they would share the password; deriving it is not what is measured
+        KeyGenerator keys = KeyGenerator.getInstance("AES");
+        keys.init(128);
+        crypto = new CryptoEngine(keys.generateKey());
+
+        int count = Integer.parseInt(options.get("peers"));
+        byte[] base = InetAddress.getByName(options.get("base")).getAddress();
+        int first = ByteBuffer.wrap(base).getInt();
+        for (int i = 0; i < count; i++) {
+            InetAddress address = InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(first + i).array());
+            checkAddress(address);
+            peers.add(new SimulatedPeer(this, address));
+        }
+        int contacts = Math.min(Integer.parseInt(options.get("contacts")), count - 1);
+        for (int i = 0; i < count; i++) {
+            // The next peers around the ring: every peer is reached by as many as it reaches
+            for (int c = 1; c <= contacts; c++) {
+                peers.get(i).getContacts().add(peers.get((i + c) % count));
+            }
+        }
+    }
+
+    private void checkAddress(InetAddress address) throws Exception {
+        try {
+            new ServerSocket(port, 1, address).close(); // bound, so the peer can use it
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot listen on " + address.getHostAddress() + ":" + port
+                    + ", add it as a loopback alias or choose another --base or --port", e);
+        }
+    }
+
+    /**
+     * Runs the load test.
+     * @param args Options as {@code --name=value}.
+     * @throws Exception if the test cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(OPTIONS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = arg.startsWith("--") && eq > 2 ? arg.substring(2, eq) : null;
+            if (name == null || !OPTIONS.containsKey(name)) {
+                System.out.println(arg.equals("--help") ? HELP : "Unknown option " + arg + "\n" + HELP);
+                return;
+            }
+            options.put(name, arg.substring(eq + 1));
+        }
+        LoggerUtil.configure(options.get("log-level"), false);
+        new LoadTest(options).run(options);
+    }
+
+    private void run(Map<String, String> options) throws Exception {
+        System.out.println("Load test " + new TreeMap<>(options));
+        long setup = System.nanoTime();
+        peers.forEach(SimulatedPeer::start);
+        // Stands in for PeerDiscoveryService, which cannot tell peers on the same host apart
+        for (SimulatedPeer peer : peers) {
+            for (SimulatedPeer other : peers) {
+                if (other != peer) {
+                    peer.learn(other);
+                }
+            }
+        }
+        ExecutorService connector = Executors.newFixedThreadPool(8);
+        peers.forEach(peer -> connector.execute(peer::connectContacts));
+        connector.shutdown();
+        connector.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.printf(Locale.ROOT, "%d peers connected in %d ms%n", peers.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setup));
+
+        List<Thread> generators = new ArrayList<>();
+        for (int i = 0; i < senders; i++) {
+            Thread t = new Thread(this::generate, "LoadSender-" + i);
+            t.setDaemon(true);
+            t.start();
+            generators.add(t);
+        }
+        if (churnMs > 0) {
+            churn.scheduleWithFixedDelay(this::churn, churnMs, churnMs, TimeUnit.MILLISECONDS);
+        }
+
+        Report total = new Report();
+        stats.interval(); // drop what was counted while connecting
+        for (int second = 1; second <= warmup + duration; second++) {
+            Thread.sleep(1000);
+            Report interval = stats.interval();
+            boolean warming = second <= warmup;
+            System.out.println(interval.format((warming ? "warmup " : "") + second + "s", 1, upCount()));
+            if (!warming) {
+                total.add(interval);
+            }
+        }
+
+        running = false;
+        churn.shutdownNow();
+        for (Thread t : generators) {
+            t.join(2000);
+        }
+        Thread.sleep(500); // let messages in flight arrive
+        int up = upCount();
+        peers.stream().filter(SimulatedPeer::isUp).forEach(SimulatedPeer::stop);
+        if (duration > 0) {
+            System.out.println();
+            System.out.println(total.format("total", duration, up));
+            System.out.printf(Locale.ROOT, "peak threads %d, peak heap %d MB%n", total.peakThreads,
+                    total.peakHeap >> 20);
+        }
+        System.out.println();
+        Metrics.snapshot().forEach((name, value) -> System.out.println(name + "=" + value));
+        LoggerUtil.flush();
+    }
+
+    private void generate() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] text = new byte[textBytes];
+        byte[] image = new byte[imageBytes];
+        random.nextBytes(text);
+        random.nextBytes(image);
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * senders / rate : 0;
+        long next = System.nanoTime();
+        while (running) {
+            if (interval > 0) {
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            SimulatedPeer from = peers.get(random.nextInt(peers.size()));
+            List<SimulatedPeer> contacts = from.getContacts();
+            if (!from.isUp() || contacts.isEmpty()) {
+                continue;
+            }
+            SimulatedPeer to = contacts.get(random.nextInt(contacts.size()));
+            boolean isImage = random.nextDouble() < imageRatio;
+            byte[] plain = isImage ? image : text;
+            // With a fixed rate latency counts from the scheduled time, so a stalled sender is not hidden
+            ByteBuffer.wrap(plain).putLong(0, interval > 0 ? next : System.nanoTime());
+            if (from.send(to, isImage ? Frame.TYPE_IMAGE : Frame.TYPE_TEXT, plain)) {
+                stats.sent(plain.length);
+            } else {
+                stats.failed.increment();
+            }
+        }
+    }
+
+    // Runs on the churn thread: one peer leaves, and comes back after the downtime
+    private void churn() {
+        List<SimulatedPeer> up = new ArrayList<>();
+        peers.stream().filter(SimulatedPeer::isUp).forEach(up::add);
+        if (up.size() <= 2) {
+            return;
+        }
+        SimulatedPeer leaving = up.get(ThreadLocalRandom.current().nextInt(up.size()));
+        leaving.stop();
+        stats.churned.increment();
+        for (SimulatedPeer peer : up) {
+            if (peer != leaving) {
+                peer.onPeerLost(leaving.getIp());
+            }
+        }
+        churn.schedule(() -> {
+            leaving.start();
+            for (SimulatedPeer peer : peers) {
+                if (peer != leaving && peer.isUp()) {
+                    leaving.learn(peer);
+                    peer.onPeerDiscovered(leaving.getIp(), leaving.getAnnouncement());
+                }
+            }
+            leaving.connectContacts();
+        }, downtimeMs, TimeUnit.MILLISECONDS);
+    }
+
+    private int upCount() {
+        return (int) peers.stream().filter(SimulatedPeer::isUp).count();
+    }
+
+    /**
+     * Counters updated by the senders and the receiving peers.
+     */
+    static final class Stats {
+        final LongAdder sent = new LongAdder();
+        final LongAdder sentBytes = new LongAdder();
+        final LongAdder received = new LongAdder();
+        final LongAdder receivedBytes = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder decryptFailed = new LongAdder();
+        final LongAdder churned = new LongAdder();
+        private volatile Histogram latency = new Histogram();
+        private long[] last = new long[7]; // totals at the previous interval, reporting thread only
+
+        void sent(int bytes) {
+            sent.increment();
+            sentBytes.add(bytes);
+        }
+
+        void received(int bytes, long latencyNanos) {
+            received.increment();
+            receivedBytes.add(bytes);
+            latency.record(latencyNanos);
+        }
+
+        void decryptFailed() {
+            decryptFailed.increment();
+        }
+
+        /**
+         * Takes the counts since the previous call and starts a new interval.
+         * @return The numbers of the interval that ended.
+         */
+        Report interval() {
+            Histogram ended = latency;
+            latency = new Histogram();
+            long[] now = { sent.sum(), sentBytes.sum(), received.sum(), receivedBytes.sum(), failed.sum(),
+                    decryptFailed.sum(), churned.sum() };
+            long[] delta = new long[now.length];
+            for (int i = 0; i < now.length; i++) {
+                delta[i] = now[i] - last[i];
+            }
+            last = now;
+            return new Report(delta, ended);
+        }
+    }
+
+    /**
+     * The numbers of one interval, or the sum of several.
+     */
+    static final class Report {
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+        private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+        private final long[] counts; // as in Stats.interval
+        private final Histogram latency;
+        private int threads;
+        private long heap;
+        private int peakThreads;
+        private long peakHeap;
+
+        Report() {
+            this(new long[7], new Histogram());
+        }
+
+        Report(long[] counts, Histogram latency) {
+            this.counts = counts;
+            this.latency = latency;
+            threads = peakThreads = THREADS.getThreadCount();
+            heap = peakHeap = MEMORY.getHeapMemoryUsage().getUsed();
+        }
+
+        void add(Report interval) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += interval.counts[i];
+            }
+            latency.add(interval.latency);
+            threads = interval.threads;
+            heap = interval.heap;
+            peakThreads = Math.max(peakThreads, interval.peakThreads);
+            peakHeap = Math.max(peakHeap, interval.peakHeap);
+        }
+
+        String format(String label, int seconds, int up) {
+            return String.format(Locale.ROOT,
+                    "%-10s sent %8.0f/s  recv %8.0f/s %7.1f MB/s  latency p50 %s p90 %s p99 %s max %s"
+                            + "  failed %d  churn %d  up %d  threads %d  heap %d MB",
+                    label, (double) counts[0] / seconds, (double) counts[2] / seconds,
+                    counts[3] / (1024.0 * 1024) / seconds, micros(latency.percentile(50)),
+                    micros(latency.percentile(90)), micros(latency.percentile(99)), micros(latency.max()),
+                    counts[4] + counts[5], counts[6], up, threads, heap >> 20);
+        }
+
+        private static String micros(long nanos) {
+            return nanos >= 10_000_000 ? (nanos / 1_000_000) + "ms" : (nanos / 1000) + "us";
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package msg.load;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import msg.net.Announcement;
+import msg.net.Frame;
+import msg.net.NetworkService;
+import msg.net.PeerDiscoveryService;
+
+/**
+ * One peer of the load test: a {@link NetworkService} bound to its own loopback
+ * address, with stub listeners in place of the controller. Received messages are
+ * decrypted and their latency recorded; discovery events come from the harness.
+ */
+final class SimulatedPeer implements NetworkService.MessageListener, PeerDiscoveryService.DiscoveryListener {
+    private final LoadTest test;
+    private final InetAddress address;
+    private final String ip;
+    private final List<SimulatedPeer> contacts = new ArrayList<>();
+    private volatile NetworkService network;
+    private volatile Announcement announcement;
+    private volatile boolean up;
+
+    SimulatedPeer(LoadTest test, InetAddress address) {
+        this.test = test;
+        this.address = address;
+        this.ip = address.getHostAddress();
+    }
+
+    String getIp() {
+        return ip;
+    }
+
+    boolean isUp() {
+        return up;
+    }
+
+    Announcement getAnnouncement() {
+        return announcement;
+    }
+
+    List<SimulatedPeer> getContacts() {
+        return contacts;
+    }
+
+    /**
+     * Starts a fresh network service, as a restarted instance would.
+     */
+    void start() {
+        NetworkService service = new NetworkService(address, test.port, this, test.selectorThreads);
+        service.setWireFormat(test.wireFormat);
+        service.start();
+        announcement = service.createAnnouncement("peer-" + ip);
+        network = service;
+        up = true;
+    }
+
+    /**
+     * Stops the network service, closing every connection.
+     */
+    void stop() {
+        up = false;
+        network.stop();
+    }
+
+    /**
+     * Connects to every contact that is up.
+     */
+    void connectContacts() {
+        for (SimulatedPeer contact : contacts) {
+            if (contact.up) {
+                connect(contact.ip);
+            }
+        }
+    }
+
+    private void connect(String to) {
+        // A freshly started peer may still be binding its listening socket
+        network.connectToPeerWithRetry(to, 5, 100);
+    }
+
+    /**
+     * Encrypts and sends one message.
+     * @param to The receiving peer.
+     * @param type {@link Frame#TYPE_TEXT} or {@link Frame#TYPE_IMAGE}.
+     * @param plain The message, starting with its send time from {@link System#nanoTime()}.
+     * @return False if the message could not be sent.
+     */
+    boolean send(SimulatedPeer to, byte type, byte[] plain) {
+        try {
+            byte[] payload = test.crypto.encrypt(plain);
+            return network.sendMessage(to.ip, new Frame(type, Frame.FLAG_GCM, payload));
+        } catch (IOException e) {
+            return false; // not connected, e.g. during churn
+        } catch (Exception e) {
+            throw new IllegalStateException("Encryption failed", e);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(String senderIp, Frame frame) {
+        byte[] plain;
+        try {
+            plain = test.crypto.decrypt(frame.getPayload());
+        } catch (Exception e) {
+            test.stats.decryptFailed();
+            return;
+        }
+        long sentAt = ByteBuffer.wrap(plain).getLong();
+        test.stats.received(frame.getPayload().length, System.nanoTime() - sentAt);
+    }
+
+    @Override
+    public void onConnectionEvent(String ip, boolean connected, String message, Object... args) {
+    }
+
+    @Override
+    public void onPeerStatusChange(String ip, boolean online) {
+    }
+
+    /**
+     * Records the announcement of another peer without connecting to it.
+     * @param other The other peer, which must be up.
+     */
+    void learn(SimulatedPeer other) {
+        network.onPeerAnnounced(other.ip, other.announcement);
+    }
+
+    @Override
+    public void onPeerDiscovered(String peerIp, Announcement info) {
+        network.onPeerAnnounced(peerIp, info);
+        for (SimulatedPeer contact : contacts) {
+            if (contact.ip.equals(peerIp)) {
+                connect(peerIp);
+            }
+        }
+    }
+
+    @Override
+    public void onPeerLost(String peerIp) {
+        network.removePeer(peerIp);
+    }
+}
@@ -0,0 +1,77 @@
+package msg.model;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@link Model#addMessage} for text messages and images. The store is the one
+ * selected by config/config.properties in the working directory: in memory by
+ * default, the encrypted chat log with HISTORY=true.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class ChatBenchmark {
+    private static final String PEER = "192.168.1.2";
+    // The chat is dropped every so often so the heap does not grow with the iteration length
+    private static final int CHAT_LIMIT = 10_000;
+
+    private Model model;
+    private byte[] jpeg;
+    private BufferedImage image;
+    private int appended;
+
+    @Setup
+    public void setup() throws Exception {
+        model = new Model();
+        model.getCrypto();
+        image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x * 31) ^ (y * 17));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        jpeg = out.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        model.removePeer(PEER);
+        model.close();
+    }
+
+    @Benchmark
+    public void addText() {
+        model.addMessage(PEER, "Tu: messaggio di prova");
+        trim();
+    }
+
+    @Benchmark
+    public void addImageBytes() {
+        // As received: only the compressed bytes, decoded when displayed
+        model.addMessage(PEER, "Tu: ", jpeg);
+        trim();
+    }
+
+    @Benchmark
+    public void addDecodedImage() {
+        // As sent: the decoded image also goes to the image cache
+        model.addImage(PEER, "Tu: ", image, jpeg);
+        trim();
+    }
+
+    private void trim() {
+        if (++appended == CHAT_LIMIT) {
+            model.removePeer(PEER);
+            appended = 0;
+        }
+    }
+}
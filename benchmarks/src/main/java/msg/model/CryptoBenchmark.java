@@ -0,0 +1,59 @@
+package msg.model;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@link Model#encrypt(byte[], boolean)} and {@link Model#decryptBytes(byte[], boolean)}
+ * across message sizes, for both the AES-GCM and the legacy ECB format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CryptoBenchmark {
+    @Param({ "64", "1024", "65536", "1048576" })
+    int size;
+
+    @Param({ "true", "false" })
+    boolean gcm;
+
+    private Model model;
+    private byte[] plain;
+    private byte[] encrypted;
+    private String text;
+
+    @Setup
+    public void setup() throws Exception {
+        model = new Model();
+        model.getCrypto(); // wait for the key derivation
+        plain = new byte[size];
+        new Random(42).nextBytes(plain);
+        encrypted = model.encrypt(plain, gcm);
+        text = "a".repeat(size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        model.close();
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return model.encrypt(plain, gcm);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Exception {
+        return model.decryptBytes(encrypted, gcm);
+    }
+
+    @Benchmark
+    public String roundTripText() throws Exception {
+        // The path of a chat message: String to bytes, encrypt, decrypt, bytes to String
+        return model.decrypt(model.encrypt(text, gcm), gcm);
+    }
+}
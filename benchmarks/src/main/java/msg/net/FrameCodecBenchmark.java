@@ -0,0 +1,61 @@
+package msg.net;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of image-sized payloads: as Base64 text lines, the format
+ * of older peers, and as binary frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+    @Param({ "16384", "262144", "2097152" })
+    int size;
+
+    private Frame frame;
+    private byte[] line;
+    private byte[] binary;
+    private FrameCodec codec;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        byte[] payload = new byte[size];
+        new Random(42).nextBytes(payload);
+        frame = new Frame(Frame.TYPE_IMAGE, 0, payload);
+        line = toArray(FrameCodec.line(frame));
+        ByteBuffer header = FrameCodec.header(frame);
+        binary = new byte[header.remaining() + size];
+        header.get(binary, 0, Frame.HEADER_SIZE);
+        System.arraycopy(payload, 0, binary, Frame.HEADER_SIZE, size);
+        codec = new FrameCodec("127.0.0.1", blackhole::consume);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeLine() {
+        return FrameCodec.line(frame);
+    }
+
+    @Benchmark
+    public void decodeLine() throws Exception {
+        codec.feed(line, 0, line.length);
+    }
+
+    @Benchmark
+    public void decodeBinary() throws Exception {
+        codec.feed(binary, 0, binary.length);
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+        return data;
+    }
+}
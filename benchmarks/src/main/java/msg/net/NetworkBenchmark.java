@@ -0,0 +1,115 @@
+package msg.net;
+
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@link NetworkService#sendMessage} between two services in the same JVM over loopback,
+ * measured until the receiving service has delivered the frames to its listener.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NetworkBenchmark {
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int BATCH = 64;
+
+    @Param({ "socket", "nio" })
+    String transport;
+
+    @Param({ "BINARY", "TEXT" })
+    NetworkService.WireFormat wireFormat;
+
+    @Param({ "256", "65536" })
+    int size;
+
+    private NetworkService sender;
+    private NetworkService receiver;
+    private final AtomicLong received = new AtomicLong();
+    private long sent;
+    private Frame frame;
+
+    @Setup
+    public void setup() throws Exception {
+        int threads = transport.equals("nio") ? 2 : 0;
+        int port = freePort();
+        receiver = new NetworkService(port, new Listener(received), threads);
+        receiver.start();
+        sender = new NetworkService(freePort(), new Listener(null), threads);
+        sender.setWireFormat(wireFormat);
+        sender.onPeerAnnounced(LOOPBACK, new Announcement(0, port, 1, "receiver"));
+        sender.start();
+        for (int attempt = 0; !sender.connectToPeer(LOOPBACK); attempt++) {
+            if (attempt == 50) {
+                throw new IllegalStateException("Cannot connect to the receiver on port " + port);
+            }
+            Thread.sleep(100); // the receiver may still be binding
+        }
+        frame = new Frame(Frame.TYPE_TEXT, 0, new byte[size]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.stop();
+        receiver.stop();
+    }
+
+    @Benchmark
+    public void sendAndDeliver() throws Exception {
+        sender.sendMessage(LOOPBACK, frame);
+        awaitDelivery(++sent);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendBatch() throws Exception {
+        for (int i = 0; i < BATCH; i++) {
+            sender.sendMessage(LOOPBACK, frame);
+        }
+        sent += BATCH;
+        awaitDelivery(sent);
+    }
+
+    private void awaitDelivery(long count) {
+        while (received.get() < count) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Counts the frames received, if given a counter, and ignores the other events.
+     */
+    private static final class Listener implements NetworkService.MessageListener {
+        private final AtomicLong received;
+
+        Listener(AtomicLong received) {
+            this.received = received;
+        }
+
+        @Override
+        public void onMessageReceived(String senderIp, Frame frame) {
+            if (received != null) {
+                received.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onConnectionEvent(String ip, boolean connected, String message, Object... args) {
+        }
+
+        @Override
+        public void onPeerStatusChange(String ip, boolean online) {
+        }
+    }
+}
@@ -3,10 +3,13 @@
  */
 package msg;
 
+import java.nio.file.Paths;
 import javax.swing.SwingUtilities;
+import msg.config.Config;
 import msg.controller.Controller;
 import msg.model.Model;
 import msg.util.LoggerUtil;
+import msg.util.Metrics;
 
 /**
  * The entry point of the SecretMessenger application.
@@ -18,9 +21,14 @@ public class Main {
      * @param args Command line arguments (not used).
      */
     public static void main(String[] args) {
+        LoggerUtil.configure(Config.getLogLevel(), Config.isLogBlocking());
+        String metricsFile = Config.getMetricsFile();
+        Metrics.start(Config.isMetricsJmxEnabled(), metricsFile != null ? Paths.get(metricsFile) : null,
+                Config.getMetricsInterval());
+        // The key is derived in the background while the window is being built
+        Model m = new Model();
         SwingUtilities.invokeLater(() -> {
             try {
-                Model m= new Model();
                 Controller c = new Controller(m);
                 c.start();
             } catch (Exception e) {
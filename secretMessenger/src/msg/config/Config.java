@@ -11,6 +11,34 @@ public class Config {
     private static String PASSWORD = "endofyearproject";
     private static byte[] SALT = { 3, 14, 15, 9, 26, 5, 35, 89, 79, 32, 38, 46, 26, 43, 38, 32 };
     private static int LISTEN_PORT = 9000;
+    private static String TRANSPORT = "socket";
+    private static int NIO_THREADS = 2;
+    private static String WIRE_FORMAT = "auto";
+    private static String EXECUTOR = "pool";
+    private static int EXECUTOR_THREADS = 8;
+    private static String CIPHER = "gcm";
+    private static boolean KEY_CACHE = false;
+    private static boolean HISTORY = false;
+    private static String HISTORY_FOLDER = "history";
+    private static int IMAGE_CACHE_MB = 64;
+    private static int THUMBNAIL_CACHE_MB = 16;
+    private static boolean THUMBNAIL_DISK_CACHE = false;
+    private static int THUMBNAIL_DISK_CACHE_MB = 64;
+    private static String DISCOVERY = "broadcast";
+    private static String DISCOVERY_GROUP = "239.255.77.77";
+    private static int DISCOVERY_TTL = 60;
+    private static String DISPLAY_NAME = System.getProperty("user.name", "");
+    private static String LOG_LEVEL = "INFO";
+    private static String LOG_QUEUE_FULL = "drop";
+    private static boolean METRICS_JMX = true;
+    private static String METRICS_FILE = "";
+    private static int METRICS_INTERVAL = 10;
+    private static boolean TRACE = true;
+    private static boolean TRACE_ACKS = false;
+    private static boolean COMPRESSION = true;
+    private static int COMPRESSION_MIN_SIZE = 512;
+    private static int CONNECT_FAILURES = 3;
+    private static int CONNECT_COOLDOWN_MS = 30000;
 
     static {
         File configDir = new File(CONFIG_FOLDER);
@@ -45,6 +73,61 @@ public class Config {
             LoggerUtil.logError("Config", "<staticInit>", "", e);
             LoggerUtil.logInfo("Config", "<staticInit>", "Using standard password, salt and listen port");
         }
+        // Optional settings: each one falls back to its default on its own
+        TRANSPORT = stringProperty(props, "TRANSPORT", TRANSPORT).toLowerCase();
+        NIO_THREADS = Math.max(1, intProperty(props, "NIO_THREADS", NIO_THREADS));
+        WIRE_FORMAT = stringProperty(props, "WIRE_FORMAT", WIRE_FORMAT).toLowerCase();
+        EXECUTOR = stringProperty(props, "EXECUTOR", EXECUTOR).toLowerCase();
+        EXECUTOR_THREADS = Math.max(1, intProperty(props, "EXECUTOR_THREADS", EXECUTOR_THREADS));
+        CIPHER = stringProperty(props, "CIPHER", CIPHER).toLowerCase();
+        KEY_CACHE = Boolean.parseBoolean(stringProperty(props, "KEY_CACHE", String.valueOf(KEY_CACHE)));
+        HISTORY = Boolean.parseBoolean(stringProperty(props, "HISTORY", String.valueOf(HISTORY)));
+        HISTORY_FOLDER = stringProperty(props, "HISTORY_FOLDER", HISTORY_FOLDER);
+        IMAGE_CACHE_MB = Math.max(1, intProperty(props, "IMAGE_CACHE_MB", IMAGE_CACHE_MB));
+        THUMBNAIL_CACHE_MB = Math.max(1, intProperty(props, "THUMBNAIL_CACHE_MB", THUMBNAIL_CACHE_MB));
+        THUMBNAIL_DISK_CACHE = Boolean.parseBoolean(
+                stringProperty(props, "THUMBNAIL_DISK_CACHE", String.valueOf(THUMBNAIL_DISK_CACHE)));
+        THUMBNAIL_DISK_CACHE_MB = Math.max(1, intProperty(props, "THUMBNAIL_DISK_CACHE_MB", THUMBNAIL_DISK_CACHE_MB));
+        DISCOVERY = stringProperty(props, "DISCOVERY", DISCOVERY).toLowerCase();
+        DISCOVERY_GROUP = stringProperty(props, "DISCOVERY_GROUP", DISCOVERY_GROUP);
+        DISCOVERY_TTL = Math.max(3, intProperty(props, "DISCOVERY_TTL", DISCOVERY_TTL));
+        DISPLAY_NAME = stringProperty(props, "DISPLAY_NAME", DISPLAY_NAME);
+        LOG_LEVEL = stringProperty(props, "LOG_LEVEL", LOG_LEVEL);
+        LOG_QUEUE_FULL = stringProperty(props, "LOG_QUEUE_FULL", LOG_QUEUE_FULL).toLowerCase();
+        METRICS_JMX = Boolean.parseBoolean(stringProperty(props, "METRICS_JMX", String.valueOf(METRICS_JMX)));
+        METRICS_FILE = stringProperty(props, "METRICS_FILE", METRICS_FILE);
+        METRICS_INTERVAL = Math.max(1, intProperty(props, "METRICS_INTERVAL", METRICS_INTERVAL));
+        TRACE = Boolean.parseBoolean(stringProperty(props, "TRACE", String.valueOf(TRACE)));
+        TRACE_ACKS = Boolean.parseBoolean(stringProperty(props, "TRACE_ACKS", String.valueOf(TRACE_ACKS)));
+        COMPRESSION = Boolean.parseBoolean(stringProperty(props, "COMPRESSION", String.valueOf(COMPRESSION)));
+        COMPRESSION_MIN_SIZE = Math.max(0, intProperty(props, "COMPRESSION_MIN_SIZE", COMPRESSION_MIN_SIZE));
+        CONNECT_FAILURES = Math.max(1, intProperty(props, "CONNECT_FAILURES", CONNECT_FAILURES));
+        CONNECT_COOLDOWN_MS = Math.max(0, intProperty(props, "CONNECT_COOLDOWN_MS", CONNECT_COOLDOWN_MS));
+    }
+
+    private static String stringProperty(Properties props, String name, String def) {
+        String value = props.getProperty(name);
+        return (value == null || value.isBlank()) ? def : value.trim();
+    }
+
+    private static int intProperty(Properties props, String name, int def) {
+        String value = props.getProperty(name);
+        if (value == null || value.isBlank()) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LoggerUtil.logWarning("Config", "intProperty", "Invalid value for " + name + ": " + value);
+            return def;
+        }
+    }
+
+    /**
+     * @return The folder holding config.properties and the other local files.
+     */
+    public static String getConfigFolder() {
+        return CONFIG_FOLDER;
     }
 
     public static String getPassword() {
@@ -58,4 +141,200 @@ public class Config {
     public static int getListenPort() {
         return LISTEN_PORT;
     }
+
+    /**
+     * @return True if the selector based (NIO) transport has been requested with TRANSPORT=nio.
+     */
+    public static boolean isNioTransport() {
+        return "nio".equals(TRANSPORT);
+    }
+
+    /**
+     * @return Number of selector event-loop threads used by the NIO transport.
+     */
+    public static int getNioThreads() {
+        return NIO_THREADS;
+    }
+
+    /**
+     * @return The configured wire format: auto, text or binary.
+     */
+    public static String getWireFormat() {
+        return WIRE_FORMAT;
+    }
+
+    /**
+     * @return The executor running the controller's event handlers: pool or virtual.
+     */
+    public static String getExecutor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * @return Maximum number of event handlers running at the same time.
+     */
+    public static int getExecutorThreads() {
+        return EXECUTOR_THREADS;
+    }
+
+    /**
+     * @return False if CIPHER=ecb forces the legacy cipher even towards peers supporting AES-GCM.
+     */
+    public static boolean isGcmEnabled() {
+        return !"ecb".equals(CIPHER);
+    }
+
+    /**
+     * @return True if KEY_CACHE=true asks to keep the derived key in a local keystore.
+     */
+    public static boolean isKeyCacheEnabled() {
+        return KEY_CACHE;
+    }
+
+    /**
+     * @return True if HISTORY=true asks to keep the chats on disk across restarts.
+     */
+    public static boolean isHistoryEnabled() {
+        return HISTORY;
+    }
+
+    /**
+     * @return The folder holding the encrypted chat history.
+     */
+    public static String getHistoryFolder() {
+        return HISTORY_FOLDER;
+    }
+
+    /**
+     * @return Memory budget for decoded images, in bytes.
+     */
+    public static long getImageCacheBytes() {
+        return IMAGE_CACHE_MB * 1024L * 1024L;
+    }
+
+    /**
+     * @return Memory budget for display-sized thumbnails, in bytes.
+     */
+    public static long getThumbnailCacheBytes() {
+        return THUMBNAIL_CACHE_MB * 1024L * 1024L;
+    }
+
+    /**
+     * @return True if THUMBNAIL_DISK_CACHE=true asks to keep thumbnails next to the chat history.
+     */
+    public static boolean isThumbnailDiskCacheEnabled() {
+        return THUMBNAIL_DISK_CACHE;
+    }
+
+    /**
+     * @return Disk budget for thumbnails, in bytes; the least recently used ones are deleted beyond it.
+     */
+    public static long getThumbnailDiskCacheBytes() {
+        return THUMBNAIL_DISK_CACHE_MB * 1024L * 1024L;
+    }
+
+    /**
+     * @return True if DISCOVERY=multicast asks to announce on a multicast group instead of broadcasting.
+     */
+    public static boolean isMulticastDiscovery() {
+        return "multicast".equals(DISCOVERY);
+    }
+
+    /**
+     * @return The multicast group used for discovery when it is enabled.
+     */
+    public static String getDiscoveryGroup() {
+        return DISCOVERY_GROUP;
+    }
+
+    /**
+     * @return Seconds after the last announcement before a discovered peer is considered gone.
+     */
+    public static int getDiscoveryTtl() {
+        return DISCOVERY_TTL;
+    }
+
+    /**
+     * @return The name announced to other peers, who use it for our chat.
+     */
+    public static String getDisplayName() {
+        return DISPLAY_NAME;
+    }
+
+    /**
+     * @return The lowest level written to the log: INFO, WARNING or SEVERE.
+     */
+    public static String getLogLevel() {
+        return LOG_LEVEL;
+    }
+
+    /**
+     * @return True if LOG_QUEUE_FULL=block makes callers wait when the log cannot keep up, instead of dropping.
+     */
+    public static boolean isLogBlocking() {
+        return "block".equals(LOG_QUEUE_FULL);
+    }
+
+    /**
+     * @return True if the metrics are published as the msg:type=Metrics MBean.
+     */
+    public static boolean isMetricsJmxEnabled() {
+        return METRICS_JMX;
+    }
+
+    /**
+     * @return The file the metrics are written to periodically, or null if none is configured.
+     */
+    public static String getMetricsFile() {
+        return METRICS_FILE.isEmpty() ? null : METRICS_FILE;
+    }
+
+    /**
+     * @return Seconds between two writes of the metrics file.
+     */
+    public static int getMetricsInterval() {
+        return METRICS_INTERVAL;
+    }
+
+    /**
+     * @return True if sent messages carry a trace header to peers that support it.
+     */
+    public static boolean isTraceEnabled() {
+        return TRACE;
+    }
+
+    /**
+     * @return True if traced messages ask the receiver for an acknowledgement, to measure round trips.
+     */
+    public static boolean isTraceAcksEnabled() {
+        return TRACE_ACKS;
+    }
+
+    /**
+     * @return True if messages and attachments are deflated for peers that support it.
+     */
+    public static boolean isCompressionEnabled() {
+        return COMPRESSION;
+    }
+
+    /**
+     * @return Size in bytes below which payloads are sent uncompressed.
+     */
+    public static int getCompressionMinSize() {
+        return COMPRESSION_MIN_SIZE;
+    }
+
+    /**
+     * @return Failed connection attempts in a row after which a peer is not tried again for a while.
+     */
+    public static int getConnectFailures() {
+        return CONNECT_FAILURES;
+    }
+
+    /**
+     * @return How long, in milliseconds, a peer is not tried again after too many failed connection attempts.
+     */
+    public static int getConnectCooldownMs() {
+        return CONNECT_COOLDOWN_MS;
+    }
 }
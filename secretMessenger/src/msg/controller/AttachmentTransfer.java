@@ -0,0 +1,266 @@
+package msg.controller;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import msg.model.CryptoEngine;
+import msg.model.Model;
+import msg.net.Frame;
+import msg.net.NetworkService;
+import msg.util.LoggerUtil;
+
+/**
+ * Streams attachments between peers in bounded, individually encrypted chunks.
+ * The sender reads the file incrementally and the receiver writes every chunk
+ * straight into a temporary file, so memory use does not depend on the attachment size.
+ * <p>
+ * Every transfer frame starts with a 4 byte transfer id in clear, followed by encrypted data:
+ * FILE_START carries the size and name, FILE_CHUNK the bytes, FILE_END nothing else.
+ * Chunks of files that are not already compressed images may be deflated before encryption.
+ */
+class AttachmentTransfer {
+	static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_INCOMING_PER_PEER = 8;
+
+	/**
+	 * Callbacks for transfer progress and results.
+	 */
+	interface Listener {
+		/**
+		 * Called after every chunk sent or received.
+		 * @param ip The IP address of the peer.
+		 * @param incoming True for a transfer from the peer, false for one towards it.
+		 * @param done Bytes transferred so far.
+		 * @param total Size of the attachment.
+		 */
+		void onProgress(String ip, boolean incoming, long done, long total);
+		/**
+		 * Called when an incoming attachment has been completely written to disk.
+		 * @param ip The IP address of the sender.
+		 * @param file The temporary file holding the attachment.
+		 */
+		void onReceived(String ip, File file);
+	}
+
+	private final Model model;
+	private final NetworkService network;
+	private final PayloadCompressor compressor;
+	private final Listener listener;
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final Map<String, Incoming> incoming = new ConcurrentHashMap<>();
+
+	AttachmentTransfer(Model model, NetworkService network, PayloadCompressor compressor, Listener listener) {
+		this.model = model;
+		this.network = network;
+		this.compressor = compressor;
+		this.listener = listener;
+	}
+
+	/**
+	 * Sends a file to a peer, blocking until every chunk has been queued.
+	 * The transport applies backpressure, so at most a few chunks are in memory at once.
+	 * @param ip The IP address of the peer.
+	 * @param file The file to send.
+	 * @param gcm True to encrypt with AES-GCM, false for the legacy format.
+	 * @throws Exception if reading, encrypting or sending fails.
+	 */
+	void send(String ip, File file, boolean gcm) throws Exception {
+		int id = nextId.incrementAndGet();
+		long total = file.length();
+
+		ByteArrayOutputStream meta = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(meta)) {
+			out.writeLong(total);
+			out.writeUTF(file.getName());
+		}
+		int flags = gcm ? Frame.FLAG_GCM : 0;
+		network.sendMessage(ip, frame(Frame.TYPE_FILE_START, flags, id, model.encrypt(meta.toByteArray(), gcm)));
+
+		long done = 0;
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[CHUNK_SIZE];
+			byte[] packed = null;
+			int n;
+			while ((n = in.readNBytes(buf, 0, CHUNK_SIZE)) > 0) {
+				if (done == 0 && compressor.accepts(ip) && !PayloadCompressor.isCompressedImage(buf)) {
+					packed = new byte[CHUNK_SIZE];
+				}
+				int size = packed != null ? compressor.deflate(ip, buf, 0, n, packed) : -1;
+				byte[] data = size > 0 ? packed : buf;
+				int length = size > 0 ? size : n;
+				int chunkFlags = size > 0 ? flags | Frame.FLAG_DEFLATE : flags;
+				Frame chunk;
+				if (gcm) {
+					// Encrypt straight behind the transfer id, without an intermediate array
+					ByteBuffer payload = ByteBuffer.allocate(4 + CryptoEngine.encryptedSize(length)).putInt(id);
+					model.getCrypto().encrypt(ByteBuffer.wrap(data, 0, length), payload);
+					chunk = new Frame(Frame.TYPE_FILE_CHUNK, chunkFlags, payload.array());
+				} else {
+					chunk = frame(Frame.TYPE_FILE_CHUNK, chunkFlags, id, model.encrypt(Arrays.copyOf(data, length), false));
+				}
+				network.sendMessage(ip, chunk);
+				done += n;
+				listener.onProgress(ip, false, done, total);
+			}
+		}
+		network.sendMessage(ip, frame(Frame.TYPE_FILE_END, 0, id, new byte[0]));
+	}
+
+	private static Frame frame(byte type, int flags, int id, byte[] data) {
+		return new Frame(type, flags, ByteBuffer.allocate(4 + data.length).putInt(id).put(data).array());
+	}
+
+	/**
+	 * Handles a FILE_START, FILE_CHUNK or FILE_END frame.
+	 * Frames of one peer must be passed in the order they were received.
+	 * @param ip The IP address of the sender.
+	 * @param frame The received frame.
+	 */
+	void onFrame(String ip, Frame frame) {
+		byte[] payload = frame.getPayload();
+		int id = ByteBuffer.wrap(payload, 0, 4).getInt();
+		String key = ip + "#" + id;
+		try {
+			switch (frame.getType()) {
+			case Frame.TYPE_FILE_START:
+				start(ip, key, model.decryptBytes(data(payload), frame.hasFlag(Frame.FLAG_GCM)));
+				break;
+			case Frame.TYPE_FILE_CHUNK:
+				Incoming in = incoming.get(key);
+				if (in == null) {
+					return; // transfer already failed or unknown
+				}
+				byte[] chunk;
+				int length;
+				if (frame.hasFlag(Frame.FLAG_GCM)) {
+					// Decrypt in place of the id-prefixed payload into a buffer reused across chunks
+					ByteBuffer plain = in.buffer(CryptoEngine.decryptedSize(payload.length - 4));
+					length = model.getCrypto().decrypt(ByteBuffer.wrap(payload, 4, payload.length - 4), plain);
+					chunk = plain.array();
+				} else {
+					chunk = model.decryptBytes(data(payload), false);
+					length = chunk.length;
+				}
+				if (frame.hasFlag(Frame.FLAG_DEFLATE)) {
+					chunk = compressor.inflate(ip, chunk, 0, length, CHUNK_SIZE);
+					length = chunk.length;
+				}
+				in.out.write(chunk, 0, length);
+				in.received += length;
+				if (in.received > in.total) {
+					throw new IOException("Attachment larger than announced");
+				}
+				listener.onProgress(ip, true, in.received, in.total);
+				break;
+			case Frame.TYPE_FILE_END:
+				finish(ip, key);
+				break;
+			default:
+				break;
+			}
+		} catch (Exception e) {
+			LoggerUtil.logError("AttachmentTransfer", "onFrame", "Error receiving attachment from: " + ip, e);
+			discard(incoming.remove(key));
+		}
+	}
+
+	private static byte[] data(byte[] payload) {
+		return Arrays.copyOfRange(payload, 4, payload.length);
+	}
+
+	private void start(String ip, String key, byte[] meta) throws IOException {
+		long active = incoming.keySet().stream().filter(k -> k.startsWith(ip + "#")).count();
+		if (active >= MAX_INCOMING_PER_PEER) {
+			throw new IOException("Too many concurrent attachments from " + ip);
+		}
+		DataInputStream din = new DataInputStream(new ByteArrayInputStream(meta));
+		long total = din.readLong();
+		String name = din.readUTF();
+		int dot = name.lastIndexOf('.');
+		String suffix = dot >= 0 ? name.substring(dot).replaceAll("[^A-Za-z0-9.]", "") : ".bin";
+		File file = Files.createTempFile("secretMessenger-", suffix).toFile();
+		file.deleteOnExit();
+		Incoming in;
+		try {
+			in = new Incoming(file, total);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		Incoming previous = incoming.put(key, in);
+		if (previous != null) { // the same id started again, the unfinished one is dropped
+			LoggerUtil.logWarning("AttachmentTransfer", "start", "Attachment " + key + " restarted, discarding the previous one");
+			discard(previous);
+		}
+	}
+
+	private void finish(String ip, String key) throws IOException {
+		Incoming in = incoming.remove(key);
+		if (in == null) {
+			return;
+		}
+		in.out.close();
+		if (in.received != in.total) {
+			discard(in);
+			throw new IOException("Attachment truncated: " + in.received + "/" + in.total + " bytes");
+		}
+		listener.onReceived(ip, in.file);
+	}
+
+	/**
+	 * Drops every unfinished transfer from a peer, e.g. when its connection is lost.
+	 * @param ip The IP address of the peer.
+	 */
+	void abort(String ip) {
+		incoming.entrySet().removeIf(e -> {
+			if (e.getKey().startsWith(ip + "#")) {
+				discard(e.getValue());
+				return true;
+			}
+			return false;
+		});
+	}
+
+	private static void discard(Incoming in) {
+		if (in == null) {
+			return;
+		}
+		try {
+			in.out.close();
+		} catch (IOException ignored) {
+		}
+		in.file.delete();
+	}
+
+	/**
+	 * An attachment being received.
+	 */
+	private static class Incoming {
+		private final File file;
+		private final OutputStream out;
+		private final long total;
+		private long received;
+		private ByteBuffer plain;
+
+		Incoming(File file, long total) throws IOException {
+			this.file = file;
+			this.out = new BufferedOutputStream(new FileOutputStream(file));
+			this.total = total;
+		}
+
+		ByteBuffer buffer(int size) throws IOException {
+			if (size < 0 || size > CHUNK_SIZE) {
+				throw new IOException("Invalid chunk size: " + size);
+			}
+			if (plain == null) {
+				plain = ByteBuffer.allocate(CHUNK_SIZE);
+			}
+			plain.clear();
+			return plain;
+		}
+	}
+}
@@ -4,18 +4,36 @@
 package msg.controller;
 
 import java.awt.Image;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
-import java.util.stream.Collectors;
-import javax.swing.ImageIcon;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
 import javax.swing.SwingUtilities;
 import msg.config.Config;
+import msg.model.ImageContent;
 import msg.model.Message;
 import msg.model.Model;
+import msg.model.Thumbnails;
+import msg.net.Announcement;
+import msg.net.Frame;
 import msg.net.NetworkService;
 import msg.net.PeerDiscoveryService;
+import msg.util.Histogram;
 import msg.util.LoggerUtil;
+import msg.util.Metrics;
 import msg.util.NetworkUtils;
+import msg.view.ChatEntry;
 import msg.view.Window;
 
 /**
@@ -26,11 +44,29 @@ import msg.view.Window;
  */
 @SuppressWarnings("rawtypes")
 public class Controller implements NetworkService.MessageListener, PeerDiscoveryService.DiscoveryListener {
+	// Sends share one lane so messages leave in the order they were typed,
+	// then each peer's lane once it is connected
+	private static final String SEND_LANE = "send";
+	// Messages per page of chat history
+	private static final int HISTORY_PAGE = 100;
+	private static final Histogram BASE64_DECODE = Metrics.histogram("controller.base64Decode");
 	private final Model model;
 	private final Window view;
 	private final NetworkService network;
 	private final PeerDiscoveryService discovery;
+	private final AttachmentTransfer transfers;
+	private final MessageTracer tracer;
+	private final PayloadCompressor compressor;
+	private final EventExecutor executor;
 	private final String myIp;
+	private final PeerRegistry peers;
+	private Thread statusChecker;
+
+	// Bumped on every peer selection; history loads started for an older selection are dropped
+	private final AtomicLong historyGeneration = new AtomicLong();
+	private final AtomicBoolean historyLoading = new AtomicBoolean();
+	private volatile String historyIp; // chat whose history is shown, once its first page is in
+	private volatile int historyStart; // index of the oldest message shown
 
 	/**
 	 * Constructs a new Controller.
@@ -40,18 +76,39 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 	public Controller(Model model) {
 		this.model = model;
 		this.myIp = NetworkUtils.getLocalIp(); // Get IP before view initialization
+		this.executor = "virtual".equals(Config.getExecutor()) ? EventExecutor.virtual(Config.getExecutorThreads())
+				: EventExecutor.pool(Config.getExecutorThreads());
 
 		// Initialize view *after* getting myIp
 		this.view = new Window(this);
+		this.peers = new PeerRegistry(myIp, (ip, display) -> {
+			if (display != null) {
+				view.putPeer(ip, display);
+			} else {
+				view.removePeer(ip);
+			}
+		});
 
-		// Discovery & network
-		this.discovery = new PeerDiscoveryService(this);
-		this.discovery.start();
-		this.network = new NetworkService(Config.getListenPort(), this);
+		// Network & discovery, which announces the port and features of the network service
+		this.network = new NetworkService(Config.getListenPort(), this,
+				Config.isNioTransport() ? Config.getNioThreads() : 0);
+		this.network.setWireFormat(parseWireFormat(Config.getWireFormat()));
+		this.network.setCircuitBreaker(Config.getConnectFailures(), Config.getConnectCooldownMs());
+		this.compressor = new PayloadCompressor(network, Config.isCompressionEnabled(), Config.getCompressionMinSize());
+		this.transfers = new AttachmentTransfer(model, network, compressor, new TransferListener());
+		this.tracer = new MessageTracer(network, Config.isTraceEnabled(), Config.isTraceAcksEnabled());
 		this.network.start();
+		this.discovery = new PeerDiscoveryService(this, network.createAnnouncement(Config.getDisplayName()),
+				discoveryGroup(), Config.getDiscoveryTtl());
+		this.discovery.start();
 
 		// Port
 		view.setStatus("In ascolto su porta " + Config.getListenPort());
+		model.keyReady().whenComplete((ready, error) -> {
+			if (error != null) {
+				view.setStatus("Errore chiave di cifratura: " + error.getMessage());
+			}
+		});
 
 		// Personal Chat setup((
 		if (!model.getPeers().contains(myIp)) {
@@ -71,37 +128,75 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 		startPeerStatusChecker();
 	}
 
+	/**
+	 * Stops the background services: pending handlers get a short time to finish,
+	 * then network connections and discovery are closed.
+	 */
+	public void shutdown() {
+		if (statusChecker != null) {
+			statusChecker.interrupt();
+		}
+		executor.shutdown();
+		discovery.stop();
+		network.stop();
+		compressor.close();
+		model.close();
+	}
+
+	private static NetworkService.WireFormat parseWireFormat(String value) {
+		try {
+			return NetworkService.WireFormat.valueOf(value.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			LoggerUtil.logWarning("Controller", "parseWireFormat", "Unknown WIRE_FORMAT " + value + ", using auto");
+			return NetworkService.WireFormat.AUTO;
+		}
+	}
+
+	// Null selects broadcast discovery
+	private static InetAddress discoveryGroup() {
+		if (!Config.isMulticastDiscovery()) {
+			return null;
+		}
+		try {
+			InetAddress group = InetAddress.getByName(Config.getDiscoveryGroup());
+			if (group.isMulticastAddress()) {
+				return group;
+			}
+		} catch (UnknownHostException e) {
+			// reported below
+		}
+		LoggerUtil.logWarning("Controller", "discoveryGroup",
+				"Invalid DISCOVERY_GROUP " + Config.getDiscoveryGroup() + ", using broadcast");
+		return null;
+	}
+
 	private void initializePeerSelection() {
+		// Self chat first, then the others
+		showPeer(myIp);
+		model.getPeers().forEach(this::showPeer);
 		// Update view after model setup
 		SwingUtilities.invokeLater(() -> {
-			view.setPeers(getDisplayPeers());
 			// Select "Me" chat initially if peers list is not empty
-			if (!model.getPeers().isEmpty()) {
-				String selfDisplay = getDisplay(myIp, null);
-				if (selfDisplay != null) {
-					view.selectPeer(selfDisplay); // Load self-chat history
-				} else if (!getDisplayPeers().isEmpty()) {
-					view.selectPeer(getDisplayPeers().get(0)); // Select first peer otherwise
-				}
+			if (!view.selectPeer(myIp)) { // Load self-chat history
+				view.selectFirstPeer(); // Select first peer otherwise
 			}
 		});
 	}
 
-	private List<String> getDisplayPeers() {
-		return model.getPeers().stream().map(ip -> {
-			String name = model.getChatName(ip);
-			// Ensure "Me" is displayed correctly without IP if name is "Me"
-			if (ip.equals(myIp) && name.equals("Me")) {
-				return name;
-			}
-			// Otherwise, show Name (IP) or just IP if no name set
-			return (name != null && !name.equals(ip)) ? name + " (" + ip + ")" : ip;
-		}).collect(Collectors.toList());
+	// Adds the peer to the list, or refreshes its name there; does nothing if it is shown already
+	private void showPeer(String ip) {
+		if (model.getPeers().contains(ip)) {
+			peers.put(ip, model.getChatName(ip));
+		}
 	}
 
 	private String resolveIp(String display) {
 		if (display == null)
 			return null;
+		String ip = peers.ipOf(display); // any entry of the peer list
+		if (ip != null) {
+			return ip;
+		}
 		// Handle "Me" case
 		if (display.equals("Me")) {
 			return myIp;
@@ -125,6 +220,10 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 	 */
 	@Override
 	public void onConnectionEvent(String ip, boolean connected, String message, Object... args) {
+		if (!connected) {
+			transfers.abort(ip);
+			compressor.release(ip);
+		}
 		// Update status in UI thread
 		SwingUtilities.invokeLater(() -> {
 			// Set status message in the UI
@@ -133,7 +232,7 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 			// Optional: you could add a system message to the chat
 			if (!model.getPeers().contains(ip) && connected) {
 				// If this is a new peer that we just connected to, add them
-				view.setPeers(getDisplayPeers());
+				showPeer(ip);
 			} else if (model.getPeers().contains(ip)) {
 				// If it's an existing peer, add connection status to their chat
 				// model.addMessage(ip, "--- " + message + " ---");
@@ -153,87 +252,155 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 	 * Handles the action of sending a message.
 	 * Retrieves the selected peer, encrypts the message, sends it via the NetworkService,
 	 * and updates the model and view.
-	 * @param message The message text or image command to send.
+	 * @param message The message text to send.
 	 */
 	public void onSendMessage(String message) {
-		new Thread(() -> {
-			final String selectedDisplay = view.getSelectedPeer(); // Get selection from view
-			final String targetIp = resolveIp(selectedDisplay);
+		final long sentAt = System.nanoTime(); // latencies are traced from the moment the user sent it
+		if (!executor.execute(SEND_LANE, () -> sendToSelectedPeer(message, null, sentAt))) {
+			busy("onSendMessage", "messaggio non inviato");
+		}
+	}
 
-			if (message == null || message.isBlank()) {
-				view.setStatus("Scrivi un messaggio!");
-				return;
-			}
-			if (targetIp == null) {
-				view.setStatus("Seleziona un peer!");
-				return;
-			}
+	/**
+	 * Handles the action of sending an image to the selected peer.
+	 * The file is streamed in chunks to the chat history and to peers that support it, and only
+	 * a subsampled preview is decoded, so it is never fully loaded in memory. Older peers are the
+	 * exception: they need the whole image in a single message.
+	 * @param imageFile The image file to send.
+	 */
+	public void onSendImage(File imageFile) {
+		if (!executor.execute(SEND_LANE, () -> sendToSelectedPeer(null, imageFile, System.nanoTime()))) {
+			busy("onSendImage", "immagine non inviata");
+		}
+	}
 
-			final String messageToSend = message; // Final variable for lambda/inner class
+	private void sendToSelectedPeer(String message, File imageFile, long sentAt) {
+		final String selectedDisplay = view.getSelectedPeer(); // Get selection from view
+		final String targetIp = resolveIp(selectedDisplay);
+		final boolean isImage = imageFile != null;
 
-			try {
-				// --- Message Handling ---
-				final String prefix = "Tu: ";
-				final String fullMessageText = prefix + messageToSend;
-				final boolean isImage = messageToSend.startsWith("!IMG");
-				byte[] imageBytes = null;
-				Image imageToSend = null;
+		if (!isImage && (message == null || message.isBlank())) {
+			view.setStatus("Scrivi un messaggio!");
+			return;
+		}
+		if (targetIp == null) {
+			view.setStatus("Seleziona un peer!");
+			return;
+		}
+
+		final String messageToSend = message; // Final variable for lambda/inner class
+
+		try {
+			// --- Message Handling ---
+			final String prefix = "Tu: ";
+			final String fullMessageText = prefix + messageToSend;
+			// The local echo only needs the display size, so the photo is never decoded whole
+			final Image thumbnail = isImage ? preview(imageFile) : null;
+			if (isImage && thumbnail == null) {
+				view.setStatus("Immagine non valida: " + imageFile.getName());
+				return;
+			}
 
+			// 1. Update Model here, in the order of the send lane, and UI immediately (on EDT)
+			if (isImage) {
+				model.addImage(targetIp, prefix, imageFile, false); // copied in chunks, decoded on demand
+			} else {
+				model.addMessage(targetIp, fullMessageText); // Store text message
+			}
+			SwingUtilities.invokeLater(() -> {
 				if (isImage) {
-					imageBytes = Base64.getDecoder().decode(messageToSend.substring(4));
-					imageToSend = new ImageIcon(imageBytes).getImage();
+					view.appendText(prefix); // Display "Tu: "
+					view.appendImage(thumbnail); // Display image
+				} else {
+					view.appendText(fullMessageText); // Display text message
 				}
+				view.clearInput(); // Clear input after adding to UI
+			});
 
-				// 1. Update Model & UI immediately (on EDT)
-				final byte[] finalImageBytes = imageBytes; // Final for lambda
-				final Image finalImageToSend = imageToSend; // Final for lambda
-				SwingUtilities.invokeLater(() -> {
-					if (isImage) {
-						model.addMessage(targetIp, prefix, finalImageBytes);
-						view.appendText(prefix); // Display "Tu: "
-						view.appendImage(finalImageToSend); // Display image
-					} else {
-						model.addMessage(targetIp, fullMessageText); // Store text message
-						view.appendText(fullMessageText); // Display text message
+			// 2. Encrypt and Send (only if not sending to self, or handle loopback if
+			// desired)
+			if (!targetIp.equals(myIp)) { // Avoid sending to self over network unless loopback is intended
+				// Connect without holding the send lane; the futures of a peer complete in
+				// request order, so its lane still gets the messages in the order they were typed
+				network.connectAsync(targetIp).whenComplete((connected, error) -> {
+					if (!executor.execute(SEND_LANE + ":" + targetIp,
+							() -> deliver(targetIp, messageToSend, imageFile, sentAt, error))) {
+						busy("sendToSelectedPeer", isImage ? "immagine non inviata" : "messaggio non inviato");
 					}
-					view.clearInput(); // Clear input after adding to UI
 				});
+			} else {
+				// Self-message
+				view.setStatus("Messaggio aggiunto alla chat personale");
+			}
 
-				// 2. Encrypt and Send (only if not sending to self, or handle loopback if
-				// desired)
-				if (!targetIp.equals(myIp)) { // Avoid sending to self over network unless loopback is intended
-					// Try to connect to peer first - only try sending if connection is successful
-					if (network.connectToPeer(targetIp)) {
-						byte[] encrypted = model.encrypt(messageToSend);
-						String payload = Base64.getEncoder().encodeToString(encrypted);
-						boolean sent = network.sendMessage(targetIp, payload);
-						if (sent) {
-							view.setStatus("Messaggio inviato a " + model.getChatName(targetIp));
-						}
-					} else {
-						// Connection failed - the specific error message was already handled by
-						// onConnectionEvent
-						SwingUtilities.invokeLater(() -> {
-							view.appendText("--- Messaggio non inviato! Peer non raggiungibile. ---");
-							// model.addMessage(targetIp, "--- Messaggio non inviato! Peer non
-							// raggiungibile. ---");
-						});
-					}
-				} else {
-					// Self-message
-					view.setStatus("Messaggio aggiunto alla chat personale");
-				}
+		} catch (Exception e) {
+			sendFailed(targetIp, e);
+		}
+	}
 
-			} catch (Exception e) {
-				final String errorMsg = e.getMessage();
-				SwingUtilities.invokeLater(() -> {
-					view.setStatus("Errore invio: " + errorMsg);
-					view.appendText("--- Errore invio: " + errorMsg + " ---");
-					model.addMessage(targetIp, "--- Errore invio: " + errorMsg + " ---");
-				});
-				LoggerUtil.logError("Controller", "onSendMessage", "Error sending message to: " + targetIp, e);
+	// Runs on the lane of the peer once the connection attempt is over
+	private void deliver(String targetIp, String messageToSend, File imageFile, long sentAt, Throwable connectError) {
+		if (connectError != null) {
+			// Connection failed - the specific error message was already handled by
+			// onConnectionEvent
+			view.appendText("--- Messaggio non inviato! Peer non raggiungibile. ---");
+			// model.addMessage(targetIp, "--- Messaggio non inviato! Peer non
+			// raggiungibile. ---");
+			return;
+		}
+		try {
+			boolean sent;
+			boolean gcm = useGcm(targetIp);
+			if (imageFile == null) {
+				MessageTracer.SEND_QUEUE.recordSince(sentAt);
+				int flags = gcm ? Frame.FLAG_GCM : 0;
+				byte[] plain = messageToSend.getBytes();
+				byte[] packed = compressor.accepts(targetIp) ? compressor.deflate(targetIp, plain) : null;
+				if (packed != null) {
+					plain = packed;
+					flags |= Frame.FLAG_DEFLATE;
+				}
+				long start = System.nanoTime();
+				byte[] encrypted = model.encrypt(plain, gcm);
+				MessageTracer.SEND_ENCRYPT.recordSince(start);
+				start = System.nanoTime();
+				sent = network.sendMessage(targetIp, tracer.textFrame(targetIp, flags, encrypted, sentAt));
+				MessageTracer.SEND_WRITE.recordSince(start);
+			} else if (network.isBinaryPeer(targetIp)) {
+				transfers.send(targetIp, imageFile, gcm);
+				sent = true;
+			} else {
+				// Older peers only understand images as a single "!IMG" text message, the one case loading it whole
+				String legacy = "!IMG" + Base64.getEncoder().encodeToString(Files.readAllBytes(imageFile.toPath()));
+				sent = network.sendMessage(targetIp, new Frame(Frame.TYPE_TEXT, 0, model.encrypt(legacy, false)));
 			}
-		}).start();
+			if (sent) {
+				view.setStatus("Messaggio inviato a " + model.getChatName(targetIp));
+			}
+		} catch (Exception e) {
+			sendFailed(targetIp, e);
+		}
+	}
+
+	private void sendFailed(String targetIp, Exception e) {
+		final String errorMsg = e.getMessage();
+		SwingUtilities.invokeLater(() -> {
+			view.setStatus("Errore invio: " + errorMsg);
+			view.appendText("--- Errore invio: " + errorMsg + " ---");
+			model.addMessage(targetIp, "--- Errore invio: " + errorMsg + " ---");
+		});
+		LoggerUtil.logError("Controller", "onSendMessage", "Error sending message to: " + targetIp, e);
+	}
+
+	private static Image preview(File imageFile) throws IOException {
+		try (InputStream in = Files.newInputStream(imageFile.toPath())) {
+			return Thumbnails.preview(in, Window.IMAGE_WIDTH);
+		}
+	}
+
+	// AES-GCM unless the peer is too old for it or the legacy cipher is forced
+	private boolean useGcm(String ip) {
+		return Config.isGcmEnabled() && network.hasFeature(ip, Frame.FEATURE_GCM);
 	}
 
 	/**
@@ -243,7 +410,7 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 	 * @param ip The IP address of the peer to add.
 	 */
 	public void onAddPeer(String ip) {
-		new Thread(() -> {
+		boolean accepted = executor.execute(() -> {
 			if (!NetworkUtils.isValidIpAddress(ip)) {
 				view.setStatus("Formato IP non valido: " + ip);
 				return;
@@ -253,43 +420,55 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 				return;
 			}
 
-			if (!model.getPeers().contains(ip)) {
-				// Try to connect to the peer with 3 attempts, 2 seconds between attempts
-				boolean connected = network.connectToPeerWithRetry(ip, 3, 2000);
+			if (model.getPeers().contains(ip) && network.isPeerConnected(ip)) {
+				view.setStatus("Peer già presente: " + ip);
+				view.clearPeerInput();
+				return;
+			}
+			// Try to connect to the peer with 3 attempts, backing off from 2 seconds between them
+			network.connectAsync(ip, 3, 2000).whenComplete((done, error) -> {
+				if (!executor.execute(() -> {
+					peerAdded(ip, error == null);
+					view.clearPeerInput();
+				})) {
+					busy("onAddPeer", "peer " + ip + " non aggiunto");
+				}
+			});
+		});
+		if (!accepted) {
+			busy("onAddPeer", "peer " + ip + " non aggiunto");
+		}
+	}
 
-				if (connected) {
-					// Connection successful, add peer to model
-					model.addMessage(ip, "--- Conversazione iniziata ---");
-					final List<String> updatedPeers = getDisplayPeers();
-					final String status = "Peer aggiunto: " + ip;
-					final String finalIp = ip; // for use in lambda
+	private void peerAdded(String ip, boolean connected) {
+		if (!model.getPeers().contains(ip)) {
+			if (connected) {
+				// Connection successful, add peer to model
+				model.addMessage(ip, "--- Conversazione iniziata ---");
+				showPeer(ip);
+				final String status = "Peer aggiunto: " + ip;
+				final String finalIp = ip; // for use in lambda
 
-					SwingUtilities.invokeLater(() -> {
-						view.setPeers(updatedPeers);
-						view.setStatus(status);
-						// Optionally, select the newly added peer
-						String newPeerDisplay = getDisplay(finalIp, null);
-						if (newPeerDisplay != null) {
-							view.selectPeer(newPeerDisplay);
-						}
-					});
-				} else {
-					// Connection failed after retries, don't add the peer
-					view.setStatus("Peer non aggiunto: impossibile connettersi a " + ip + " dopo 3 tentativi");
-				}
+				SwingUtilities.invokeLater(() -> {
+					view.setStatus(status);
+					// Optionally, select the newly added peer
+					view.selectPeer(finalIp);
+				});
 			} else {
-				// Try to verify the existing connection
-				if (!network.isPeerConnected(ip) && !network.connectToPeerWithRetry(ip, 3, 2000)) {
-					// Remove peer after 3 failed connection attempts
-					// onRemovePeer itself should handle UI updates on EDT if necessary
-					onRemovePeer(ip); // Assuming onRemovePeer correctly handles its UI updates
-					view.setStatus("Peer rimosso: impossibile connettersi a " + ip);
-				} else {
-					view.setStatus("Peer già presente: " + ip);
-				}
+				// Connection failed after retries, don't add the peer
+				view.setStatus("Peer non aggiunto: impossibile connettersi a " + ip);
+			}
+		} else {
+			// Try to verify the existing connection
+			if (!connected) {
+				// Remove peer after the failed connection attempts
+				// onRemovePeer itself should handle UI updates on EDT if necessary
+				onRemovePeer(ip); // Assuming onRemovePeer correctly handles its UI updates
+				view.setStatus("Peer rimosso: impossibile connettersi a " + ip);
+			} else {
+				view.setStatus("Peer già presente: " + ip);
 			}
-			view.clearPeerInput();
-		}).start();
+		}
 	}
 
 	/**
@@ -314,18 +493,13 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 
 		// Remove peer from Sockets
 		network.removePeer(ipToRemove);
+		peers.remove(ipToRemove);
 
 		// Update UI on EDT
 		SwingUtilities.invokeLater(() -> {
-			final List<String> updatedPeers = getDisplayPeers();
-			view.setPeers(updatedPeers);
-			if (updatedPeers.isEmpty()) {
+			if (!view.selectFirstPeer()) {
 				view.clearChat();
 				view.setStatus("Nessun peer disponibile.");
-			} else {
-				view.selectPeer(updatedPeers.get(0));
-				// If setPeers doesn't auto-select, and no listener is reliably selecting the
-				// first, uncomment:
 			}
 			view.setStatus("Peer rimosso: " + display);
 		});
@@ -333,66 +507,29 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 
 	/**
 	 * Handles the action of selecting a peer from the list.
-	 * Clears the current chat, loads the chat history for the selected peer,
-	 * and updates the peer's online status in the view.
+	 * Loads the newest page of the chat history for the selected peer in one batch
+	 * and updates the peer's online status in the view. Loads still running for a
+	 * previously selected peer are dropped.
 	 * @param display The display name (which might include the IP) of the selected peer.
 	 */
 	public void onPeerSelected(String display) {
-		new Thread(() -> {
+		final long generation = historyGeneration.incrementAndGet();
+		historyIp = null;
+		historyLoading.set(true);
+		boolean accepted = executor.execute(() -> {
 			final String ip = resolveIp(display);
 
 			if (ip != null) {
 				final String currentChatName = model.getChatName(ip); // Get current name
-				final List<Message> chatHistory = model.getChat(ip); // Get history (might be null)
 
 				// Verifica lo stato del peer e aggiorna l'interfaccia
 				boolean online = network.isPeerOnline(ip);
-				SwingUtilities.invokeLater(() -> {
-					view.updatePeerStatus(online);
-				});
+				view.updatePeerStatus(online);
 
-				if (chatHistory != null) {
-					for (final Message el : chatHistory) { // Make el final for lambda
-						SwingUtilities.invokeLater(() -> {// Process each message on EDT
-							String storedMsgText = el.getMessage(); // Original stored message text
-							String displayPrefix = "";
-							String displayContent = storedMsgText; // Default to full stored text
-							Image imageContent = null;
-
-							if (storedMsgText.startsWith("---")) {
-								// System messages, display as is
-								displayPrefix = "";
-								displayContent = storedMsgText;
-							} else if (el.haveContent() && el.getContent() instanceof Image) {
-								// It's an image message, stored prefix is in storedMsgText
-								displayPrefix = storedMsgText; // The stored text *is* the prefix ("Tu: " or
-																// "PeerName:")
-								displayContent = ""; // No text content to display besides prefix
-								imageContent = (Image) el.getContent();
-							} else if (storedMsgText.startsWith("Tu: ")) {
-								displayPrefix = "Tu: ";
-								displayContent = storedMsgText.substring(4);
-							} else if (storedMsgText.contains(": ")) { // Check if it's a peer message
-								int colonPos = storedMsgText.indexOf(": ");
-								// Use the *current* chat name for the prefix when displaying
-								String peerPrefixPart = (currentChatName != null && !currentChatName.equals(ip))
-										? currentChatName
-										: ip;
-								displayPrefix = peerPrefixPart + ": ";
-								displayContent = storedMsgText.substring(colonPos + 2);
-							}
-							// else: handle other cases or display raw storedMsgText if needed
-
-							// Append to view
-							if (imageContent != null) {
-								view.appendText(displayPrefix); // Display prefix
-								view.appendImage(imageContent); // Display image
-							} else if (!displayContent.trim().isEmpty() || displayContent.startsWith("---")) {
-								// Display text messages or system messages
-								view.appendText(displayPrefix + displayContent);
-							}
-						});
-					}
+				int count = model.getMessageCount(ip);
+				if (count >= 0) {
+					int from = Math.max(0, count - HISTORY_PAGE);
+					loadHistory(generation, ip, from, count, true);
 				} else {
 					// Handle case where chat history is unexpectedly null (e.g., after adding peer
 					// but before first message)
@@ -406,7 +543,83 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 			} else {
 				view.setStatus("Nessun peer selezionato");
 			}
-		}).start();
+		});
+		if (!accepted) {
+			historyLoading.set(false);
+			busy("onPeerSelected", "chat non caricata");
+		}
+	}
+
+	/**
+	 * Handles the user scrolling to the top of the chat by loading the previous page of history.
+	 */
+	public void onHistoryTopReached() {
+		final String ip = historyIp;
+		final int start = historyStart;
+		if (ip == null || start == 0 || !historyLoading.compareAndSet(false, true)) {
+			return; // nothing older, or a load is already running
+		}
+		final long generation = historyGeneration.get();
+		if (!executor.execute(() -> loadHistory(generation, ip, Math.max(0, start - HISTORY_PAGE), start, false))) {
+			historyLoading.set(false); // scrolling to the top again retries
+			busy("onHistoryTopReached", "cronologia non caricata");
+		}
+	}
+
+	// Reads messages [from, to) and shows them above the current ones, unless the selection changed meanwhile
+	private void loadHistory(long generation, String ip, int from, int to, boolean firstPage) {
+		List<Message> page = model.getMessages(ip, from, to);
+		if (page == null) {
+			page = List.of();
+		}
+		final String currentChatName = model.getChatName(ip);
+		final List<ChatEntry> entries = new ArrayList<>(page.size());
+		for (Message el : page) {
+			if (generation != historyGeneration.get()) {
+				return; // another peer was selected, stop decoding images for this one
+			}
+			ChatEntry entry = toEntry(el, ip, currentChatName);
+			if (entry != null) {
+				entries.add(entry);
+			}
+		}
+		SwingUtilities.invokeLater(() -> {
+			if (generation != historyGeneration.get()) {
+				return;
+			}
+			view.prependHistory(entries, firstPage);
+			historyIp = ip;
+			historyStart = from;
+			historyLoading.set(false);
+		});
+	}
+
+	// Builds the displayed form of a stored message, or null if there is nothing to show
+	private ChatEntry toEntry(Message el, String ip, String currentChatName) {
+		String storedMsgText = el.getMessage(); // Original stored message text
+		String displayPrefix = "";
+		String displayContent = storedMsgText; // Default to full stored text
+
+		if (storedMsgText.startsWith("---")) {
+			// System messages, display as is
+			return new ChatEntry(storedMsgText, null);
+		} else if (el.getContent() instanceof ImageContent) {
+			// It's an image message, stored prefix is in storedMsgText ("Tu: " or "PeerName: ")
+			// Made here, off the EDT, and cached, so the chat only ever paints display-sized images
+			Image image = ((ImageContent) el.getContent()).getThumbnail(Window.IMAGE_WIDTH);
+			return image != null ? new ChatEntry(storedMsgText, image) : null;
+		} else if (storedMsgText.startsWith("Tu: ")) {
+			displayPrefix = "Tu: ";
+			displayContent = storedMsgText.substring(4);
+		} else if (storedMsgText.contains(": ")) { // Check if it's a peer message
+			int colonPos = storedMsgText.indexOf(": ");
+			// Use the *current* chat name for the prefix when displaying
+			String peerPrefixPart = (currentChatName != null && !currentChatName.equals(ip)) ? currentChatName : ip;
+			displayPrefix = peerPrefixPart + ": ";
+			displayContent = storedMsgText.substring(colonPos + 2);
+		}
+		// else: display raw storedMsgText
+		return displayContent.trim().isEmpty() ? null : new ChatEntry(displayPrefix + displayContent, null);
 	}
 
 	/**
@@ -435,30 +648,62 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 		model.setChatName(ip, newName); // Update name in model
 
 		// Update UI on EDT
+		final String newDisplay = peers.put(ip, newName); // Update only this row of the list
 		SwingUtilities.invokeLater(() -> {
-			final List<String> updatedPeers = getDisplayPeers(); // Get updated list
-			view.setPeers(updatedPeers); // Update the list in the view
-			view.selectPeer(getDisplay(ip, ip));
+			// Shown again, so that older messages carry the new name too
+			view.clearChat();
+			onPeerSelected(newDisplay);
 			view.setStatus("Chat rinominata: " + newName);
 		});
 	}
 
-	private String getDisplay(String ip, String elses) {
-		return getDisplayPeers().stream().filter(p -> resolveIp(p).equals(ip)).findFirst().orElse(elses);
-	}
-
 	/**
 	 * Handles incoming messages from the NetworkService.
 	 * Decrypts the message, adds it to the model, and updates the view if the sender's chat is active.
 	 * @param senderIp The IP address of the message sender.
-	 * @param base64Message The Base64 encoded and encrypted message content.
+	 * @param frame The frame holding the encrypted message content.
 	 */
 	@Override
-	public void onMessageReceived(String senderIp, String base64Message) {
-		new Thread(() -> {
+	public void onMessageReceived(String senderIp, Frame frame) {
+		if (frame.getType() == Frame.TYPE_ACK) {
+			tracer.onAck(senderIp, frame); // right away, so the round trip does not include our own queues
+			return;
+		}
+		// One lane per sender: messages and attachment chunks are handled in arrival order
+		boolean accepted = executor.execute(senderIp, () -> {
+			if (frame.getType() >= Frame.TYPE_FILE_START && frame.getType() <= Frame.TYPE_FILE_END) {
+				transfers.onFrame(senderIp, frame);
+				return;
+			}
 			try {
-				byte[] encrypted = Base64.getDecoder().decode(base64Message);
-				String decryptedMsg = model.decrypt(encrypted); // The actual message content or "!IMG"+base64img
+				byte[] imgBytes = null;
+				String decryptedMsg = null;
+				if (frame.getType() == Frame.TYPE_IMAGE) {
+					imgBytes = model.decryptBytes(frame.getPayload(), frame.hasFlag(Frame.FLAG_GCM));
+				} else {
+					long start = System.nanoTime();
+					if (frame.getReadEnd() != 0) {
+						MessageTracer.RECV_READ.record(frame.getReadEnd() - frame.getReadStart());
+						MessageTracer.RECV_QUEUE.record(start - frame.getReadEnd());
+					}
+					byte[] body = MessageTracer.body(senderIp, frame);
+					if (body == null) {
+						return; // dropped, the trace header is cut short
+					}
+					if (frame.hasFlag(Frame.FLAG_DEFLATE)) {
+						byte[] packed = model.decryptBytes(body, frame.hasFlag(Frame.FLAG_GCM));
+						MessageTracer.RECV_DECRYPT.recordSince(start);
+						decryptedMsg = new String(compressor.inflate(senderIp, packed));
+					} else {
+						decryptedMsg = model.decrypt(body, frame.hasFlag(Frame.FLAG_GCM)); // The actual message content or "!IMG"+base64img
+						MessageTracer.RECV_DECRYPT.recordSince(start);
+					}
+					if (decryptedMsg.startsWith("!IMG")) {
+						start = System.nanoTime();
+						imgBytes = Base64.getDecoder().decode(decryptedMsg.substring(4));
+						BASE64_DECODE.recordSince(start);
+					}
+				}
 
 				final String currentName = model.getChatName(senderIp); // Use current name
 				final String displayPrefix = (currentName != null) ? currentName + ": " : senderIp + ": "; // Prefix for
@@ -466,33 +711,32 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 																											// AND
 																											// storage
 
-				if (decryptedMsg.startsWith("!IMG")) {
-					byte[] imgBytes = Base64.getDecoder().decode(decryptedMsg.substring(4));
-					final Image receivedImage = new ImageIcon(imgBytes).getImage(); // Final for lambda
-
+				if (imgBytes != null) {
 					// Store image with display prefix
-					model.addMessage(senderIp, displayPrefix, imgBytes);
-
-					// Update UI on EDT only if the chat is currently selected
-					SwingUtilities.invokeLater(() -> {
-						final String selectedPeerDisplay = view.getSelectedPeer();
-						final String selectedPeerIp = resolveIp(selectedPeerDisplay);
-						if (senderIp.equals(selectedPeerIp)) { // Only append if this chat is active
-							view.appendText(displayPrefix);
-							view.appendImage(receivedImage);
-							view.setStatus("Immagine ricevuta da " + (currentName != null ? currentName : senderIp));
-						}
-					});
+					Image image = ImageIO.read(new ByteArrayInputStream(imgBytes));
+					if (image == null) {
+						view.setStatus("Immagine non valida ricevuta da " + currentName);
+						return;
+					}
+					model.addImage(senderIp, displayPrefix, image, imgBytes);
+					showPeer(senderIp);
+					showReceivedImage(senderIp, Thumbnails.scale(image, Window.IMAGE_WIDTH));
 				} else {
+					final String text = decryptedMsg; // Final for lambda
 					// Store text message with display prefix
-					model.addMessage(senderIp, displayPrefix + decryptedMsg);
+					long start = System.nanoTime();
+					model.addMessage(senderIp, displayPrefix + text);
+					final long stored = System.nanoTime();
+					MessageTracer.RECV_STORE.record(stored - start);
+					tracer.delivered(senderIp, frame);
+					showPeer(senderIp); // the first message of an unknown sender starts its chat
 
 					// Update UI on EDT only if the chat is currently selected
 					SwingUtilities.invokeLater(() -> {
 						String selectedPeerDisplay = view.getSelectedPeer();
 						String selectedPeerIp = resolveIp(selectedPeerDisplay);
 						if (senderIp.equals(selectedPeerIp)) { // Only append if this chat is active
-							view.appendText(displayPrefix + decryptedMsg);
+							view.appendText(displayPrefix + text, () -> MessageTracer.RECV_SHOWN.recordSince(stored));
 						}
 						view.setStatus("Messaggio ricevuto da " + (currentName != null ? currentName : senderIp));
 					});
@@ -503,27 +747,117 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 				LoggerUtil.logError("Controller", "onMessageReceived",
 						"Error processing received message from: " + senderIp, e);
 			}
-		}).start();
+		});
+		if (!accepted) {
+			if (frame.getType() >= Frame.TYPE_FILE_START && frame.getType() <= Frame.TYPE_FILE_END) {
+				transfers.abort(senderIp); // a missing chunk would corrupt the file
+			}
+			busy("onMessageReceived", "messaggio da " + senderIp + " scartato");
+		}
+	}
+
+	// The executor refuses events instead of blocking the EDT or a network reader when it is full
+	private void busy(String method, String status) {
+		LoggerUtil.logWarning("Controller", method, "Executor full, event dropped");
+		view.setStatus("Sistema sovraccarico: " + status);
+	}
+
+	// The thumbnail is made off the EDT by the caller
+	private void showReceivedImage(String senderIp, Image thumbnail) {
+		final String currentName = model.getChatName(senderIp); // Use current name
+		final String displayPrefix = (currentName != null) ? currentName + ": " : senderIp + ": ";
+		// Update UI on EDT only if the chat is currently selected
+		SwingUtilities.invokeLater(() -> {
+			final String selectedPeerDisplay = view.getSelectedPeer();
+			final String selectedPeerIp = resolveIp(selectedPeerDisplay);
+			if (senderIp.equals(selectedPeerIp)) { // Only append if this chat is active
+				view.appendText(displayPrefix);
+				view.appendImage(thumbnail);
+				view.setStatus("Immagine ricevuta da " + (currentName != null ? currentName : senderIp));
+			}
+		});
+	}
+
+	/**
+	 * Receives the results of chunked attachment transfers.
+	 */
+	private class TransferListener implements AttachmentTransfer.Listener {
+		// Last percentage shown per peer and direction, dropped when a transfer completes
+		private final Map<String, Integer> lastPercent = new ConcurrentHashMap<>();
+
+		@Override
+		public void onProgress(String ip, boolean incoming, long done, long total) {
+			int percent = total > 0 ? (int) (done * 100 / total) : 100;
+			String key = (incoming ? "in " : "out ") + ip;
+			Integer last = percent >= 100 ? lastPercent.remove(key) : lastPercent.put(key, percent);
+			if (last == null || last != percent) { // Only touch the UI when the shown value changes
+				view.setStatus((incoming ? "Ricezione immagine da " : "Invio immagine a ") + model.getChatName(ip)
+						+ ": " + percent + "%");
+			}
+		}
+
+		@Override
+		public void onReceived(String ip, File file) {
+			// Already running on the sender's lane, so the image keeps its place among the messages
+			boolean stored = false;
+			try {
+				Image thumbnail = preview(file);
+				if (thumbnail == null) {
+					view.setStatus("Immagine non valida ricevuta da " + model.getChatName(ip));
+					return;
+				}
+				model.addImage(ip, model.getChatName(ip) + ": ", file, true); // the model deletes the file
+				stored = true;
+				showPeer(ip);
+				showReceivedImage(ip, thumbnail);
+			} catch (Exception e) {
+				LoggerUtil.logError("Controller", "onReceived", "Error decoding image from: " + ip, e);
+			} finally {
+				if (!stored) {
+					file.delete();
+				}
+			}
+		}
 	}
 
 	/**
 	 * Handles peer discovery events from the PeerDiscoveryService.
-	 * Adds newly discovered peers to the model and updates the view.
+	 * Adds newly discovered peers to the model, named as they suggest, and updates the view.
+	 * What the peer announced is passed on to the network service before any connection.
 	 * @param ip The IP address of the discovered peer.
+	 * @param info What the peer announced, or null for older peers.
 	 */
 	@Override
-	public void onPeerDiscovered(String ip) {
-		new Thread(() -> {
+	public void onPeerDiscovered(String ip, Announcement info) {
+		if (info != null) {
+			network.onPeerAnnounced(ip, info);
+		}
+		// Dropped when busy: the peer announces itself again
+		executor.execute(ip, () -> {
 			if (!ip.equals(myIp) && !model.getPeers().contains(ip)) { // Don't discover self, check if already known
 				model.addMessage(ip, "--- Peer trovato in rete ---");
-				final List<String> updatedPeers = getDisplayPeers();
-				final String status = "Peer trovato: " + ip;
-				SwingUtilities.invokeLater(() -> {
-					view.setPeers(updatedPeers);
-					view.setStatus(status);
-				});
+				if (info != null && !info.getName().isBlank()) {
+					model.setChatName(ip, info.getName());
+				}
+				showPeer(ip);
+				view.setStatus("Peer trovato: " + ip);
 			}
-		}).start();
+		});
+	}
+
+	/**
+	 * Handles peers that stopped announcing themselves on the network.
+	 * Their chats are kept; the view is told if the lost peer is the selected one.
+	 * @param ip The IP address of the lost peer.
+	 */
+	@Override
+	public void onPeerLost(String ip) {
+		if (!executor.execute(ip, () -> {
+			view.setStatus("Peer non più in rete: " + model.getChatName(ip));
+			onPeerStatusChange(ip, network.isPeerOnline(ip));
+		})) {
+			onPeerStatusChange(ip, network.isPeerOnline(ip)); // only posts to the EDT
+		}
 	}
 
 	/**
@@ -555,16 +889,14 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 		String ip = resolveIp(displayName);
 		if (ip != null) {
 			boolean online = network.isPeerOnline(ip);
-			SwingUtilities.invokeLater(() -> {
-				view.updatePeerStatus(online);
-			});
+			view.updatePeerStatus(online);
 			return online;
 		}
 		return false;
 	}
 
 	private void startPeerStatusChecker() {
-		new Thread(() -> {
+		statusChecker = new Thread(() -> {
        			while(true){
             		try{
 						Thread.sleep(5000);
@@ -572,8 +904,12 @@ public class Controller implements NetworkService.MessageListener, PeerDiscovery
 			            if (selectedPeer != null) {
 				            isPeerOnline(selectedPeer);
 			            }
-           			}catch(InterruptedException e){}
+           			}catch(InterruptedException e){
+           				return; // shutdown
+           			}
        			}
-		}).start(); 
+		}, "PeerStatusChecker");
+		statusChecker.setDaemon(true);
+		statusChecker.start();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+package msg.controller;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import msg.util.LoggerUtil;
+import msg.util.Metrics;
+
+/**
+ * Execution layer for the Controller's event handlers.
+ * Handlers are either run as independent tasks or queued on an ordered lane,
+ * where tasks with the same key run one at a time in submission order.
+ * Both the number of concurrently running handlers and the backlog of each lane
+ * are capped. Submitting never blocks nor runs the task on the caller, which may be
+ * the EDT or a network reader: once a cap is reached the task is refused instead.
+ * A lane is dropped as soon as it runs out of tasks.
+ */
+class EventExecutor {
+	private static final int MAX_LANE_BACKLOG = 1024;
+	private static final int QUEUE_PER_THREAD = 256;
+	private static final LongAdder REJECTED = Metrics.counter("controller.rejected");
+
+	private final ExecutorService delegate;
+	private final Semaphore permits; // caps concurrency when the delegate itself does not
+	private final int maxPending; // tasks waiting for a permit, when permits are used
+	private final AtomicInteger pending = new AtomicInteger();
+	private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+	private EventExecutor(ExecutorService delegate, Semaphore permits, int maxPending) {
+		this.delegate = delegate;
+		this.permits = permits;
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Creates a bounded pool of platform threads.
+	 * When all threads are busy and the queue is full new tasks are refused.
+	 * @param threads Number of worker threads.
+	 * @return The new executor.
+	 */
+	static EventExecutor pool(int threads) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), r -> {
+					Thread t = new Thread(r, "Controller-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.AbortPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return new EventExecutor(pool, null, 0);
+	}
+
+	/**
+	 * Creates an executor that starts a virtual thread per task, with at most
+	 * {@code maxConcurrent} tasks running at once. The started threads wait for their turn,
+	 * so the caller never does. Virtual threads need Java 21 or newer;
+	 * on older runtimes a bounded pool is returned instead.
+	 * @param maxConcurrent Maximum number of tasks running at the same time.
+	 * @return The new executor.
+	 */
+	static EventExecutor virtual(int maxConcurrent) {
+		try {
+			ExecutorService vt = (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			return new EventExecutor(vt, new Semaphore(maxConcurrent), maxConcurrent * QUEUE_PER_THREAD);
+		} catch (ReflectiveOperationException e) {
+			LoggerUtil.logWarning("EventExecutor", "virtual",
+					"Virtual threads not available on this runtime, using a pool of " + maxConcurrent + " threads");
+			return pool(maxConcurrent);
+		}
+	}
+
+	/**
+	 * Runs a task with no ordering guarantee.
+	 * @param task The task to run.
+	 * @return False if the task was refused because the executor is full or shut down.
+	 */
+	boolean execute(Runnable task) {
+		if (delegate.isShutdown()) {
+			return false;
+		}
+		if (permits == null) {
+			try {
+				delegate.execute(() -> runSafely(task));
+				return true;
+			} catch (RejectedExecutionException e) {
+				return rejected();
+			}
+		}
+		if (pending.incrementAndGet() > maxPending) {
+			pending.decrementAndGet();
+			return rejected();
+		}
+		try {
+			delegate.execute(() -> {
+				try {
+					// Only the virtual thread waits here, never the submitter
+					permits.acquire();
+				} catch (InterruptedException e) {
+					pending.decrementAndGet();
+					return;
+				}
+				try {
+					runSafely(task);
+				} finally {
+					pending.decrementAndGet();
+					permits.release();
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			pending.decrementAndGet();
+			return rejected();
+		}
+	}
+
+	/**
+	 * Runs a task after every task previously submitted with the same key.
+	 * @param key The ordering key, e.g. a peer IP.
+	 * @param task The task to run.
+	 * @return False if the task was refused because the lane already holds
+	 *         {@value #MAX_LANE_BACKLOG} tasks or the executor is full or shut down.
+	 */
+	boolean execute(String key, Runnable task) {
+		while (true) {
+			Lane lane = lanes.computeIfAbsent(key, Lane::new);
+			switch (lane.add(task)) {
+				case QUEUED:
+					return true;
+				case FULL:
+					return rejected();
+				case SCHEDULE:
+					if (execute(lane)) {
+						return true;
+					}
+					lane.abandon();
+					return false;
+				default:
+					// The lane drained and was dropped meanwhile, use a new one
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting tasks and waits briefly for the running ones to finish.
+	 */
+	void shutdown() {
+		delegate.shutdown();
+		try {
+			if (!delegate.awaitTermination(2, TimeUnit.SECONDS)) {
+				delegate.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			delegate.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean rejected() {
+		REJECTED.increment();
+		return false;
+	}
+
+	private static void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (Throwable t) {
+			LoggerUtil.logError("EventExecutor", "runSafely", "Uncaught error in event handler", t);
+		}
+	}
+
+	private enum Added { QUEUED, SCHEDULE, FULL, REMOVED }
+
+	/**
+	 * Tasks sharing a key. The lane is scheduled on the delegate at most once
+	 * and then runs its tasks one after the other until it is empty, when it
+	 * removes itself from the lanes.
+	 */
+	private final class Lane implements Runnable {
+		private final String key;
+		private final Queue<Runnable> tasks = new ArrayDeque<>();
+		private boolean scheduled = false;
+		private boolean removed = false;
+
+		Lane(String key) {
+			this.key = key;
+		}
+
+		synchronized Added add(Runnable task) {
+			if (removed) {
+				return Added.REMOVED;
+			}
+			if (tasks.size() >= MAX_LANE_BACKLOG) {
+				return Added.FULL;
+			}
+			tasks.add(task);
+			if (scheduled) {
+				return Added.QUEUED;
+			}
+			scheduled = true;
+			return Added.SCHEDULE;
+		}
+
+		// The delegate refused the lane: its tasks, queued meanwhile ones included, are lost
+		void abandon() {
+			int dropped;
+			synchronized (this) {
+				dropped = tasks.size();
+				tasks.clear();
+				drop();
+			}
+			if (dropped > 1) {
+				LoggerUtil.logWarning("EventExecutor", "abandon", "Dropped " + dropped + " queued tasks of " + key);
+			}
+		}
+
+		// Called with the lock held
+		private void drop() {
+			scheduled = false;
+			removed = true;
+			lanes.remove(key, this);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable next;
+				synchronized (this) {
+					next = tasks.poll();
+					if (next == null) {
+						drop();
+						return;
+					}
+				}
+				runSafely(next);
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package msg.controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import msg.net.Frame;
+import msg.net.NetworkService;
+import msg.util.Histogram;
+import msg.util.LoggerUtil;
+import msg.util.Metrics;
+
+/**
+ * Follows text messages from the sender's Enter key to the receiver's chat pane.
+ * <p>
+ * Towards peers announcing {@link Frame#FEATURE_TRACE}, a text frame flagged {@link Frame#FLAG_TRACE}
+ * carries a header in clear before the encrypted text:
+ * <pre>
+ * message id (8) | sequence number (4, per receiver) | send time (8, epoch microseconds) | encrypted text
+ * </pre>
+ * The receiver records the one-way latency in {@code trace.oneWay.<ip>}, only as exact as the two clocks
+ * agree, and counts holes in the sequence numbers. If the message is flagged {@link Frame#FLAG_ACK},
+ * it answers with a {@link Frame#TYPE_ACK} once the message is stored, and the sender records the
+ * round trip, which needs no clock agreement, in {@code trace.rtt.<ip>}.
+ * <p>
+ * The {@code trace.send.*} and {@code trace.recv.*} stage histograms are recorded for every text message.
+ */
+final class MessageTracer {
+	static final int HEADER_SIZE = 20;
+	private static final int ACK_SIZE = 12;
+	// Sent messages still waiting for an ACK; beyond this the oldest is counted as lost
+	private static final int MAX_PENDING = 4096;
+	private static final long ACK_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+	// Sender: Enter to the peer's send lane (connecting included), encryption, write to the connection
+	static final Histogram SEND_QUEUE = Metrics.histogram("trace.send.queue");
+	static final Histogram SEND_ENCRYPT = Metrics.histogram("trace.send.encrypt");
+	static final Histogram SEND_WRITE = Metrics.histogram("trace.send.write");
+	// Receiver: frame read, wait for the sender's lane, decryption, storage, EDT append
+	static final Histogram RECV_READ = Metrics.histogram("trace.recv.read");
+	static final Histogram RECV_QUEUE = Metrics.histogram("trace.recv.queue");
+	static final Histogram RECV_DECRYPT = Metrics.histogram("trace.recv.decrypt");
+	static final Histogram RECV_STORE = Metrics.histogram("trace.recv.store");
+	static final Histogram RECV_SHOWN = Metrics.histogram("trace.recv.edt");
+	private static final LongAdder SEQUENCE_GAPS = Metrics.counter("trace.sequenceGaps");
+	private static final LongAdder ACKS_LOST = Metrics.counter("trace.acksLost");
+
+	private final NetworkService network;
+	private final boolean enabled;
+	private final boolean acks;
+	private final AtomicLong nextId = new AtomicLong(ThreadLocalRandom.current().nextLong());
+	private final Map<String, AtomicInteger> sent = new ConcurrentHashMap<>();
+	private final Map<String, Integer> received = new ConcurrentHashMap<>();
+	// Message id -> send time, oldest first, guarded by itself
+	private final Map<Long, Long> pending = new LinkedHashMap<>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			if (size() > MAX_PENDING) {
+				ACKS_LOST.increment();
+				return true;
+			}
+			return false;
+		}
+	};
+	// Per peer histograms, looked up once instead of by name on every message
+	private final Map<String, Histogram> oneWay = new ConcurrentHashMap<>();
+	private final Map<String, Histogram> roundTrip = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructs a new MessageTracer.
+	 * @param network Used to check the peer features and to send ACKs.
+	 * @param enabled True to add the trace header to the messages sent.
+	 * @param acks True to ask the receivers for ACKs.
+	 */
+	MessageTracer(NetworkService network, boolean enabled, boolean acks) {
+		this.network = network;
+		this.enabled = enabled;
+		this.acks = enabled && acks;
+	}
+
+	/**
+	 * Builds the frame of a text message, traced if the peer understands it.
+	 * @param ip The IP address of the receiver.
+	 * @param flags The FLAG_ bits of the encrypted text.
+	 * @param encrypted The encrypted text.
+	 * @param sentAt When the user sent the message, from {@link System#nanoTime()}.
+	 * @return The frame to send.
+	 */
+	Frame textFrame(String ip, int flags, byte[] encrypted, long sentAt) {
+		if (!enabled || !network.hasFeature(ip, Frame.FEATURE_TRACE)) {
+			return new Frame(Frame.TYPE_TEXT, flags, encrypted);
+		}
+		long id = nextId.getAndIncrement();
+		int seq = sent.computeIfAbsent(ip, k -> new AtomicInteger()).incrementAndGet();
+		ByteBuffer payload = ByteBuffer.allocate(HEADER_SIZE + encrypted.length);
+		payload.putLong(id).putInt(seq).putLong(epochMicros(sentAt)).put(encrypted);
+		flags |= Frame.FLAG_TRACE;
+		if (acks) {
+			synchronized (pending) {
+				expireAcks();
+				pending.put(id, sentAt);
+			}
+			flags |= Frame.FLAG_ACK;
+		}
+		return new Frame(Frame.TYPE_TEXT, flags, payload.array());
+	}
+
+	/**
+	 * @param ip The IP address of the sender.
+	 * @param frame A received text frame.
+	 * @return The encrypted text, without the trace header, or null if the frame is flagged as traced
+	 *         but too short to hold the header.
+	 */
+	static byte[] body(String ip, Frame frame) {
+		byte[] payload = frame.getPayload();
+		if (!frame.hasFlag(Frame.FLAG_TRACE)) {
+			return payload;
+		}
+		if (payload.length < HEADER_SIZE) {
+			LoggerUtil.logWarning("MessageTracer", "body", "Discarding malformed traced message from " + ip);
+			return null;
+		}
+		return Arrays.copyOfRange(payload, HEADER_SIZE, payload.length);
+	}
+
+	/**
+	 * Records a received text message once it is stored, and acknowledges it if asked to.
+	 * Called on the sender's lane, so the sequence numbers of one peer are checked in order.
+	 * @param ip The IP address of the sender.
+	 * @param frame The text frame.
+	 */
+	void delivered(String ip, Frame frame) {
+		if (!frame.hasFlag(Frame.FLAG_TRACE)) {
+			return;
+		}
+		if (frame.getPayload().length < HEADER_SIZE) {
+			LoggerUtil.logWarning("MessageTracer", "delivered", "Discarding malformed trace header from " + ip);
+			return;
+		}
+		ByteBuffer header = ByteBuffer.wrap(frame.getPayload(), 0, HEADER_SIZE);
+		long id = header.getLong();
+		int seq = header.getInt();
+		long sentMicros = header.getLong();
+		oneWay.computeIfAbsent(ip, k -> Metrics.histogram("trace.oneWay." + k)).record((epochMicros(System.nanoTime()) - sentMicros) * 1000);
+		Integer last = received.put(ip, seq);
+		if (last != null && seq != last + 1 && seq != 1) { // 1: the sender restarted
+			SEQUENCE_GAPS.increment();
+		}
+		if (frame.hasFlag(Frame.FLAG_ACK)) {
+			try {
+				network.sendMessage(ip, new Frame(Frame.TYPE_ACK, 0, ByteBuffer.allocate(ACK_SIZE).putLong(id).putInt(seq).array()));
+			} catch (IOException e) {
+				LoggerUtil.logWarning("MessageTracer", "delivered", "Cannot acknowledge message " + seq + " of " + ip + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Records the round trip of an acknowledged message. Can be called from any thread.
+	 * @param ip The IP address of the receiver.
+	 * @param frame The ACK frame.
+	 */
+	void onAck(String ip, Frame frame) {
+		if (frame.getPayload().length < ACK_SIZE) {
+			LoggerUtil.logWarning("MessageTracer", "onAck", "Discarding malformed ACK from " + ip);
+			return;
+		}
+		Long sentAt;
+		synchronized (pending) {
+			sentAt = pending.remove(ByteBuffer.wrap(frame.getPayload()).getLong());
+		}
+		if (sentAt != null) {
+			roundTrip.computeIfAbsent(ip, k -> Metrics.histogram("trace.rtt." + k)).recordSince(sentAt);
+		}
+	}
+
+	// Forgets the messages whose ACK is overdue, e.g. because the send failed; only looks at the oldest ones
+	private void expireAcks() {
+		long now = System.nanoTime();
+		for (Iterator<Long> it = pending.values().iterator(); it.hasNext() && now - it.next() > ACK_TIMEOUT;) {
+			it.remove();
+			ACKS_LOST.increment();
+		}
+	}
+
+	// Wall clock time of a System.nanoTime() value, for the other peer
+	private static long epochMicros(long nanos) {
+		Instant now = Instant.now();
+		long elapsed = System.nanoTime() - nanos;
+		return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000 - elapsed / 1000;
+	}
+}
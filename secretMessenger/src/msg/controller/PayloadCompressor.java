@@ -0,0 +1,243 @@
+package msg.controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import msg.net.Frame;
+import msg.net.NetworkService;
+import msg.util.Histogram;
+import msg.util.Metrics;
+
+/**
+ * Deflates payloads before they are encrypted, for peers that announce {@link Frame#FEATURE_DEFLATE}
+ * in their HELLO. Encrypted data does not compress, so this is the only place where it can be done.
+ * <p>
+ * A compressed payload is flagged {@link Frame#FLAG_DEFLATE} and laid out as
+ * <pre>
+ * original length (4) | raw deflate data
+ * </pre>
+ * Payloads below the minimum size, and those that would not get smaller, are sent as they are.
+ * Each peer connection keeps its own {@link Deflater} and {@link Inflater}, reset between payloads
+ * and released when the connection closes.
+ */
+final class PayloadCompressor {
+	// Largest payload accepted when inflating, the same bound as a single frame
+	static final int MAX_INFLATED = 64 * 1024 * 1024;
+	private static final LongAdder PLAIN_BYTES = Metrics.counter("compression.plainBytes");
+	private static final LongAdder COMPRESSED_BYTES = Metrics.counter("compression.compressedBytes");
+	private static final Histogram DEFLATE_TIME = Metrics.histogram("compression.deflateTime");
+	private static final Histogram INFLATE_TIME = Metrics.histogram("compression.inflateTime");
+
+	private final NetworkService network;
+	private final boolean enabled;
+	private final int minSize;
+	private final Map<String, Codec> codecs = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructs a new PayloadCompressor.
+	 * @param network Used to check the peer features.
+	 * @param enabled False to never compress what is sent; received payloads are always inflated.
+	 * @param minSize Payloads smaller than this many bytes are not compressed.
+	 */
+	PayloadCompressor(NetworkService network, boolean enabled, int minSize) {
+		this.network = network;
+		this.enabled = enabled;
+		this.minSize = minSize;
+	}
+
+	/**
+	 * @param ip The IP address of the peer.
+	 * @return True if payloads sent to the peer may be compressed.
+	 */
+	boolean accepts(String ip) {
+		return enabled && network.hasFeature(ip, Frame.FEATURE_DEFLATE);
+	}
+
+	/**
+	 * Compresses a payload for a peer.
+	 * @param ip The IP address of the peer, which must be {@link #accepts(String) accepting} compression.
+	 * @param data The payload.
+	 * @param offset Start of the payload in data.
+	 * @param length Size of the payload.
+	 * @param out Receives the compressed payload, at least {@code length} bytes long.
+	 * @return The size of the compressed payload, or -1 if it is sent as it is.
+	 */
+	int deflate(String ip, byte[] data, int offset, int length, byte[] out) {
+		if (length < minSize) {
+			return -1;
+		}
+		long start = System.nanoTime();
+		int size = codec(ip).deflate(data, offset, length, out);
+		DEFLATE_TIME.recordSince(start);
+		if (size > 0) {
+			PLAIN_BYTES.add(length);
+			COMPRESSED_BYTES.add(size);
+		}
+		return size;
+	}
+
+	/**
+	 * Compresses a whole payload for a peer.
+	 * @param ip The IP address of the peer, which must be {@link #accepts(String) accepting} compression.
+	 * @param data The payload.
+	 * @return The compressed payload, or null if it is sent as it is.
+	 */
+	byte[] deflate(String ip, byte[] data) {
+		byte[] out = new byte[data.length];
+		int size = deflate(ip, data, 0, data.length, out);
+		return size < 0 ? null : Arrays.copyOf(out, size);
+	}
+
+	/**
+	 * Restores a compressed payload received from a peer.
+	 * @param ip The IP address of the peer.
+	 * @param data The compressed payload.
+	 * @param offset Start of the compressed payload in data.
+	 * @param length Size of the compressed payload.
+	 * @param maxSize Largest original size accepted.
+	 * @return The original payload.
+	 * @throws IOException if the payload is corrupt or larger than maxSize.
+	 */
+	byte[] inflate(String ip, byte[] data, int offset, int length, int maxSize) throws IOException {
+		if (length < 4) {
+			throw new IOException("Compressed payload too short");
+		}
+		int size = ByteBuffer.wrap(data, offset, 4).getInt();
+		if (size < 0 || size > maxSize) {
+			throw new IOException("Invalid inflated size: " + size);
+		}
+		long start = System.nanoTime();
+		byte[] out = new byte[size];
+		codec(ip).inflate(data, offset + 4, length - 4, out);
+		INFLATE_TIME.recordSince(start);
+		return out;
+	}
+
+	/**
+	 * Restores a whole compressed payload received from a peer.
+	 * @param ip The IP address of the peer.
+	 * @param data The compressed payload.
+	 * @return The original payload.
+	 * @throws IOException if the payload is corrupt or too large.
+	 */
+	byte[] inflate(String ip, byte[] data) throws IOException {
+		return inflate(ip, data, 0, data.length, MAX_INFLATED);
+	}
+
+	/**
+	 * Releases the native memory of a peer's codecs, e.g. when its connection closes.
+	 * They are created again if the peer reconnects.
+	 * @param ip The IP address of the peer.
+	 */
+	void release(String ip) {
+		Codec codec = codecs.get(ip);
+		if (codec != null) {
+			codec.release();
+		}
+	}
+
+	/**
+	 * Releases the codecs of every peer.
+	 */
+	void close() {
+		codecs.values().forEach(Codec::release);
+	}
+
+	/**
+	 * @param head The first bytes of a file.
+	 * @return True for JPEG, PNG, GIF and WebP images, whose content is already compressed.
+	 */
+	static boolean isCompressedImage(byte[] head) {
+		return startsWith(head, 0, 0xFF, 0xD8, 0xFF) // JPEG
+				|| startsWith(head, 0, 0x89, 'P', 'N', 'G')
+				|| startsWith(head, 0, 'G', 'I', 'F', '8')
+				|| (startsWith(head, 0, 'R', 'I', 'F', 'F') && startsWith(head, 8, 'W', 'E', 'B', 'P'));
+	}
+
+	private static boolean startsWith(byte[] data, int offset, int... magic) {
+		if (data.length < offset + magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if ((data[offset + i] & 0xFF) != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Codec codec(String ip) {
+		return codecs.computeIfAbsent(ip, k -> new Codec());
+	}
+
+	/**
+	 * The codecs of one peer. The sends and the receptions of a peer each run on a single lane,
+	 * so the locks are not contended; they guard against a release during use.
+	 */
+	private static final class Codec {
+		private Deflater deflater;
+		private Inflater inflater;
+		private final byte[] extra = new byte[1];
+
+		synchronized int deflate(byte[] data, int offset, int length, byte[] out) {
+			if (deflater == null) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true); // GCM already checks integrity
+			}
+			deflater.reset();
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			int size = 4;
+			while (!deflater.finished() && size < length) {
+				size += deflater.deflate(out, size, length - size);
+			}
+			if (!deflater.finished() || size >= length) {
+				return -1; // not worth it
+			}
+			ByteBuffer.wrap(out, 0, 4).putInt(length);
+			return size;
+		}
+
+		synchronized void inflate(byte[] data, int offset, int length, byte[] out) throws IOException {
+			if (inflater == null) {
+				inflater = new Inflater(true);
+			}
+			inflater.reset();
+			inflater.setInput(data, offset, length);
+			try {
+				int size = 0;
+				while (!inflater.finished()) {
+					int n = size < out.length ? inflater.inflate(out, size, out.length - size) : inflater.inflate(extra);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						throw new IOException("Compressed payload is truncated");
+					}
+					size += n;
+					if (size > out.length) {
+						throw new IOException("Compressed payload larger than announced");
+					}
+				}
+				if (size != out.length) {
+					throw new IOException("Compressed payload smaller than announced");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compressed payload", e);
+			}
+		}
+
+		synchronized void release() {
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+			if (inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package msg.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The peers shown in the peer list, keyed by IP address, with the text displayed for each.
+ * Every change is reported for the one peer it concerns, so the view only updates that row,
+ * and a displayed text is resolved back to its IP address in constant time.
+ */
+final class PeerRegistry {
+	private final String myIp;
+	private final BiConsumer<String, String> onChange;
+	private final Map<String, String> displays = new HashMap<>(); // IP -> display
+	private final Map<String, String> ips = new HashMap<>(); // display -> IP
+
+	/**
+	 * Constructs a new PeerRegistry.
+	 * @param myIp The local IP address, whose chat is shown as "Me".
+	 * @param onChange Receives the IP address and new display of each changed peer, or a null
+	 *        display when the peer was removed. Called in the order of the changes.
+	 */
+	PeerRegistry(String myIp, BiConsumer<String, String> onChange) {
+		this.myIp = myIp;
+		this.onChange = onChange;
+	}
+
+	/**
+	 * Adds a peer or updates its name. Nothing is reported if its display did not change.
+	 * @param ip The IP address of the peer.
+	 * @param name The chat name of the peer, or null if it has none.
+	 * @return The display of the peer.
+	 */
+	synchronized String put(String ip, String name) {
+		String display = display(ip, name);
+		String old = displays.put(ip, display);
+		if (!display.equals(old)) {
+			if (old != null) {
+				ips.remove(old);
+			}
+			ips.put(display, ip);
+			onChange.accept(ip, display);
+		}
+		return display;
+	}
+
+	/**
+	 * Removes a peer.
+	 * @param ip The IP address of the peer.
+	 */
+	synchronized void remove(String ip) {
+		String old = displays.remove(ip);
+		if (old != null) {
+			ips.remove(old);
+			onChange.accept(ip, null);
+		}
+	}
+
+	/**
+	 * @param display A display shown in the peer list.
+	 * @return The IP address of that peer, or null if no peer is shown that way.
+	 */
+	synchronized String ipOf(String display) {
+		return ips.get(display);
+	}
+
+	private String display(String ip, String name) {
+		// Ensure "Me" is displayed correctly without IP if name is "Me"
+		if (ip.equals(myIp) && "Me".equals(name)) {
+			return name;
+		}
+		// Otherwise, show Name (IP) or just IP if no name set
+		return (name != null && !name.equals(ip)) ? name + " (" + ip + ")" : ip;
+	}
+}
@@ -0,0 +1,520 @@
+package msg.model;
+
+import java.awt.Image;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import msg.util.LoggerUtil;
+
+/**
+ * Persistent chat history: one append-only log per peer, split into segment files.
+ * <p>
+ * Every record is {@code length (4) | kind (1) | body}, where the body is encrypted with
+ * AES-GCM and holds the text length and the text. Image records add a {@link SealedBlob} after
+ * it, written and read back in chunks so an image never has to be in memory whole. Segments are
+ * read back through memory mapped files and a chat is only scanned, never decrypted as a
+ * whole, the first time it is read. A torn record at the end of a segment, left by a crash,
+ * is cut off on that scan.
+ * <p>
+ * The index file lists the known chats and their names, so the chat list is available at
+ * startup without opening any segment. It holds no message content and is not encrypted.
+ * <p>
+ * Images are read back from the mapped segment and decoded lazily through the shared {@link ImageCache}.
+ * <p>
+ * Writes run on a single background thread, so callers on the EDT never wait for the disk
+ * or for the encryption key; reads wait for the writes queued before them.
+ */
+@SuppressWarnings("rawtypes")
+final class ChatLog implements ChatStore {
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int RECORD_HEADER = 5;
+    private static final byte KIND_TEXT = 0;
+    private static final byte KIND_IMAGE = 1;
+    // Leaves room in the int offsets of a segment for the records before it
+    private static final long MAX_RECORD = Integer.MAX_VALUE - SEGMENT_SIZE;
+    private static final String INDEX_FILE = "index.properties";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path dir;
+    private final Callable<CryptoEngine> crypto;
+    private final ImageCache images;
+    private final Thumbnails thumbnails;
+    private final Map<String, PeerLog> logs = new ConcurrentHashMap<>();
+    private final Map<String, String> names = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ChatLog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Opens the history folder, creating it if needed, and loads its index.
+     * @param dir The history folder.
+     * @param crypto Supplies the engine encrypting records, may block until the key is ready.
+     * @param images The cache holding decoded images.
+     * @param thumbnails The source of display-sized copies of the images.
+     * @throws IOException if the folder cannot be created or the index cannot be read.
+     */
+    ChatLog(Path dir, Callable<CryptoEngine> crypto, ImageCache images, Thumbnails thumbnails)
+            throws IOException {
+        this.dir = dir;
+        this.crypto = crypto;
+        this.images = images;
+        this.thumbnails = thumbnails;
+        Files.createDirectories(dir);
+        Path index = dir.resolve(INDEX_FILE);
+        if (Files.exists(index)) {
+            Properties props = new Properties();
+            try (Reader in = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+                props.load(in);
+            }
+            for (String ip : props.stringPropertyNames()) {
+                logs.put(ip, new PeerLog(ip));
+                String name = props.getProperty(ip);
+                if (!name.isEmpty()) {
+                    names.put(ip, name);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Set<String> peers() {
+        return logs.keySet();
+    }
+
+    @Override
+    public void append(String peerIp, String text, Image image, byte[] encoded) {
+        append("append", peerIp, log -> {
+            if (encoded == null) {
+                log.append(text);
+                return;
+            }
+            int index = log.append(text, new ByteArrayInputStream(encoded), encoded.length);
+            if (image != null) {
+                images.put(Map.entry(log, index), image);
+            }
+        });
+    }
+
+    @Override
+    public void append(String peerIp, String text, Path file, boolean owned) {
+        append("appendFile", peerIp, log -> {
+            try (InputStream in = Files.newInputStream(file)) {
+                log.append(text, in, Files.size(file));
+            } finally {
+                if (owned) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        });
+    }
+
+    private interface LogTask {
+        void run(PeerLog log) throws Exception;
+    }
+
+    private void append(String what, String peerIp, LogTask task) {
+        boolean[] created = { false };
+        PeerLog log = logs.computeIfAbsent(peerIp, ip -> {
+            created[0] = true;
+            return new PeerLog(ip);
+        });
+        submit(what, () -> {
+            if (created[0]) {
+                saveIndex();
+            }
+            synchronized (log) {
+                task.run(log);
+            }
+        });
+    }
+
+    @Override
+    public int count(String peerIp) {
+        PeerLog log = logs.get(peerIp);
+        if (log == null) {
+            return -1;
+        }
+        awaitWrites();
+        synchronized (log) {
+            try {
+                log.load();
+            } catch (IOException e) {
+                LoggerUtil.logError("ChatLog", "count", "Error opening the history of " + peerIp, e);
+            }
+            return log.count;
+        }
+    }
+
+    @Override
+    public List<Message> read(String peerIp, int from, int to) {
+        PeerLog log = logs.get(peerIp);
+        if (log == null) {
+            return null;
+        }
+        awaitWrites();
+        List<Message> messages = new ArrayList<>();
+        synchronized (log) {
+            try {
+                log.load();
+                for (int i = Math.max(0, from); i < Math.min(to, log.count); i++) {
+                    messages.add(log.read(i));
+                }
+            } catch (Exception e) {
+                LoggerUtil.logError("ChatLog", "read", "Error reading the history of " + peerIp, e);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Map<String, String> names() {
+        return new HashMap<>(names);
+    }
+
+    @Override
+    public void rename(String peerIp, String name) {
+        if (!name.equals(names.put(peerIp, name)) && logs.containsKey(peerIp)) {
+            submit("rename", this::saveIndex);
+        }
+    }
+
+    @Override
+    public boolean remove(String peerIp) {
+        PeerLog log = logs.remove(peerIp);
+        names.remove(peerIp);
+        if (log == null) {
+            return false;
+        }
+        submit("remove", () -> {
+            saveIndex();
+            synchronized (log) {
+                // The keys of a log are never used again, so its cached images could only wait to be evicted
+                for (int i = 0; i < log.count; i++) {
+                    images.remove(Map.entry(log, i));
+                    thumbnails.remove(Map.entry(log, i));
+                }
+                thumbnails.removeFolder(log.folder.getFileName().toString());
+                log.delete();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                LoggerUtil.logWarning("ChatLog", "close", "Pending history writes dropped");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PeerLog log : logs.values()) {
+            synchronized (log) {
+                log.closeChannel();
+            }
+        }
+    }
+
+    private interface IoTask {
+        void run() throws Exception;
+    }
+
+    private void submit(String what, IoTask task) {
+        try {
+            writer.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LoggerUtil.logError("ChatLog", what, "Error writing the chat history", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LoggerUtil.logWarning("ChatLog", what, "History already closed");
+        }
+    }
+
+    // Lets reads see every write queued before them
+    private void awaitWrites() {
+        try {
+            writer.submit(() -> {
+            }).get();
+        } catch (RejectedExecutionException e) {
+            // closed, nothing is pending
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // cannot happen for an empty task
+        }
+    }
+
+    // Runs on the writer thread
+    private void saveIndex() throws IOException {
+        Properties props = new Properties();
+        for (String ip : logs.keySet()) {
+            props.setProperty(ip, names.getOrDefault(ip, ""));
+        }
+        Path tmp = Files.createTempFile(dir, INDEX_FILE, ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                props.store(out, "SecretMessenger chat index");
+            }
+            Files.move(tmp, dir.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * The log of one chat. Guarded by its own monitor.
+     */
+    private final class PeerLog {
+        private final String ip;
+        private final Path folder;
+        private final List<Segment> segments = new ArrayList<>();
+        private boolean loaded = false;
+        private int count = 0;
+        private FileChannel channel; // appends to the last segment
+
+        PeerLog(String ip) {
+            this.ip = ip;
+            this.folder = dir.resolve(ip.replaceAll("[^A-Za-z0-9.-]", "_"));
+        }
+
+        /**
+         * Finds the segments and the offset of every record, without decrypting anything.
+         */
+        void load() throws IOException {
+            if (loaded) {
+                return;
+            }
+            loaded = true;
+            if (!Files.isDirectory(folder)) {
+                return;
+            }
+            List<Path> files;
+            try (Stream<Path> list = Files.list(folder)) {
+                files = list.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+            }
+            for (Path file : files) {
+                Segment seg = new Segment(file, count);
+                seg.scan();
+                segments.add(seg);
+                count += seg.records;
+            }
+        }
+
+        /**
+         * Appends a text message.
+         * @return The index of the new record.
+         */
+        int append(String text) throws Exception {
+            ByteBuffer plain = textBlock(text);
+            int bodyLength = CryptoEngine.encryptedSize(plain.remaining());
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bodyLength);
+            record.putInt(bodyLength).put(KIND_TEXT);
+            crypto.call().encrypt(plain, record);
+            record.flip();
+            Segment seg = lastSegment();
+            write(record);
+            seg.add(record.limit());
+            return count++;
+        }
+
+        /**
+         * Appends an image message, streaming the image into the segment.
+         * A record left half written by a failing read is cut off again.
+         * @return The index of the new record.
+         */
+        int append(String text, InputStream image, long length) throws Exception {
+            CryptoEngine engine = crypto.call();
+            ByteBuffer plain = textBlock(text);
+            int textLength = CryptoEngine.encryptedSize(plain.remaining());
+            long bodyLength = 4 + textLength + SealedBlob.size(length);
+            if (RECORD_HEADER + bodyLength > MAX_RECORD) {
+                throw new IOException("Image too large for the history: " + length + " bytes");
+            }
+            ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER + 4 + textLength);
+            head.putInt((int) bodyLength).put(KIND_IMAGE).putInt(textLength);
+            engine.encrypt(plain, head);
+            head.flip();
+            Segment seg = lastSegment();
+            try {
+                write(head);
+                SealedBlob.write(engine, image, length, channel);
+            } catch (Exception e) {
+                channel.truncate(seg.size);
+                throw e;
+            }
+            seg.add((int) (RECORD_HEADER + bodyLength));
+            return count++;
+        }
+
+        private ByteBuffer textBlock(String text) {
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            return ByteBuffer.allocate(4 + textBytes.length).putInt(textBytes.length).put(textBytes).flip();
+        }
+
+        // The segment taking new records, with the channel open on it
+        private Segment lastSegment() throws IOException {
+            load();
+            Segment seg = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (seg == null || seg.size >= SEGMENT_SIZE) {
+                closeChannel();
+                Files.createDirectories(folder);
+                seg = new Segment(folder.resolve(String.format("%08d", segments.size()) + SEGMENT_SUFFIX), count);
+                segments.add(seg);
+            }
+            if (channel == null) {
+                channel = FileChannel.open(seg.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            return seg;
+        }
+
+        private void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        Message read(int index) throws IOException {
+            int s = segments.size() - 1;
+            while (segments.get(s).first > index) {
+                s--;
+            }
+            Segment seg = segments.get(s);
+            ByteBuffer record = seg.record(index - seg.first);
+            record.getInt(); // body length
+            byte kind = record.get();
+            try {
+                ByteBuffer sealed = null;
+                if (kind == KIND_IMAGE) {
+                    int textPart = record.getInt();
+                    int end = record.position() + textPart;
+                    sealed = record.duplicate().position(end); // stays in the mapped segment
+                    record.limit(end);
+                } else if (kind != KIND_TEXT) {
+                    throw new IOException("Unknown record kind " + kind);
+                }
+                ByteBuffer plain = ByteBuffer.allocate(CryptoEngine.decryptedSize(record.remaining()));
+                crypto.call().decrypt(record, plain);
+                plain.flip();
+                int textLength = plain.getInt();
+                String text = new String(plain.array(), 4, textLength, StandardCharsets.UTF_8);
+                if (sealed == null) {
+                    return new Message<>(text, null);
+                }
+                ByteBuffer blob = sealed;
+                ImageContent.Source source = () -> SealedBlob.open(crypto, blob);
+                String id = SealedBlob.id(blob);
+                String diskName = id != null ? folder.getFileName() + "/" + id : null; // with the chat, see remove()
+                if (!text.equals("Tu: ")) {
+                    text = names.getOrDefault(ip, ip) + ": "; // the chat may have been renamed since
+                }
+                // Keyed by this log, so a chat deleted and created again never hits stale images
+                return new Message<>(text, new ImageContent(Map.entry(this, index), source, diskName, images,
+                        thumbnails));
+            } catch (Exception e) {
+                LoggerUtil.logWarning("ChatLog", "read", "Unreadable message " + index + " from " + ip + ": " + e);
+                return new Message<>("--- Messaggio non leggibile ---", null);
+            }
+        }
+
+        void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    /* ignore */ }
+                channel = null;
+            }
+        }
+
+        void delete() throws IOException {
+            closeChannel();
+            segments.clear();
+            count = 0;
+            if (!Files.isDirectory(folder)) {
+                return;
+            }
+            try (Stream<Path> list = Files.list(folder)) {
+                for (Path file : list.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(folder);
+        }
+    }
+
+    /**
+     * One segment file with the offsets of its records.
+     */
+    private static final class Segment {
+        private final Path file;
+        private final int first; // index of the first record in the chat
+        private int[] offsets = new int[64];
+        private int records = 0;
+        private long size = 0;
+        private MappedByteBuffer map;
+
+        Segment(Path file, int first) {
+            this.file = file;
+            this.first = first;
+        }
+
+        void scan() throws IOException {
+            long length;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                length = ch.size();
+                map = ch.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            while (size + RECORD_HEADER <= length) {
+                int bodyLength = map.getInt((int) size);
+                if (bodyLength < 0 || size + RECORD_HEADER + bodyLength > length) {
+                    break;
+                }
+                add(RECORD_HEADER + bodyLength);
+            }
+            if (size < length) {
+                LoggerUtil.logWarning("ChatLog", "scan", "Dropping " + (length - size) + " torn bytes from " + file);
+                map = null;
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    ch.truncate(size);
+                }
+            }
+        }
+
+        void add(int recordLength) {
+            if (records == offsets.length) {
+                offsets = Arrays.copyOf(offsets, records * 2);
+            }
+            offsets[records++] = (int) size;
+            size += recordLength;
+        }
+
+        /**
+         * @return A view of one record, from its header to the end of its body.
+         */
+        ByteBuffer record(int i) throws IOException {
+            if (map == null || map.limit() < size) {
+                // The last segment grows, map it again once reads go past the mapped part
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            }
+            int end = i + 1 < records ? offsets[i + 1] : (int) size;
+            return map.duplicate().limit(end).position(offsets[i]);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package msg.model;
+
+import java.awt.Image;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage behind {@link Model} for the messages of every chat.
+ */
+@SuppressWarnings("rawtypes")
+interface ChatStore {
+    /**
+     * @return Live view of the IP addresses of every stored chat.
+     */
+    Set<String> peers();
+
+    /**
+     * Appends a message to a chat, creating the chat if needed.
+     * Messages holding an image get an {@link ImageContent} as content.
+     * @param peerIp The IP address of the peer.
+     * @param text The message text, or the sender prefix for images.
+     * @param image The decoded image to put in the cache, or null.
+     * @param encoded The encoded image bytes, or null for a text message.
+     */
+    void append(String peerIp, String text, Image image, byte[] encoded);
+
+    /**
+     * Appends an image message read from a file, creating the chat if needed.
+     * The file is copied into the store in chunks, so it is never held in memory whole.
+     * @param peerIp The IP address of the peer.
+     * @param text The sender prefix.
+     * @param file The encoded image.
+     * @param owned True if the store deletes the file once it is stored, or could not be.
+     */
+    void append(String peerIp, String text, Path file, boolean owned);
+
+    /**
+     * @param peerIp The IP address of the peer.
+     * @return Number of messages in the chat, or -1 if there is no such chat.
+     */
+    int count(String peerIp);
+
+    /**
+     * Reads a range of messages, oldest first.
+     * @param peerIp The IP address of the peer.
+     * @param from Index of the first message.
+     * @param to Index after the last message, capped to the chat size.
+     * @return The messages, or null if there is no such chat.
+     */
+    List<Message> read(String peerIp, int from, int to);
+
+    /**
+     * @return The chat names saved by a previous session.
+     */
+    Map<String, String> names();
+
+    /**
+     * Records a new name for a chat.
+     * @param peerIp The IP address of the peer.
+     * @param name The new name.
+     */
+    void rename(String peerIp, String name);
+
+    /**
+     * Deletes a chat and its messages.
+     * @param peerIp The IP address of the peer.
+     * @return True if the chat existed.
+     */
+    boolean remove(String peerIp);
+
+    /**
+     * Writes out pending changes and releases resources.
+     */
+    void close();
+}
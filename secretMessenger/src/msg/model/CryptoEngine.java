@@ -0,0 +1,190 @@
+package msg.model;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypts and decrypts message payloads with a shared AES key.
+ * <p>
+ * The current format is AES-GCM: a random 12 byte nonce followed by the ciphertext
+ * and its 16 byte authentication tag. The legacy format is plain AES/ECB, still
+ * spoken by older peers.
+ * <p>
+ * Cipher instances are created once per thread and reused, so the provider lookup
+ * is not paid on every message. The engine itself is thread-safe.
+ */
+public final class CryptoEngine {
+    /** Size of the nonce prepended to every GCM message. */
+    public static final int NONCE_SIZE = 12;
+    /** Size of the authentication tag appended to every GCM message. */
+    public static final int TAG_SIZE = 16;
+
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> gcm = ThreadLocal.withInitial(() -> newCipher("AES/GCM/NoPadding"));
+    private final ThreadLocal<Cipher> ecbEncrypt;
+    private final ThreadLocal<Cipher> ecbDecrypt;
+
+    /**
+     * Constructs a new CryptoEngine.
+     * @param key The AES key shared by all peers.
+     */
+    public CryptoEngine(SecretKey key) {
+        this.key = key;
+        // ECB has no IV, so these ciphers are initialized once and reused as they are
+        this.ecbEncrypt = ThreadLocal.withInitial(() -> initEcb(Cipher.ENCRYPT_MODE));
+        this.ecbDecrypt = ThreadLocal.withInitial(() -> initEcb(Cipher.DECRYPT_MODE));
+    }
+
+    /**
+     * @param plainLength Number of bytes to encrypt.
+     * @return Number of bytes produced by {@link #encrypt(ByteBuffer, ByteBuffer)}.
+     */
+    public static int encryptedSize(int plainLength) {
+        return NONCE_SIZE + plainLength + TAG_SIZE;
+    }
+
+    /**
+     * @param encryptedLength Number of bytes of a GCM message.
+     * @return Number of bytes produced by {@link #decrypt(ByteBuffer, ByteBuffer)}.
+     */
+    public static int decryptedSize(int encryptedLength) {
+        return encryptedLength - NONCE_SIZE - TAG_SIZE;
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code in} with AES-GCM and a fresh nonce.
+     * Both buffers are advanced; no intermediate copy is made.
+     * @param in The plaintext.
+     * @param out Receives the nonce, ciphertext and tag; needs {@link #encryptedSize(int)} bytes free.
+     * @return Number of bytes written to {@code out}.
+     * @throws GeneralSecurityException if encryption fails or {@code out} is too small.
+     */
+    public int encrypt(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        return encrypt(in, out, null);
+    }
+
+    /**
+     * Encrypts like {@link #encrypt(ByteBuffer, ByteBuffer)}, also authenticating data that is not encrypted.
+     * @param in The plaintext.
+     * @param out Receives the nonce, ciphertext and tag; needs {@link #encryptedSize(int)} bytes free.
+     * @param aad Authenticated with the plaintext but not stored, or null.
+     * @return Number of bytes written to {@code out}.
+     * @throws GeneralSecurityException if encryption fails or {@code out} is too small.
+     */
+    public int encrypt(ByteBuffer in, ByteBuffer out, byte[] aad) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        Cipher c = gcm.get();
+        c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        if (aad != null) {
+            c.updateAAD(aad);
+        }
+        out.put(nonce);
+        return NONCE_SIZE + c.doFinal(in, out);
+    }
+
+    /**
+     * Decrypts and authenticates a GCM message made of the remaining bytes of {@code in}.
+     * @param in The nonce, ciphertext and tag.
+     * @param out Receives the plaintext; needs {@link #decryptedSize(int)} bytes free.
+     * @return Number of bytes written to {@code out}.
+     * @throws GeneralSecurityException if the message is malformed or was tampered with.
+     */
+    public int decrypt(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        return decrypt(in, out, null);
+    }
+
+    /**
+     * Decrypts like {@link #decrypt(ByteBuffer, ByteBuffer)} a message encrypted with additional data.
+     * @param in The nonce, ciphertext and tag.
+     * @param out Receives the plaintext; needs {@link #decryptedSize(int)} bytes free.
+     * @param aad The data authenticated on encryption, or null.
+     * @return Number of bytes written to {@code out}.
+     * @throws GeneralSecurityException if the message is malformed, was tampered with or the data differs.
+     */
+    public int decrypt(ByteBuffer in, ByteBuffer out, byte[] aad) throws GeneralSecurityException {
+        if (in.remaining() < NONCE_SIZE + TAG_SIZE) {
+            throw new GeneralSecurityException("Encrypted message too short: " + in.remaining() + " bytes");
+        }
+        byte[] nonce = new byte[NONCE_SIZE];
+        in.get(nonce);
+        Cipher c = gcm.get();
+        c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        if (aad != null) {
+            c.updateAAD(aad);
+        }
+        return c.doFinal(in, out);
+    }
+
+    /**
+     * Encrypts bytes with AES-GCM.
+     * @param data The plaintext.
+     * @return The nonce, ciphertext and tag.
+     * @throws GeneralSecurityException if encryption fails.
+     */
+    public byte[] encrypt(byte[] data) throws GeneralSecurityException {
+        byte[] out = new byte[encryptedSize(data.length)];
+        encrypt(ByteBuffer.wrap(data), ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /**
+     * Decrypts a GCM message.
+     * @param data The nonce, ciphertext and tag.
+     * @return The plaintext.
+     * @throws GeneralSecurityException if the message is malformed or was tampered with.
+     */
+    public byte[] decrypt(byte[] data) throws GeneralSecurityException {
+        byte[] out = new byte[Math.max(0, decryptedSize(data.length))];
+        decrypt(ByteBuffer.wrap(data), ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /**
+     * Encrypts bytes in the legacy AES/ECB format understood by older peers.
+     * @param data The plaintext.
+     * @return The ciphertext.
+     * @throws GeneralSecurityException if encryption fails.
+     */
+    public byte[] encryptLegacy(byte[] data) throws GeneralSecurityException {
+        return ecbEncrypt.get().doFinal(data);
+    }
+
+    /**
+     * Decrypts bytes in the legacy AES/ECB format.
+     * @param data The ciphertext.
+     * @return The plaintext.
+     * @throws GeneralSecurityException if decryption fails.
+     */
+    public byte[] decryptLegacy(byte[] data) throws GeneralSecurityException {
+        try {
+            return ecbDecrypt.get().doFinal(data);
+        } catch (GeneralSecurityException e) {
+            ecbDecrypt.remove(); // do not reuse a cipher left in an unknown state
+            throw e;
+        }
+    }
+
+    private Cipher initEcb(int mode) {
+        Cipher c = newCipher("AES/ECB/PKCS5Padding");
+        try {
+            c.init(mode, key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Invalid AES key", e);
+        }
+        return c;
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(transformation + " not available", e);
+        }
+    }
+}
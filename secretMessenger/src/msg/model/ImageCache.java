@@ -0,0 +1,134 @@
+package msg.model;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of decoded images, bounded by an estimate of their size in memory.
+ * Images are only ever decoded again from their compressed bytes, so evicting one is always safe.
+ */
+public final class ImageCache {
+    private final long budget;
+    private final Map<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructs a new ImageCache.
+     * @param budget Maximum estimated size of the cached images, in bytes.
+     */
+    public ImageCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Looks up a decoded image.
+     * @param key The key of the image.
+     * @return The image, or null on a miss.
+     */
+    public synchronized Image get(Object key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.image;
+    }
+
+    /**
+     * Caches a decoded image, evicting the least recently used ones to stay within the budget.
+     * Images larger than the whole budget are not kept.
+     * @param key The key of the image.
+     * @param image The decoded image.
+     */
+    public synchronized void put(Object key, Image image) {
+        long size = sizeOf(image);
+        Entry old = entries.remove(key);
+        if (old != null) {
+            usedBytes -= old.size;
+        }
+        if (size > budget) {
+            return;
+        }
+        entries.put(key, new Entry(image, size));
+        usedBytes += size;
+        Iterator<Entry> it = entries.values().iterator();
+        while (usedBytes > budget && it.hasNext()) {
+            usedBytes -= it.next().size;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops an image, e.g. because its chat was deleted.
+     * @param key The key of the image.
+     */
+    public synchronized void remove(Object key) {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            usedBytes -= e.size;
+        }
+    }
+
+    /**
+     * @return Number of lookups that found a decoded image.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of lookups that had to decode the image again.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Number of images dropped to stay within the budget.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Estimated size of the cached images, in bytes.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("images=%d used=%dKB/%dKB hits=%d misses=%d (%.1f%% hit) evictions=%d", entries.size(),
+                usedBytes / 1024, budget / 1024, hits, misses, lookups > 0 ? hits * 100.0 / lookups : 0.0, evictions);
+    }
+
+    // Bytes held by the decoded pixels
+    private static long sizeOf(Image image) {
+        int w = Math.max(image.getWidth(null), 1);
+        int h = Math.max(image.getHeight(null), 1);
+        int bytesPerPixel = image instanceof BufferedImage
+                ? Math.max(1, ((BufferedImage) image).getColorModel().getPixelSize() / 8)
+                : 4;
+        return (long) w * h * bytesPerPixel;
+    }
+
+    private static final class Entry {
+        private final Image image;
+        private final long size;
+
+        Entry(Image image, long size) {
+            this.image = image;
+            this.size = size;
+        }
+    }
+}
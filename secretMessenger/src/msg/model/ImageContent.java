@@ -0,0 +1,114 @@
+package msg.model;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Content of an image message: a reference to the compressed bytes kept by the chat store,
+ * read back and decoded on demand.
+ * The decoded image lives in the shared {@link ImageCache} and may be evicted at any time;
+ * display-sized copies come from {@link Thumbnails}.
+ */
+public final class ImageContent {
+    private final Object key;
+    private final Source source;
+    private final String diskName;
+    private final ImageCache cache;
+    private final Thumbnails thumbnails;
+
+    /**
+     * Constructs a new ImageContent.
+     * @param key Identifies the image in the caches.
+     * @param source Reads the compressed image bytes.
+     * @param diskName Names the thumbnails of the image on disk, random and stored with the image
+     *        so it tells nothing about it, or null to keep them in memory only.
+     * @param cache The cache holding decoded images.
+     * @param thumbnails The source of display-sized copies.
+     */
+    ImageContent(Object key, Source source, String diskName, ImageCache cache, Thumbnails thumbnails) {
+        this.key = key;
+        this.source = source;
+        this.diskName = diskName;
+        this.cache = cache;
+        this.thumbnails = thumbnails;
+    }
+
+    /**
+     * Gets the decoded image, decoding it again if it was evicted.
+     * Decoding can be slow, so avoid calling this on the Event Dispatch Thread.
+     * @return The image, or null if the bytes are not a readable image.
+     */
+    public Image getImage() {
+        Image image = cache.get(key);
+        if (image == null) {
+            try (InputStream in = source.open()) {
+                image = ImageIO.read(in);
+            } catch (IOException e) {
+                return null;
+            }
+            if (image != null) {
+                cache.put(key, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Gets the image scaled to the given width, made once and then cached.
+     * This may decode the image, so avoid calling it on the Event Dispatch Thread.
+     * @param width The width of the thumbnail.
+     * @return The thumbnail, or null if the bytes are not a readable image.
+     */
+    public BufferedImage getThumbnail(int width) {
+        return thumbnails.get(this, width);
+    }
+
+    /**
+     * @return The decoded image if it is in the cache, otherwise null.
+     */
+    Image cached() {
+        return cache.get(key);
+    }
+
+    /**
+     * Decodes the image at a reduced size, without decoding it whole.
+     * @param width The width of the preview.
+     * @return The preview, or null if the bytes are not a readable image.
+     * @see Thumbnails#preview(java.io.InputStream, int)
+     */
+    BufferedImage preview(int width) {
+        try (InputStream in = source.open()) {
+            return Thumbnails.preview(in, width);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The key identifying this image in the caches.
+     */
+    Object getKey() {
+        return key;
+    }
+
+    /**
+     * @return The name of the thumbnails of this image on disk, or null if they are not kept there.
+     */
+    String getDiskName() {
+        return diskName;
+    }
+
+    /**
+     * Where the compressed bytes of an image are kept.
+     */
+    interface Source {
+        /**
+         * @return A new stream over the compressed image bytes.
+         * @throws IOException if the bytes cannot be read.
+         */
+        InputStream open() throws IOException;
+    }
+}
@@ -0,0 +1,160 @@
+package msg.model;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HexFormat;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import msg.config.Config;
+import msg.util.LoggerUtil;
+
+/**
+ * Caches the derived AES key in a PKCS12 keystore next to the configuration, so that
+ * later launches skip the PBKDF2 derivation.
+ * <p>
+ * Nothing in the keystore can be checked against a password guess. The entry is stored under
+ * an HMAC of the password and salt, and the entry and the keystore are both protected, by a
+ * random 256 bit secret kept apart in the user's home folder instead of by the password. A copy
+ * of the keystore alone gives away neither the key nor a cheap way to test passwords. Changing
+ * the password or salt in the configuration simply misses the cache. Both files are readable
+ * by their owner only.
+ */
+final class KeyCache {
+    private static final String FILE_NAME = "keys.p12";
+    private static final String SECRET_FILE = "keys.secret";
+    private static final String PROTECTION = "PBEWithHmacSHA256AndAES_256";
+    // The secret is random, not a password, so it stays out of reach whatever the count; this is the PKCS12 default
+    private static final int PROTECTION_ITERATIONS = 10000;
+
+    private KeyCache() {
+    }
+
+    /**
+     * @param password The configured password.
+     * @param salt The configured salt.
+     * @return The cached key, or null if there is none for this password and salt.
+     */
+    static SecretKey load(String password, byte[] salt) {
+        Path file = file();
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            char[] secret = secret(false);
+            if (secret == null) {
+                return null; // the keystore cannot be opened without it
+            }
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(in, null); // the entry is protected on its own, skip the integrity check
+            KeyStore.Entry entry = ks.getEntry(alias(secret, password, salt), protection(secret));
+            return entry instanceof KeyStore.SecretKeyEntry ? ((KeyStore.SecretKeyEntry) entry).getSecretKey() : null;
+        } catch (Exception e) {
+            LoggerUtil.logWarning("KeyCache", "load", "Unreadable key cache " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a derived key, replacing the file atomically along with the keys of earlier passwords.
+     * @param password The configured password.
+     * @param salt The configured salt.
+     * @param key The key derived from them.
+     */
+    static void store(String password, byte[] salt, SecretKey key) {
+        Path file = file();
+        try {
+            char[] secret = secret(true);
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(null, null);
+            ks.setEntry(alias(secret, password, salt), new KeyStore.SecretKeyEntry(key), protection(secret));
+
+            Path tmp = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+            try {
+                restrict(tmp);
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    ks.store(out, secret);
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (Exception e) {
+            LoggerUtil.logWarning("KeyCache", "store", "Could not cache the derived key: " + e.getMessage());
+        }
+    }
+
+    private static Path file() {
+        return Paths.get(Config.getConfigFolder(), FILE_NAME);
+    }
+
+    // Kept out of the configuration folder, so copying that folder does not take it along
+    private static Path secretFile() {
+        return Paths.get(System.getProperty("user.home"), ".secretMessenger", SECRET_FILE);
+    }
+
+    /**
+     * @param create True to create the secret if there is none yet.
+     * @return The secret protecting the cache, or null if there is none and {@code create} is false.
+     */
+    private static char[] secret(boolean create) throws IOException {
+        Path file = secretFile();
+        if (Files.exists(file)) {
+            return read(file);
+        }
+        if (!create) {
+            return null;
+        }
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String secret = Base64.getEncoder().encodeToString(random);
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), SECRET_FILE, ".tmp");
+        try {
+            restrict(tmp);
+            Files.writeString(tmp, secret, StandardCharsets.US_ASCII);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            return read(file); // another launch created it meanwhile
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return secret.toCharArray();
+    }
+
+    private static char[] read(Path secretFile) throws IOException {
+        return Files.readString(secretFile, StandardCharsets.US_ASCII).trim().toCharArray();
+    }
+
+    private static KeyStore.PasswordProtection protection(char[] secret) {
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt); // only used when storing, loading reads the salt of the entry
+        return new KeyStore.PasswordProtection(secret, PROTECTION, new PBEParameterSpec(salt, PROTECTION_ITERATIONS));
+    }
+
+    private static String alias(char[] secret, String password, byte[] salt) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(new String(secret).getBytes(StandardCharsets.US_ASCII), "HmacSHA256"));
+        mac.update(password.getBytes(StandardCharsets.UTF_8));
+        mac.update(salt);
+        return HexFormat.of().formatHex(mac.doFinal());
+    }
+
+    private static void restrict(Path path) throws IOException {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            File f = path.toFile(); // not a POSIX file system
+            f.setReadable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(false, false);
+            f.setWritable(true, true);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package msg.model;
+
+import java.awt.Image;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import msg.util.LoggerUtil;
+
+/**
+ * Keeps every chat in memory for the length of the session.
+ * Images are not: they are sealed into temporary files, one per image, deleted along with
+ * their chat or at the end of the session. Decoded copies live in the {@link ImageCache}.
+ */
+@SuppressWarnings("rawtypes")
+final class MemoryChatStore implements ChatStore {
+    private final Map<String, List<Message>> chats = new ConcurrentHashMap<>();
+    private final ImageCache images;
+    private final Thumbnails thumbnails;
+    private final Callable<CryptoEngine> crypto;
+    private final Map<String, List<Path>> files = new ConcurrentHashMap<>(); // sealed images of each chat
+    private Path spool; // created with the first image
+
+    MemoryChatStore(ImageCache images, Thumbnails thumbnails, Callable<CryptoEngine> crypto) {
+        this.images = images;
+        this.thumbnails = thumbnails;
+        this.crypto = crypto;
+    }
+
+    @Override
+    public Set<String> peers() {
+        return chats.keySet();
+    }
+
+    @Override
+    public void append(String peerIp, String text, Image image, byte[] encoded) {
+        if (encoded == null) {
+            chat(peerIp).add(new Message<>(text, null));
+            return;
+        }
+        try {
+            append(peerIp, text, image, new ByteArrayInputStream(encoded), encoded.length);
+        } catch (Exception e) {
+            LoggerUtil.logError("MemoryChatStore", "append", "Error storing an image from " + peerIp, e);
+        }
+    }
+
+    @Override
+    public void append(String peerIp, String text, Path file, boolean owned) {
+        try (InputStream in = Files.newInputStream(file)) {
+            append(peerIp, text, null, in, Files.size(file));
+        } catch (Exception e) {
+            LoggerUtil.logError("MemoryChatStore", "append", "Error storing an image from " + peerIp, e);
+        } finally {
+            if (owned) {
+                delete(file);
+            }
+        }
+    }
+
+    private void append(String peerIp, String text, Image image, InputStream in, long length) throws Exception {
+        Path file = Files.createTempFile(spool(), "image", ".sealed");
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            SealedBlob.write(crypto.call(), in, length, out);
+        } catch (Exception e) {
+            delete(file);
+            throw e;
+        }
+        files.computeIfAbsent(peerIp, k -> Collections.synchronizedList(new ArrayList<>())).add(file);
+        Object key = new Object();
+        ImageContent content = new ImageContent(key, () -> SealedBlob.open(crypto, map(file)), null, images,
+                thumbnails);
+        if (image != null) {
+            images.put(key, image);
+        }
+        chat(peerIp).add(new Message<>(text, content));
+    }
+
+    private List<Message> chat(String peerIp) {
+        return chats.computeIfAbsent(peerIp, k -> Collections.synchronizedList(new ArrayList<>()));
+    }
+
+    private synchronized Path spool() throws IOException {
+        if (spool == null) {
+            spool = Files.createTempDirectory("secretMessenger-images");
+            spool.toFile().deleteOnExit();
+        }
+        return spool;
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    @Override
+    public int count(String peerIp) {
+        List<Message> chat = chats.get(peerIp);
+        return chat != null ? chat.size() : -1;
+    }
+
+    @Override
+    public List<Message> read(String peerIp, int from, int to) {
+        List<Message> chat = chats.get(peerIp);
+        if (chat == null) {
+            return null;
+        }
+        synchronized (chat) {
+            return new ArrayList<>(chat.subList(Math.min(from, chat.size()), Math.min(to, chat.size())));
+        }
+    }
+
+    @Override
+    public Map<String, String> names() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void rename(String peerIp, String name) {
+        List<Message> chat = chats.get(peerIp);
+        if (chat == null) {
+            return;
+        }
+        synchronized (chat) {
+            chat.stream().filter(m -> m.haveContent()).forEach(m -> {
+                if (!m.getMessage().equals("Tu: "))
+                    m.setMessage(name + ": ");
+            }); // For images
+        }
+    }
+
+    @Override
+    public boolean remove(String peerIp) {
+        List<Message> chat = chats.remove(peerIp);
+        if (chat != null) {
+            synchronized (chat) {
+                for (Message m : chat) {
+                    if (m.getContent() instanceof ImageContent content) {
+                        images.remove(content.getKey());
+                        thumbnails.remove(content.getKey());
+                    }
+                }
+            }
+        }
+        List<Path> sealed = files.remove(peerIp);
+        if (sealed != null) {
+            synchronized (sealed) {
+                sealed.forEach(MemoryChatStore::delete);
+            }
+        }
+        return chat != null;
+    }
+
+    @Override
+    public void close() {
+        for (String peerIp : files.keySet()) {
+            remove(peerIp);
+        }
+        synchronized (this) {
+            if (spool != null) {
+                delete(spool);
+            }
+        }
+    }
+}
@@ -1,20 +1,27 @@
 package msg.model;
 
-import java.io.ByteArrayInputStream;
+import java.awt.Image;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.spec.KeySpec;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import javax.crypto.Cipher;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
-import javax.imageio.ImageIO;
 import msg.config.Config;
+import msg.util.Histogram;
+import msg.util.LoggerUtil;
+import msg.util.Metrics;
 
 /**
  * The Model class is responsible for managing chat data, including storing messages,
@@ -22,17 +29,70 @@ import msg.config.Config;
  */
 @SuppressWarnings("rawtypes")
 public class Model {
+    private static final Histogram ENCRYPT_TIME = Metrics.histogram("model.encryptTime");
+    private static final Histogram DECRYPT_TIME = Metrics.histogram("model.decryptTime");
+    private static final LongAdder MESSAGES = Metrics.counter("model.messagesAdded");
+    private static final LongAdder IMAGE_BYTES = Metrics.counter("model.imageBytesStored");
 
-    private final SecretKey key;
-    private final Map<String, List<Message>> chats = new ConcurrentHashMap<>();
+    private final CompletableFuture<CryptoEngine> crypto = new CompletableFuture<>();
+    private final ImageCache images = new ImageCache(Config.getImageCacheBytes());
+    private final Thumbnails thumbnails = new Thumbnails(Config.getThumbnailCacheBytes(), thumbnailFolder(),
+            Config.getThumbnailDiskCacheBytes(), this::getCrypto);
+    private final ChatStore chats;
     private final Map<String, String> chatNames = new ConcurrentHashMap<>();
 
     /**
-     * Constructs a new Model, initializing the encryption key.
-     * @throws Exception if key derivation fails.
+     * Constructs a new Model and starts deriving the encryption key in the background.
+     * The constructor returns immediately; encryption calls wait for the key if needed.
      */
-    public Model() throws Exception {
-        key = deriveKey(Config.getPassword(), Config.getSalt());
+    public Model() {
+        chats = openStore();
+        chatNames.putAll(chats.names());
+        // Counting the messages of a chat kept on disk means reading it, so the history is tracked by what is added
+        Metrics.gauge("model.chats", () -> chats.peers().size());
+        Metrics.gauge("model.imageCacheBytes", images::getUsedBytes);
+        Metrics.gauge("model.thumbnailCacheBytes", () -> thumbnails.getCache().getUsedBytes());
+        Thread keyThread = new Thread(() -> {
+            try {
+                crypto.complete(new CryptoEngine(loadKey(Config.getPassword(), Config.getSalt())));
+            } catch (Throwable t) {
+                LoggerUtil.logError("Model", "loadKey", "Key derivation failed", t);
+                crypto.completeExceptionally(t);
+            }
+        }, "KeyDerivation");
+        keyThread.setDaemon(true);
+        keyThread.start();
+    }
+
+    private ChatStore openStore() {
+        if (Config.isHistoryEnabled()) {
+            try {
+                return new ChatLog(Paths.get(Config.getHistoryFolder()), this::getCrypto, images, thumbnails);
+            } catch (IOException e) {
+                LoggerUtil.logError("Model", "openStore", "Chat history not available, keeping chats in memory", e);
+            }
+        }
+        return new MemoryChatStore(images, thumbnails, this::getCrypto);
+    }
+
+    // Thumbnails only go to disk along with the history they belong to
+    private static Path thumbnailFolder() {
+        if (Config.isHistoryEnabled() && Config.isThumbnailDiskCacheEnabled()) {
+            return Paths.get(Config.getHistoryFolder(), "thumbnails");
+        }
+        return null;
+    }
+
+    private SecretKey loadKey(String password, byte[] salt) throws Exception {
+        if (!Config.isKeyCacheEnabled()) {
+            return deriveKey(password, salt);
+        }
+        SecretKey key = KeyCache.load(password, salt);
+        if (key == null) {
+            key = deriveKey(password, salt);
+            KeyCache.store(password, salt, key);
+        }
+        return key;
     }
 
     // Deriva una chiave AES-128 forte dalla password
@@ -46,25 +106,75 @@ public class Model {
     /**
      * Encrypts a given string.
      * @param t The string to encrypt.
+     * @param gcm True for AES-GCM, false for the legacy format of older peers.
+     * @return The encrypted byte array.
+     * @throws Exception if encryption fails.
+     */
+    public byte[] encrypt(String t, boolean gcm) throws Exception {
+        return encrypt(t.getBytes(), gcm);
+    }
+
+    /**
+     * Encrypts raw bytes, such as the content of an image.
+     * @param data The bytes to encrypt.
+     * @param gcm True for AES-GCM, false for the legacy format of older peers.
      * @return The encrypted byte array.
      * @throws Exception if encryption fails.
      */
-    public byte[] encrypt(String t) throws Exception {
-        Cipher c = Cipher.getInstance("AES");
-        c.init(Cipher.ENCRYPT_MODE, key);
-        return c.doFinal(t.getBytes());
+    public byte[] encrypt(byte[] data, boolean gcm) throws Exception {
+        CryptoEngine c = getCrypto();
+        long start = System.nanoTime(); // once the key is there
+        byte[] encrypted = gcm ? c.encrypt(data) : c.encryptLegacy(data);
+        ENCRYPT_TIME.recordSince(start);
+        return encrypted;
     }
 
     /**
      * Decrypts a given byte array.
      * @param d The byte array to decrypt.
+     * @param gcm True if the data was encrypted with AES-GCM.
      * @return The decrypted string.
      * @throws Exception if decryption fails.
      */
-    public String decrypt(byte[] d) throws Exception {
-        Cipher c = Cipher.getInstance("AES");
-        c.init(Cipher.DECRYPT_MODE, key);
-        return new String(c.doFinal(d));
+    public String decrypt(byte[] d, boolean gcm) throws Exception {
+        return new String(decryptBytes(d, gcm));
+    }
+
+    /**
+     * Decrypts a given byte array without converting it to text.
+     * @param d The byte array to decrypt.
+     * @param gcm True if the data was encrypted with AES-GCM.
+     * @return The decrypted bytes.
+     * @throws Exception if decryption fails.
+     */
+    public byte[] decryptBytes(byte[] d, boolean gcm) throws Exception {
+        CryptoEngine c = getCrypto();
+        long start = System.nanoTime();
+        byte[] decrypted = gcm ? c.decrypt(d) : c.decryptLegacy(d);
+        DECRYPT_TIME.recordSince(start);
+        return decrypted;
+    }
+
+    /**
+     * Gets the engine used for encryption, for callers working on buffers.
+     * Blocks until the key is available.
+     * @return The crypto engine.
+     * @throws Exception if key derivation failed.
+     */
+    public CryptoEngine getCrypto() throws Exception {
+        try {
+            return crypto.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * @return A stage completing when the encryption key is ready, or exceptionally if derivation failed.
+     */
+    public CompletionStage<Void> keyReady() {
+        return crypto.thenAccept(c -> {
+        });
     }
 
     /**
@@ -78,16 +188,60 @@ public class Model {
 
     /**
      * Adds a message, potentially with image data, to the chat with a specific peer.
+     * The image is kept compressed and only decoded when it is displayed.
      * @param peerIp The IP address of the peer.
      * @param msg The message content (e.g., prefix like "Tu: ").
      * @param data The byte array of the image data, or null if it's a text message.
      */
     public void addMessage(String peerIp, String msg, byte[] data) {
-        List<Message> tmp = chats.computeIfAbsent(peerIp, k -> new ArrayList<>());
-        try {
-            tmp.add(new Message<>(msg, data != null ? ImageIO.read(new ByteArrayInputStream(data)) : null));
-        } catch (IOException e) {
+        MESSAGES.increment();
+        if (data != null) {
+            IMAGE_BYTES.add(data.length);
         }
+        chats.append(peerIp, msg, null, data);
+    }
+
+    /**
+     * Adds an image that has already been decoded for display to the chat with a specific peer.
+     * The message keeps the compressed bytes; the decoded image only goes to the image cache.
+     * @param peerIp The IP address of the peer.
+     * @param msg The message content (e.g., prefix like "Tu: ").
+     * @param image The decoded image.
+     * @param encoded The encoded image bytes.
+     */
+    public void addImage(String peerIp, String msg, Image image, byte[] encoded) {
+        MESSAGES.increment();
+        IMAGE_BYTES.add(encoded.length);
+        chats.append(peerIp, msg, image, encoded);
+    }
+
+    /**
+     * Adds an image kept in a file to the chat with a specific peer.
+     * The file is copied into the chat store in chunks, so it is never loaded in memory whole,
+     * and is only decoded when it is displayed.
+     * @param peerIp The IP address of the peer.
+     * @param msg The message content (e.g., prefix like "Tu: ").
+     * @param file The encoded image.
+     * @param temporary True if the file is deleted once stored; otherwise it is left alone.
+     */
+    public void addImage(String peerIp, String msg, File file, boolean temporary) {
+        MESSAGES.increment();
+        IMAGE_BYTES.add(file.length());
+        chats.append(peerIp, msg, file.toPath(), temporary);
+    }
+
+    /**
+     * @return The cache of decoded images, with its hit and miss statistics.
+     */
+    public ImageCache getImageCache() {
+        return images;
+    }
+
+    /**
+     * @return The thumbnails of chat images, with the statistics of their cache.
+     */
+    public Thumbnails getThumbnails() {
+        return thumbnails;
     }
 
     /**
@@ -96,7 +250,27 @@ public class Model {
      * @return A list of messages for the specified peer, or null if no chat exists.
      */
     public List<Message> getChat(String peerIp) {
-        return chats.get(peerIp);
+        return chats.read(peerIp, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieves part of the chat history for a specific peer, e.g. one page of it.
+     * When the chat history is enabled the messages are read from disk.
+     * @param peerIp The IP address of the peer.
+     * @param from Index of the first message, 0 being the oldest.
+     * @param to Index after the last message.
+     * @return The messages in the range, or null if no chat exists.
+     */
+    public List<Message> getMessages(String peerIp, int from, int to) {
+        return chats.read(peerIp, from, to);
+    }
+
+    /**
+     * @param peerIp The IP address of the peer.
+     * @return Number of messages in the chat with the peer, or -1 if no chat exists.
+     */
+    public int getMessageCount(String peerIp) {
+        return chats.count(peerIp);
     }
 
     /**
@@ -104,7 +278,7 @@ public class Model {
      * @return A set of peer IP strings.
      */
     public Set<String> getPeers() {
-        return chats.keySet();
+        return chats.peers();
     }
 
     /**
@@ -115,10 +289,7 @@ public class Model {
      */
     public void setChatName(String peerIp, String name) {
         chatNames.put(peerIp, name);
-        chats.get(peerIp).stream().filter(m -> m.haveContent()).forEach(m -> {
-            if (!m.getMessage().equals("Tu: "))
-                m.setMessage(name + ": ");
-        }); // For images
+        chats.rename(peerIp, name);
     }
 
     /**
@@ -147,12 +318,21 @@ public class Model {
     public boolean removePeer(String peerIp) {
 
         // Remove chat history
-        List<Message> removedChat = chats.remove(peerIp);
+        boolean removedChat = chats.remove(peerIp);
 
         // Remove chat name
         String removedName = chatNames.remove(peerIp);
 
         // Return true if anything was removed
-        return (removedChat != null || removedName != null);
+        return (removedChat || removedName != null);
+    }
+
+    /**
+     * Writes out the pending chat history. Called when the application closes.
+     */
+    public void close() {
+        chats.close();
+        LoggerUtil.logInfo("Model", "close", "Image cache: " + images);
+        LoggerUtil.logInfo("Model", "close", "Thumbnail cache: " + thumbnails.getCache());
     }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package msg.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.Callable;
+
+/**
+ * Encrypted image bytes that are written and read back in chunks, so they are never held
+ * in memory whole.
+ * <p>
+ * A blob is a random 12 byte id followed by AES-GCM chunks of up to {@value #CHUNK} plain bytes,
+ * each with its own nonce and tag. The id, the index of the chunk and whether it is the last one
+ * are authenticated with every chunk, so chunks cannot be reordered, mixed between blobs or cut
+ * off without the read failing.
+ */
+final class SealedBlob {
+    /** Plain bytes per chunk. */
+    static final int CHUNK = 64 * 1024;
+    private static final int ID_SIZE = 12;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private SealedBlob() {
+    }
+
+    /**
+     * @param length Number of plain bytes.
+     * @return Number of bytes written by {@link #write}.
+     */
+    static long size(long length) {
+        long chunks = Math.max(1, (length + CHUNK - 1) / CHUNK);
+        return ID_SIZE + length + chunks * CryptoEngine.encryptedSize(0);
+    }
+
+    /**
+     * Encrypts bytes read from a stream, one chunk at a time.
+     * @param crypto The engine encrypting the chunks.
+     * @param in The plain bytes, left open.
+     * @param length Number of bytes to read from {@code in}.
+     * @param out Receives {@link #size(long)} bytes.
+     * @throws IOException if {@code in} ends early or writing fails.
+     * @throws GeneralSecurityException if encryption fails.
+     */
+    static void write(CryptoEngine crypto, InputStream in, long length, WritableByteChannel out)
+            throws IOException, GeneralSecurityException {
+        byte[] id = new byte[ID_SIZE];
+        RANDOM.nextBytes(id);
+        writeFully(out, ByteBuffer.wrap(id));
+        byte[] plain = new byte[(int) Math.min(CHUNK, length)];
+        ByteBuffer sealed = ByteBuffer.allocate(CryptoEngine.encryptedSize(plain.length));
+        long left = length;
+        int index = 0;
+        do {
+            int n = (int) Math.min(CHUNK, left);
+            if (in.readNBytes(plain, 0, n) != n) {
+                throw new EOFException("Image ended " + left + " bytes early");
+            }
+            left -= n;
+            sealed.clear();
+            crypto.encrypt(ByteBuffer.wrap(plain, 0, n), sealed, aad(id, index++, left == 0));
+            writeFully(out, sealed.flip());
+        } while (left > 0);
+    }
+
+    /**
+     * Decrypts a blob lazily, one chunk at a time.
+     * @param crypto Supplies the engine decrypting the chunks, may block until the key is ready.
+     * @param sealed The blob, from its position to its limit; it is not modified.
+     * @return The plain bytes. Reads fail with an IOException if the blob was tampered with.
+     * @throws IOException if the blob is truncated or the engine is not available.
+     */
+    static InputStream open(Callable<CryptoEngine> crypto, ByteBuffer sealed) throws IOException {
+        CryptoEngine engine;
+        try {
+            engine = crypto.call();
+        } catch (Exception e) {
+            throw new IOException("Encryption key not available", e);
+        }
+        return new Reader(engine, sealed.duplicate());
+    }
+
+    /**
+     * @param sealed A blob, from its position; it is not modified.
+     * @return The random id of the blob in hex, or null if the blob is truncated.
+     */
+    static String id(ByteBuffer sealed) {
+        if (sealed.remaining() < ID_SIZE) {
+            return null;
+        }
+        byte[] id = new byte[ID_SIZE];
+        sealed.get(sealed.position(), id);
+        return HexFormat.of().formatHex(id);
+    }
+
+    private static byte[] aad(byte[] id, int index, boolean last) {
+        return ByteBuffer.allocate(ID_SIZE + 5).put(id).putInt(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Plain bytes of a blob, decrypted when the previous chunk has been read.
+     */
+    private static final class Reader extends InputStream {
+        private final CryptoEngine crypto;
+        private final ByteBuffer sealed;
+        private final byte[] id = new byte[ID_SIZE];
+        private final ByteBuffer plain = ByteBuffer.allocate(CHUNK).limit(0);
+        private int index = 0;
+
+        Reader(CryptoEngine crypto, ByteBuffer sealed) throws IOException {
+            if (sealed.remaining() < ID_SIZE) {
+                throw new EOFException("Sealed image truncated");
+            }
+            this.crypto = crypto;
+            this.sealed = sealed.get(id);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? plain.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, plain.remaining());
+            plain.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return plain.remaining();
+        }
+
+        private boolean fill() throws IOException {
+            while (!plain.hasRemaining()) {
+                if (!sealed.hasRemaining()) {
+                    return false;
+                }
+                int n = Math.min(CryptoEngine.encryptedSize(CHUNK), sealed.remaining());
+                ByteBuffer chunk = sealed.slice(sealed.position(), n);
+                sealed.position(sealed.position() + n);
+                plain.clear();
+                try {
+                    crypto.decrypt(chunk, plain, aad(id, index++, !sealed.hasRemaining()));
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Sealed image corrupted at chunk " + (index - 1), e);
+                }
+                plain.flip();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package msg.model;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import msg.util.LoggerUtil;
+
+/**
+ * Display-sized copies of chat images, made once and then reused.
+ * <p>
+ * Thumbnails are kept in memory per message, in their own {@link ImageCache}, and optionally
+ * on disk, encrypted, under the random name the chat store gave the image, so finding a thumbnail
+ * never reads the image and its file name tells nothing about it. A thumbnail is only made when both caches
+ * miss, from the decoded image if it is cached, otherwise from a subsampled decode.
+ * <p>
+ * The disk cache has a folder per chat, deleted along with the chat, and a budget: beyond it the
+ * thumbnails shown least recently are deleted, across restarts as their modification time is kept.
+ */
+public final class Thumbnails {
+    private static final String SUFFIX = ".thumb";
+
+    private final ImageCache memory;
+    private final Path disk;
+    private final long diskBudget;
+    private final Callable<CryptoEngine> crypto;
+    private final Set<Integer> widths = ConcurrentHashMap.newKeySet(); // every width asked for so far
+    // Thumbnails on disk and their sizes, least recently used first, guarded by itself
+    private final Map<Path, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskUsed = 0;
+    private boolean scanned = false;
+
+    /**
+     * Constructs a new Thumbnails.
+     * @param budget Memory budget for thumbnails, in bytes.
+     * @param disk Folder for the disk cache, or null to keep thumbnails in memory only.
+     * @param diskBudget Disk budget for thumbnails, in bytes.
+     * @param crypto Supplies the engine encrypting thumbnails on disk.
+     */
+    Thumbnails(long budget, Path disk, long diskBudget, Callable<CryptoEngine> crypto) {
+        this.memory = new ImageCache(budget);
+        this.disk = disk;
+        this.diskBudget = diskBudget;
+        this.crypto = crypto;
+    }
+
+    /**
+     * Gets the thumbnail of an image message, making it if needed.
+     * This may decode and scale the full image, so avoid calling it on the Event Dispatch Thread.
+     * @param content The image message content.
+     * @param width The width of the thumbnail.
+     * @return The thumbnail, or null if the bytes are not a readable image.
+     */
+    BufferedImage get(ImageContent content, int width) {
+        widths.add(width);
+        Object key = Map.entry(content.getKey(), width);
+        BufferedImage thumb = (BufferedImage) memory.get(key);
+        if (thumb != null) {
+            return thumb;
+        }
+        String name = disk != null ? content.getDiskName() : null;
+        Path file = name != null ? disk.resolve(name + "-" + width + SUFFIX) : null;
+        if (file != null) {
+            thumb = load(file);
+        }
+        if (thumb == null) {
+            Image full = content.cached();
+            thumb = full != null ? scale(full, width) : content.preview(width);
+            if (thumb == null) {
+                return null;
+            }
+            if (file != null) {
+                store(file, thumb);
+            }
+        }
+        memory.put(key, thumb);
+        return thumb;
+    }
+
+    /**
+     * Drops the thumbnails of an image from memory, e.g. because its chat was deleted.
+     * Those on disk go with the folder of their chat, see {@link #removeFolder(String)}.
+     * @param key The key of the image, as in {@link ImageContent}.
+     */
+    void remove(Object key) {
+        for (int width : widths) {
+            memory.remove(Map.entry(key, width));
+        }
+    }
+
+    /**
+     * Deletes the thumbnails of a chat from disk.
+     * @param folder The folder of the chat, the first part of the disk names of its images.
+     */
+    void removeFolder(String folder) {
+        if (disk == null) {
+            return;
+        }
+        Path dir = disk.resolve(folder);
+        synchronized (files) {
+            scan();
+            Iterator<Map.Entry<Path, Long>> it = files.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Path, Long> e = it.next();
+                if (e.getKey().startsWith(dir)) {
+                    diskUsed -= e.getValue();
+                    it.remove();
+                }
+            }
+        }
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            LoggerUtil.logWarning("Thumbnails", "removeFolder", "Could not delete thumbnails in " + dir + ": " + e);
+        }
+    }
+
+    /**
+     * @return The memory cache of thumbnails, with its hit and miss statistics.
+     */
+    public ImageCache getCache() {
+        return memory;
+    }
+
+    /**
+     * Scales an image to the given width, keeping its aspect ratio.
+     * Large reductions are done in steps of one half with bilinear filtering, which gives
+     * a quality close to area averaging for a fraction of the cost of SCALE_SMOOTH.
+     * @param src The image to scale, fully loaded.
+     * @param width The target width.
+     * @return The scaled image.
+     */
+    public static BufferedImage scale(Image src, int width) {
+        int w = src.getWidth(null);
+        int h = src.getHeight(null);
+        int height = Math.max(1, (int) ((long) h * width / w));
+        boolean alpha = src instanceof BufferedImage && ((BufferedImage) src).getColorModel().hasAlpha();
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        Image current = src;
+        do {
+            // Halve until one more halving would go below the target, then finish in one step
+            if (w / 2 >= width) {
+                w /= 2;
+                h = Math.max(1, h / 2);
+            } else {
+                w = width;
+                h = height;
+            }
+            BufferedImage step = new BufferedImage(w, h, type);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = step;
+        } while (w != width || h != height);
+        return (BufferedImage) current;
+    }
+
+    /**
+     * Decodes an image at a reduced size and scales it to the given width. Large images are
+     * read with subsampling, keeping only every n-th pixel, so they are never decoded whole.
+     * @param in The encoded image, left open.
+     * @param width The target width.
+     * @return The scaled image, or null if the bytes are not a readable image.
+     * @throws IOException if the image cannot be read.
+     */
+    public static BufferedImage preview(InputStream in, int width) throws IOException {
+        ImageInputStream stream = ImageIO.createImageInputStream(in);
+        if (stream == null) {
+            return null;
+        }
+        try (stream) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                // Keep twice the target width, the last bilinear halving in scale() smooths the subsampling
+                int step = Math.max(1, reader.getWidth(0) / (2 * width));
+                param.setSourceSubsampling(step, step, 0, 0);
+                return scale(reader.read(0, param), width);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private BufferedImage load(Path file) {
+        synchronized (files) {
+            scan();
+            if (files.get(file) == null) { // also marks it as the most recently used
+                return null;
+            }
+        }
+        try {
+            byte[] data = crypto.call().decrypt(Files.readAllBytes(file));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return ImageIO.read(new ByteArrayInputStream(data));
+        } catch (Exception e) {
+            LoggerUtil.logWarning("Thumbnails", "load", "Unreadable thumbnail " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void store(Path file, BufferedImage thumb) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(thumb, thumb.getColorModel().hasAlpha() ? "png" : "jpg", out);
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), "thumb", ".tmp");
+            try {
+                byte[] sealed = crypto.call().encrypt(out.toByteArray());
+                Files.write(tmp, sealed);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                synchronized (files) {
+                    scan();
+                    Long old = files.put(file, (long) sealed.length);
+                    diskUsed += sealed.length - (old != null ? old : 0);
+                    trim();
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (Exception e) {
+            LoggerUtil.logWarning("Thumbnails", "store", "Could not cache thumbnail " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Lists the thumbnails left by earlier sessions, least recently used first; called holding the files lock
+    private void scan() {
+        if (scanned) {
+            return;
+        }
+        scanned = true;
+        if (!Files.isDirectory(disk)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(disk)) {
+            List<Path> found = walk.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).toList();
+            Map<Path, FileTime> used = new LinkedHashMap<>();
+            for (Path p : found) {
+                used.put(p, Files.getLastModifiedTime(p));
+            }
+            found.stream().sorted(Comparator.comparing(used::get)).forEach(p -> {
+                long size = p.toFile().length();
+                files.put(p, size);
+                diskUsed += size;
+            });
+        } catch (IOException e) {
+            LoggerUtil.logWarning("Thumbnails", "scan", "Could not list the thumbnails in " + disk + ": " + e);
+        }
+        trim();
+    }
+
+    // Deletes the least recently used thumbnails beyond the budget; called holding the files lock
+    private void trim() {
+        Iterator<Map.Entry<Path, Long>> it = files.entrySet().iterator();
+        while (diskUsed > diskBudget && it.hasNext()) {
+            Map.Entry<Path, Long> e = it.next();
+            diskUsed -= e.getValue();
+            it.remove();
+            try {
+                Files.deleteIfExists(e.getKey());
+            } catch (IOException ex) {
+                LoggerUtil.logWarning("Thumbnails", "trim", "Could not delete thumbnail " + e.getKey() + ": " + ex);
+            }
+        }
+    }
+}
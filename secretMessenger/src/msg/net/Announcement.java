@@ -0,0 +1,154 @@
+package msg.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What a peer tells the network about itself in its discovery datagrams.
+ * On the wire, big endian:
+ * <pre>
+ * "SMDA" (4) | version (1) | features (1) | listen port (2) | node id (8) | name length (1) | name (UTF-8)
+ * </pre>
+ * Newer versions may append fields after the name; they are ignored here.
+ */
+public final class Announcement {
+    /** Current announcement version. */
+    public static final byte VERSION = 1;
+    /** Longest name sent, in UTF-8 bytes; longer names are cut. */
+    public static final int MAX_NAME = 64;
+
+    private static final byte[] MAGIC = { 'S', 'M', 'D', 'A' };
+    private static final int FIXED_SIZE = MAGIC.length + 1 + 1 + 2 + 8 + 1;
+
+    private final int version;
+    private final int features;
+    private final int listenPort;
+    private final long nodeId;
+    private final String name;
+
+    /**
+     * Constructs a new Announcement of the current version.
+     * @param features The {@code Frame.FEATURE_} bits supported by the peer.
+     * @param listenPort The port the peer accepts connections on.
+     * @param nodeId Identifies the running instance, stable for its lifetime.
+     * @param name The name the peer suggests for its chat.
+     */
+    public Announcement(int features, int listenPort, long nodeId, String name) {
+        this(VERSION, features, listenPort, nodeId, name);
+    }
+
+    private Announcement(int version, int features, int listenPort, long nodeId, String name) {
+        this.version = version;
+        this.features = features;
+        this.listenPort = listenPort;
+        this.nodeId = nodeId;
+        this.name = name;
+    }
+
+    /**
+     * @return The announcement version of the sender.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The {@code Frame.FEATURE_} bits supported by the peer.
+     */
+    public int getFeatures() {
+        return features;
+    }
+
+    /**
+     * @param feature One of the {@code Frame.FEATURE_} bits.
+     * @return True if the peer supports the feature.
+     */
+    public boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
+
+    /**
+     * @return The port the peer accepts connections on.
+     */
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    /**
+     * @return The id of the running instance.
+     */
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return The name the peer suggests for its chat, possibly empty.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Encodes this announcement.
+     * @return The datagram payload.
+     */
+    public byte[] encode() {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int nameLength = Math.min(nameBytes.length, MAX_NAME);
+        // Do not cut a multi-byte character in half
+        while (nameLength > 0 && nameLength < nameBytes.length && (nameBytes[nameLength] & 0xC0) == 0x80) {
+            nameLength--;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(FIXED_SIZE + nameLength);
+        buf.put(MAGIC).put(VERSION).put((byte) features).putShort((short) listenPort).putLong(nodeId);
+        buf.put((byte) nameLength).put(nameBytes, 0, nameLength);
+        return buf.array();
+    }
+
+    /**
+     * Checks whether a datagram starts like an announcement, without consuming it.
+     * @param buf The datagram, between position and limit.
+     * @return True if it carries the announcement magic.
+     */
+    public static boolean isAnnouncement(ByteBuffer buf) {
+        if (buf.remaining() < FIXED_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(buf.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes an announcement, without consuming the buffer.
+     * @param buf The datagram, between position and limit.
+     * @return The announcement, or null if the datagram is not a valid one.
+     */
+    public static Announcement decode(ByteBuffer buf) {
+        if (!isAnnouncement(buf)) {
+            return null;
+        }
+        ByteBuffer in = buf.duplicate();
+        in.position(in.position() + MAGIC.length);
+        int version = in.get() & 0xFF;
+        int features = in.get() & 0xFF;
+        int port = in.getShort() & 0xFFFF;
+        long nodeId = in.getLong();
+        int nameLength = in.get() & 0xFF;
+        if (version < 1 || port == 0 || nameLength > in.remaining()) {
+            return null;
+        }
+        byte[] nameBytes = new byte[nameLength];
+        in.get(nameBytes);
+        return new Announcement(version, features, port, nodeId, new String(nameBytes, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString() {
+        return "Announcement[v" + version + " port=" + listenPort + " node=" + Long.toHexString(nodeId) + " features="
+                + Integer.toHexString(features) + " name=" + name + "]";
+    }
+}
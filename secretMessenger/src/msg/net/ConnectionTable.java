@@ -0,0 +1,176 @@
+package msg.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import msg.util.Metrics;
+
+/**
+ * The connections of a transport, keeping a single duplex connection in use per peer.
+ * <p>
+ * When two peers connect to each other at the same time, each ends up with two connections.
+ * Every connection starts with a HELLO carrying the node id of its sender, so once both
+ * HELLOs of a connection arrived, each side knows which node opened it. Both sides then
+ * keep the connection opened by the node with the larger id and retire the other one:
+ * nothing more is sent on it, its output is shut down once the queued messages are written,
+ * and it closes when the other side did the same. Connections to peers whose HELLO carries
+ * no node id are never retired.
+ * <p>
+ * The transport is told about a peer when its first connection opens and when its last one closes.
+ * @param <L> The connection type of the transport.
+ */
+final class ConnectionTable<L extends ConnectionTable.Link> {
+    private static final LongAdder LIVE_SOCKETS = Metrics.counter("net.liveSockets");
+    private static final LongAdder DUPLICATES = Metrics.counter("net.duplicateConnections");
+
+    /**
+     * One connection to a peer.
+     */
+    abstract static class Link {
+        final String ip;
+        final boolean incoming;
+        volatile boolean retired;
+        Boolean kept; // null until the HELLO of the peer arrived, guarded by the table
+
+        /**
+         * @param ip The IP address of the peer.
+         * @param incoming True if the peer opened the connection.
+         */
+        Link(String ip, boolean incoming) {
+            this.ip = ip;
+            this.incoming = incoming;
+        }
+
+        /**
+         * Stops sending on the connection: the queued messages are still written,
+         * then the output is shut down. Incoming data is still read until the peer closes.
+         */
+        abstract void retire();
+    }
+
+    private final long nodeId;
+    private final Map<String, List<L>> links = new ConcurrentHashMap<>();
+    private final Map<String, L> active = new ConcurrentHashMap<>();
+
+    /**
+     * @param nodeId Our node id, sent in our HELLO.
+     */
+    ConnectionTable(long nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Registers an opened connection.
+     * @param link The connection.
+     * @return True if it is the first connection to its peer.
+     */
+    synchronized boolean add(L link) {
+        LIVE_SOCKETS.increment();
+        List<L> peer = links.computeIfAbsent(link.ip, k -> new ArrayList<>(2));
+        peer.add(link);
+        active.putIfAbsent(link.ip, link);
+        return peer.size() == 1;
+    }
+
+    /**
+     * Unregisters a closed connection. Can be called more than once.
+     * @param link The connection.
+     * @return True if it was the last connection to its peer.
+     */
+    synchronized boolean remove(L link) {
+        List<L> peer = links.get(link.ip);
+        if (peer == null || !peer.remove(link)) {
+            return false;
+        }
+        LIVE_SOCKETS.decrement();
+        if (peer.isEmpty()) {
+            links.remove(link.ip);
+            active.remove(link.ip);
+            return true;
+        }
+        if (active.get(link.ip) == link) {
+            active.put(link.ip, newest(peer));
+        }
+        return false;
+    }
+
+    /**
+     * Looks at a frame received on a connection, settling duplicates once it is a HELLO with a node id.
+     * @param link The connection.
+     * @param frame The received frame.
+     */
+    void onFrame(L link, Frame frame) {
+        byte[] hello = frame.getPayload();
+        if (frame.getType() != Frame.TYPE_HELLO || hello.length < 10) {
+            return;
+        }
+        long peerId = ByteBuffer.wrap(hello, 2, 8).getLong();
+        List<L> losers = new ArrayList<>();
+        synchronized (this) {
+            // The same on both sides: the connection opened by the larger id wins
+            link.kept = link.incoming ? peerId > nodeId : nodeId > peerId;
+            List<L> peer = links.get(link.ip);
+            if (peer == null || peer.size() < 2) {
+                return;
+            }
+            L winner = null;
+            for (L l : peer) {
+                if (Boolean.TRUE.equals(l.kept) && !l.retired) {
+                    winner = l; // the newest, if the peer reconnected meanwhile
+                }
+            }
+            if (winner == null) {
+                return; // the kept connection may not be identified yet
+            }
+            for (L l : peer) {
+                if (l != winner && l.kept != null && !l.retired) {
+                    l.retired = true;
+                    losers.add(l);
+                }
+            }
+            active.put(link.ip, winner);
+        }
+        for (L l : losers) {
+            DUPLICATES.increment();
+            l.retire(); // may write, so outside the lock
+        }
+    }
+
+    /**
+     * @param ip The IP address of the peer.
+     * @return The connection messages to the peer are sent on, or null if there is none.
+     */
+    L active(String ip) {
+        return active.get(ip);
+    }
+
+    /**
+     * @param ip The IP address of the peer.
+     * @return Every connection to the peer, retired ones included.
+     */
+    synchronized List<L> all(String ip) {
+        List<L> peer = links.get(ip);
+        return peer != null ? new ArrayList<>(peer) : List.of();
+    }
+
+    /**
+     * @return Every connection.
+     */
+    synchronized List<L> all() {
+        List<L> all = new ArrayList<>();
+        links.values().forEach(all::addAll);
+        return all;
+    }
+
+    private static <L extends Link> L newest(List<L> peer) {
+        for (int i = peer.size() - 1; i >= 0; i--) {
+            if (!peer.get(i).retired) {
+                return peer.get(i);
+            }
+        }
+        return peer.get(peer.size() - 1);
+    }
+}
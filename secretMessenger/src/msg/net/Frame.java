@@ -0,0 +1,120 @@
+package msg.net;
+
+/**
+ * A single unit exchanged between peers.
+ * On the wire a frame is a fixed 7 byte header followed by the payload:
+ * <pre>
+ * version (1) | type (1) | flags (1) | payload length (4, big endian) | payload
+ * </pre>
+ * The version byte is always below 0x20, so a frame can never be mistaken for a
+ * Base64 text line sent by older peers.
+ */
+public final class Frame {
+    /** Current wire format version. */
+    public static final byte VERSION = 1;
+    /** Size of the frame header in bytes. */
+    public static final int HEADER_SIZE = 7;
+
+    /**
+     * Handshake sent when a connection opens, announces binary frame support.
+     * The payload is a newline, one byte of FEATURE_ bits, then the 8 byte node id of the sender
+     * and a newline, both missing in older versions.
+     */
+    public static final byte TYPE_HELLO = 1;
+    /** Encrypted text message. */
+    public static final byte TYPE_TEXT = 2;
+    /** Encrypted raw image bytes. */
+    public static final byte TYPE_IMAGE = 3;
+    /** Start of a chunked attachment: transfer id, then encrypted size and name. */
+    public static final byte TYPE_FILE_START = 4;
+    /** One chunk of an attachment: transfer id, then encrypted bytes. */
+    public static final byte TYPE_FILE_CHUNK = 5;
+    /** End of an attachment: transfer id only. */
+    public static final byte TYPE_FILE_END = 6;
+    /** Acknowledges a traced message: its message id and sequence number. */
+    public static final byte TYPE_ACK = 7;
+
+    /** Flag: the payload is encrypted with AES-GCM rather than the legacy ECB format. */
+    public static final int FLAG_GCM = 0x01;
+    /** Flag: the payload starts with a trace header (message id, sequence number, send time). */
+    public static final int FLAG_TRACE = 0x02;
+    /** Flag: the sender asks for a {@link #TYPE_ACK} once the traced message is delivered. */
+    public static final int FLAG_ACK = 0x04;
+    /** Flag: the content was deflated before being encrypted. */
+    public static final int FLAG_DEFLATE = 0x08;
+
+    /** HELLO feature bit: the peer decrypts {@link #FLAG_GCM} payloads. */
+    public static final int FEATURE_GCM = 0x01;
+    /** Feature bit: the peer reads binary frames. Implied by any HELLO, useful in an {@link Announcement}. */
+    public static final int FEATURE_BINARY = 0x02;
+    /** Feature bit: the peer understands {@link #FLAG_TRACE} and {@link #FLAG_ACK}. */
+    public static final int FEATURE_TRACE = 0x04;
+    /** Feature bit: the peer inflates {@link #FLAG_DEFLATE} payloads. */
+    public static final int FEATURE_DEFLATE = 0x08;
+
+    private final byte type;
+    private final byte flags;
+    private final byte[] payload;
+    private long readStart; // System.nanoTime(), 0 for frames not received
+    private long readEnd;
+
+    /**
+     * Constructs a new Frame.
+     * @param type One of the TYPE_ constants.
+     * @param flags Type specific flags.
+     * @param payload The payload bytes (not copied).
+     */
+    public Frame(byte type, int flags, byte[] payload) {
+        this.type = type;
+        this.flags = (byte) flags;
+        this.payload = payload;
+    }
+
+    /**
+     * @return The frame type.
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * @return The frame flags.
+     */
+    public byte getFlags() {
+        return flags;
+    }
+
+    /**
+     * @param flag One of the FLAG_ constants.
+     * @return True if the flag is set.
+     */
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * @return The payload bytes.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return When the first byte of a received frame was read, from {@link System#nanoTime()}, or 0.
+     */
+    public long getReadStart() {
+        return readStart;
+    }
+
+    /**
+     * @return When a received frame was complete, from {@link System#nanoTime()}, or 0.
+     */
+    public long getReadEnd() {
+        return readEnd;
+    }
+
+    void setReadTimes(long start, long end) {
+        this.readStart = start;
+        this.readEnd = end;
+    }
+}
@@ -0,0 +1,177 @@
+package msg.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import msg.util.Histogram;
+import msg.util.LoggerUtil;
+import msg.util.Metrics;
+
+/**
+ * Encoding of frames, and incremental decoding of the bytes received on one connection.
+ * Each unit is sniffed by its first byte: a byte below 0x20 starts a binary
+ * {@link Frame}, anything else starts a Base64 text line from an older peer,
+ * which is decoded into a {@link Frame#TYPE_TEXT} frame.
+ * Both kinds may be interleaved on the same connection.
+ */
+final class FrameCodec {
+    /** Largest payload accepted in a single frame. */
+    static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+    // The header alone does not reserve more than this, the buffer grows as the payload arrives
+    private static final int INITIAL_PAYLOAD = 64 * 1024;
+    private static final Histogram BASE64_DECODE = Metrics.histogram("net.base64Decode");
+    private static final LongAdder BYTES_IN = Metrics.counter("net.bytesIn"); // as read, whatever the encoding
+
+    private enum State { IDLE, LINE, HEADER, PAYLOAD }
+
+    private final String ip;
+    private final Consumer<Frame> sink;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final byte[] header = new byte[Frame.HEADER_SIZE];
+    private State state = State.IDLE;
+    private int headerFill;
+    private byte[] payload;
+    private int payloadLength;
+    private int payloadFill;
+    private long readStart; // when the first byte of the current unit was read
+
+    FrameCodec(String ip, Consumer<Frame> sink) {
+        this.ip = ip;
+        this.sink = sink;
+    }
+
+    /**
+     * Feeds received bytes, emitting every frame completed by them.
+     * @param data The buffer holding the bytes.
+     * @param off Offset of the first byte.
+     * @param len Number of bytes.
+     * @throws IOException if the stream is not a valid frame sequence.
+     */
+    void feed(byte[] data, int off, int len) throws IOException {
+        BYTES_IN.add(len);
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            switch (state) {
+            case IDLE:
+                byte first = data[i];
+                if (first == '\n' || first == '\r') {
+                    i++; // stray line terminator
+                } else {
+                    state = first < 0x20 && first >= 0 ? State.HEADER : State.LINE;
+                    readStart = System.nanoTime();
+                }
+                break;
+            case LINE:
+                int start = i;
+                while (i < end && data[i] != '\n') {
+                    i++;
+                }
+                line.write(data, start, i - start);
+                if (i < end) {
+                    i++; // consume '\n'
+                    emitLine();
+                    state = State.IDLE;
+                }
+                break;
+            case HEADER:
+                int h = Math.min(Frame.HEADER_SIZE - headerFill, end - i);
+                System.arraycopy(data, i, header, headerFill, h);
+                headerFill += h;
+                i += h;
+                if (headerFill == Frame.HEADER_SIZE) {
+                    startPayload();
+                }
+                break;
+            case PAYLOAD:
+                int p = Math.min(payloadLength - payloadFill, end - i);
+                if (payloadFill + p > payload.length) {
+                    int grown = Math.max(payloadFill + p, payload.length * 2);
+                    payload = Arrays.copyOf(payload, Math.min(payloadLength, grown));
+                }
+                System.arraycopy(data, i, payload, payloadFill, p);
+                payloadFill += p;
+                i += p;
+                if (payloadFill == payloadLength) {
+                    emitFrame();
+                }
+                break;
+            }
+        }
+    }
+
+    private void startPayload() throws IOException {
+        if (header[0] != Frame.VERSION) {
+            throw new IOException("Unsupported frame version " + header[0] + " from " + ip);
+        }
+        int length = ByteBuffer.wrap(header, 3, 4).getInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length " + length + " from " + ip);
+        }
+        payload = new byte[Math.min(length, INITIAL_PAYLOAD)];
+        payloadLength = length;
+        payloadFill = 0;
+        state = State.PAYLOAD;
+        if (length == 0) {
+            emitFrame();
+        }
+    }
+
+    private void emitFrame() {
+        Frame frame = new Frame(header[1], header[2], payload);
+        frame.setReadTimes(readStart, System.nanoTime());
+        payload = null;
+        headerFill = 0;
+        state = State.IDLE;
+        sink.accept(frame);
+    }
+
+    private void emitLine() {
+        String text = line.toString(StandardCharsets.US_ASCII).trim();
+        line.reset();
+        if (text.isEmpty()) {
+            return;
+        }
+        long read = System.nanoTime();
+        Frame frame;
+        try {
+            frame = new Frame(Frame.TYPE_TEXT, 0, Base64.getDecoder().decode(text));
+        } catch (IllegalArgumentException e) {
+            LoggerUtil.logWarning("FrameCodec", "emitLine", "Discarding malformed line from " + ip);
+            return;
+        }
+        BASE64_DECODE.recordSince(read);
+        frame.setReadTimes(readStart, read);
+        sink.accept(frame);
+    }
+
+    /**
+     * Encodes a frame header.
+     * @param frame The frame whose header is needed.
+     * @return A buffer ready to be written, followed on the wire by the payload.
+     */
+    static ByteBuffer header(Frame frame) {
+        ByteBuffer buf = ByteBuffer.allocate(Frame.HEADER_SIZE);
+        buf.put(Frame.VERSION).put(frame.getType()).put(frame.getFlags()).putInt(frame.getPayload().length);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Encodes a frame as a Base64 text line understood by older peers.
+     * @param frame The frame whose payload is sent.
+     * @return A buffer ready to be written.
+     */
+    static ByteBuffer line(Frame frame) {
+        byte[] b64 = Base64.getEncoder().encode(frame.getPayload());
+        ByteBuffer buf = ByteBuffer.allocate(b64.length + 1);
+        buf.put(b64).put((byte) '\n');
+        buf.flip();
+        return buf;
+    }
+}
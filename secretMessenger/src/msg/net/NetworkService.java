@@ -2,8 +2,13 @@ package msg.net;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import msg.util.Histogram;
 import msg.util.LoggerUtil;
+import msg.util.Metrics;
 
 /**
  * The NetworkService class is responsible for managing network connections to peers.
@@ -13,16 +18,29 @@ import msg.util.LoggerUtil;
  */
 public class NetworkService {
 
+    /**
+     * How messages are put on the wire.
+     */
+    public enum WireFormat {
+        /** Binary frames to peers that announced them with a HELLO, Base64 lines to the others. */
+        AUTO,
+        /** Base64 text lines only, as spoken by older versions. No HELLO is sent. */
+        TEXT,
+        /** Binary frames only. */
+        BINARY
+    }
+
     /**
      * Interface for listeners to be notified of network events.
      */
     public interface MessageListener {
         /**
          * Called when a message is received from a peer.
+         * Base64 lines from older peers are delivered as {@link Frame#TYPE_TEXT} frames.
          * @param senderIp The IP address of the sender.
-         * @param base64Message The Base64 encoded message content.
+         * @param frame The received frame, holding the encrypted payload.
          */
-        void onMessageReceived(String senderIp, String base64Message);
+        void onMessageReceived(String senderIp, Frame frame);
         /**
          * Called when a connection event occurs (e.g., connection established, failed, or dropped).
          * @param ip The IP address of the peer involved in the event.
@@ -39,262 +57,359 @@ public class NetworkService {
         void onPeerStatusChange(String ip, boolean online); // Nuovo metodo per notificare lo stato del peer
     }
 
+    // Features announced in our HELLO and discovery announcements
+    private static final int FEATURES = Frame.FEATURE_GCM | Frame.FEATURE_BINARY | Frame.FEATURE_TRACE
+            | Frame.FEATURE_DEFLATE;
+
+    private static final LongAdder BYTES_OUT = Metrics.counter("net.bytesOut");
+    private static final LongAdder MESSAGES_IN = Metrics.counter("net.messagesIn");
+    private static final LongAdder MESSAGES_OUT = Metrics.counter("net.messagesOut");
+    private static final LongAdder SEND_FAILURES = Metrics.counter("net.sendFailures");
+    private static final LongAdder CONNECTS = Metrics.counter("net.connects");
+    private static final LongAdder RECONNECTS = Metrics.counter("net.reconnects");
+    private static final LongAdder CONNECT_FAILURES = Metrics.counter("net.connectFailures");
+    private static final Histogram CONNECT_TIME = Metrics.histogram("net.connectTime");
+    // Timeout of a single connection attempt
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+
+    private final InetAddress bindAddress;
     private final int listenPort;
     private final MessageListener listener;
-    private final ConcurrentMap<String, Socket> outgoing = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, BufferedWriter> outWriters = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, Socket> incoming = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, BufferedWriter> inWriters = new ConcurrentHashMap<>();
+    private final Transport transport;
+    private final PeerConnector connector = new PeerConnector(this::connectOnce, this::connectRejected);
     private final ConcurrentMap<String, Boolean> peerStatus = new ConcurrentHashMap<>(); // Mappa per tracciare lo stato dei peer
-    private boolean running = false;
+    private final ConcurrentMap<String, Integer> peerFeatures = new ConcurrentHashMap<>(); // peers that sent a HELLO
+    private final ConcurrentMap<String, Announcement> announced = new ConcurrentHashMap<>(); // from discovery
+    private final long nodeId = new SecureRandom().nextLong();
+    private volatile WireFormat wireFormat = WireFormat.AUTO;
 
     /**
-     * Constructs a new NetworkService.
+     * Constructs a new NetworkService using the classic thread-per-connection transport.
      * @param listenPort The port number to listen on for incoming connections.
      * @param listener The listener to be notified of network events.
      */
     public NetworkService(int listenPort, MessageListener listener) {
+        this(listenPort, listener, 0);
+    }
+
+    /**
+     * Constructs a new NetworkService.
+     * @param listenPort The port number to listen on for incoming connections.
+     * @param listener The listener to be notified of network events.
+     * @param selectorThreads Number of selector event-loop threads serving all peers,
+     *                        or 0 to use one blocking reader thread per connection.
+     */
+    public NetworkService(int listenPort, MessageListener listener, int selectorThreads) {
+        this(null, listenPort, listener, selectorThreads);
+    }
+
+    /**
+     * Constructs a new NetworkService bound to one local address, e.g. to run several
+     * instances on the loopback addresses of a single machine. Peers see this address
+     * as our IP, whether they connect to us or we connect to them.
+     * @param bindAddress The local address to listen on and connect from, or null for every address.
+     * @param listenPort The port number to listen on for incoming connections.
+     * @param listener The listener to be notified of network events.
+     * @param selectorThreads Number of selector event-loop threads serving all peers,
+     *                        or 0 to use one blocking reader thread per connection.
+     */
+    public NetworkService(InetAddress bindAddress, int listenPort, MessageListener listener, int selectorThreads) {
+        this.bindAddress = bindAddress;
         this.listenPort = listenPort;
         this.listener = listener;
+        Transport.Handler handler = new TransportHandler();
+        this.transport = selectorThreads > 0 ? new SelectorTransport(selectorThreads, nodeId, handler)
+                : new SocketTransport(nodeId, handler);
+    }
+
+    /**
+     * Sets the wire format used for outgoing messages. Incoming frames and lines
+     * are always understood.
+     * @param wireFormat The wire format to use.
+     */
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    /**
+     * Checks if messages to a peer are sent as binary frames.
+     * Only binary peers can receive {@link Frame#TYPE_IMAGE} frames.
+     * @param ip The IP address of the peer.
+     * @return True if the peer receives binary frames.
+     */
+    public boolean isBinaryPeer(String ip) {
+        return wireFormat == WireFormat.BINARY
+                || (wireFormat == WireFormat.AUTO && (peerFeatures.containsKey(ip) || announcedFeature(ip, Frame.FEATURE_BINARY)));
+    }
+
+    /**
+     * Checks if a peer announced a feature, in its HELLO or else in its discovery announcement.
+     * @param ip The IP address of the peer.
+     * @param feature One of the {@code Frame.FEATURE_} bits.
+     * @return True if the peer supports the feature.
+     */
+    public boolean hasFeature(String ip, int feature) {
+        if (wireFormat == WireFormat.TEXT) {
+            return false;
+        }
+        Integer features = peerFeatures.get(ip);
+        return features != null ? (features & feature) != 0 : announcedFeature(ip, feature);
+    }
+
+    private boolean announcedFeature(String ip, int feature) {
+        Announcement info = announced.get(ip);
+        return info != null && info.hasFeature(feature);
+    }
+
+    /**
+     * Records what a peer announced through discovery, so that connections go to its
+     * listen port and use its features from the first message.
+     * @param ip The IP address of the peer.
+     * @param info The announcement of the peer.
+     */
+    public void onPeerAnnounced(String ip, Announcement info) {
+        announced.put(ip, info);
+    }
+
+    /**
+     * Builds the discovery announcement of this instance.
+     * @param name The name suggested to other peers for our chat.
+     * @return The announcement.
+     */
+    public Announcement createAnnouncement(String name) {
+        return new Announcement(wireFormat == WireFormat.TEXT ? 0 : FEATURES, listenPort, nodeId, name);
+    }
+
+    /**
+     * @return The random id of this instance, fixed for its lifetime.
+     */
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    // The announced port of the peer, or ours: peers used to all listen on the same one
+    private int portOf(String ip) {
+        Announcement info = announced.get(ip);
+        return info != null ? info.getListenPort() : listenPort;
     }
 
     /**
      * Starts the network service, beginning to listen for incoming connections.
      */
     public void start() {
-        running = true;
-        Thread listenerThread = new Thread(this::listen);
-        listenerThread.setDaemon(true);
-        listenerThread.start();
-    }
-
-    private void listen() {
-        try (ServerSocket serverSocket = new ServerSocket(listenPort)) {
-            while (running) {
-                Socket socket = serverSocket.accept();
-                String ip = socket.getInetAddress().getHostAddress();
-                addIncomingConnection(ip, socket);
-                startReaderThread(ip, socket);
-            }
-        } catch (Exception e) {
-            LoggerUtil.logError("NetworkService", "listen", "Error in listener thread", e);
+        transport.start(bindAddress, listenPort);
+    }
+
+    /**
+     * Stops listening and closes every peer connection.
+     */
+    public void stop() {
+        connector.close();
+        transport.shutdown();
+    }
+
+    /**
+     * Sets up the circuit breakers of outgoing connections: once the attempts to connect to a peer
+     * failed that many times in a row, connecting to it fails at once until the cool-down is over.
+     * @param maxFailures Failed attempts in a row that open the breaker of a peer.
+     * @param openMs How long an open breaker refuses to connect, in milliseconds.
+     */
+    public void setCircuitBreaker(int maxFailures, long openMs) {
+        connector.setBreaker(maxFailures, openMs);
+    }
+
+    /**
+     * Connects to a peer without blocking the caller, with a single attempt.
+     * @param ip The IP address of the peer to connect to.
+     * @return Completed once connected, or exceptionally if the peer can not be reached.
+     * @see #connectAsync(String, int, long)
+     */
+    public CompletableFuture<Void> connectAsync(String ip) {
+        return connectAsync(ip, 1, 0);
+    }
+
+    /**
+     * Connects to a peer without blocking the caller. Failed attempts are retried after a
+     * jittered exponential backoff; every attempt is reported to the listener.
+     * Requests made while the peer is being connected to share the attempts in progress and
+     * are completed in the order they were made, so callers can keep their messages in order.
+     * @param ip The IP address of the peer to connect to.
+     * @param maxAttempts The maximum number of connection attempts.
+     * @param delayMs The delay in milliseconds before the second attempt, about doubled for each following one.
+     * @return Completed once connected, or already if the connection is established and valid;
+     *         completed exceptionally if every attempt failed or the circuit breaker of the peer is open.
+     */
+    public CompletableFuture<Void> connectAsync(String ip, int maxAttempts, long delayMs) {
+        if (!connector.isConnecting(ip) && transport.isAlive(ip)) {
+            markOnline(ip);
+            return CompletableFuture.completedFuture(null);
         }
+        return connector.connect(ip, maxAttempts, delayMs);
     }
 
     /**
-     * Attempts to connect to a peer at the specified IP address.
+     * Attempts to connect to a peer at the specified IP address, blocking until it is done.
      * Notifies the listener of connection success or failure.
      * @param ip The IP address of the peer to connect to.
      * @return True if the connection was successful or already established and valid, false otherwise.
+     * @see #connectAsync(String)
      */
     public boolean connectToPeer(String ip) {
-        if (outgoing.containsKey(ip)) {
-            // Already connected, check if connection is still valid
-            if (isConnectionValid(outgoing.get(ip))) {
-                // Connection is valid, ensure status is set to online
-                if (peerStatus.getOrDefault(ip, false) == false) {
-                    peerStatus.put(ip, true);
-                    if (listener != null) {
-                        listener.onPeerStatusChange(ip, true);
-                    }
-                }
-                return true;
-            } else {
-                // Connection is dead, remove it so we can try again
-                removePeer(ip);
-            }
-        }
-
-        try {
-            // Add a timeout to prevent long hangs on invalid IPs
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(ip, listenPort), 3000); // 3 second timeout
-            addOutgoingConnection(ip, socket);
-            startReaderThread(ip, socket);
-
-            // Notify listener about successful connection
-            if (listener != null) {
-                listener.onConnectionEvent(ip, true, "Connesso a " + ip);// if i put another params -> new Object() it will show on view
-            }
-            return true;
-        } catch (UnknownHostException e) {
-            // Handle when hostname can't be resolved (e.g., when a name is entered instead of IP)
-            if (listener != null) {
-                listener.onConnectionEvent(ip, false, "Host non trovato: " + ip);// We check the ip is valid
-                // Ensure peer status is set to offline
-                peerStatus.put(ip, false);
-                listener.onPeerStatusChange(ip, false);
-            }
-            LoggerUtil.logError("NetworkService", "connectToPeer", "Unknown host: " + ip, e);
-            return false;
-        } catch (ConnectException e) {
-            // Handle connection refused (peer not listening or firewall)
-            if (listener != null) {
-                listener.onConnectionEvent(ip, false, "Connessione rifiutata a " + ip);
-                // Ensure peer status is set to offline
-                peerStatus.put(ip, false);
-                listener.onPeerStatusChange(ip, false);
-            }
-            LoggerUtil.logError("NetworkService", "connectToPeer", "Connection refused to: " + ip, e);
-            return false;
-        } catch (SocketTimeoutException e) {
-            // Handle timeout (no response)
-            if (listener != null) {
-                listener.onConnectionEvent(ip, false, "Timeout connessione a " + ip);
-                // Ensure peer status is set to offline
-                peerStatus.put(ip, false);
-                listener.onPeerStatusChange(ip, false);
-            }
-            LoggerUtil.logError("NetworkService", "connectToPeer", "Connection timeout to: " + ip, e);
-            return false;
-        } catch (Exception e) {
-            // Handle other errors
-            if (listener != null) {
-                listener.onConnectionEvent(ip, false, "Errore connessione a " + ip + ": " + e.getMessage());
-                // Ensure peer status is set to offline
-                peerStatus.put(ip, false);
-                listener.onPeerStatusChange(ip, false);
-            }
-            LoggerUtil.logError("NetworkService", "connectToPeer", "Error connecting to: " + ip, e);
-            return false;
-        }
+        return await(connectAsync(ip));
     }
 
     /**
-     * Attempts to connect to a peer with a specified number of retries and delay.
+     * Attempts to connect to a peer with a specified number of retries, blocking until it is done.
      * @param ip The IP address of the peer to connect to.
      * @param maxAttempts The maximum number of connection attempts.
-     * @param delayMs The delay in milliseconds between attempts.
+     * @param delayMs The delay in milliseconds before the second attempt, about doubled for each following one.
      * @return True if the connection was successful, false otherwise.
+     * @see #connectAsync(String, int, long)
      */
     public boolean connectToPeerWithRetry(String ip, int maxAttempts, long delayMs) {
         if (isPeerConnected(ip)) {
             LoggerUtil.logInfo("NetworkService", "connectToPeerWithRetry", "Already connected to " + ip);
             return true;
         }
+        if (await(connectAsync(ip, maxAttempts, delayMs))) {
+            return true;
+        }
+        LoggerUtil.logWarning("NetworkService", "connectToPeerWithRetry",
+                "Failed to connect to " + ip + " after at most " + maxAttempts + " attempts");
+        return false;
+    }
 
-        int attempts = 0;
-        while (attempts < maxAttempts) {
-            attempts++;
-            LoggerUtil.logInfo("NetworkService", "connectToPeerWithRetry",
-                    "Attempt " + attempts + "/" + maxAttempts + " to connect to " + ip);
+    private static boolean await(CompletableFuture<Void> connected) {
+        try {
+            connected.get();
+            return true;
+        } catch (ExecutionException e) {
+            return false; // already reported
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-            if (connectToPeer(ip)) {
-                return true;
+    // One connection attempt, made by the connector
+    private CompletableFuture<Void> connectOnce(String ip) {
+        if (transport.hasLink(ip)) {
+            // Already connected, in either direction: check if connection is still valid
+            if (transport.isAlive(ip)) {
+                markOnline(ip);
+                return CompletableFuture.completedFuture(null);
             }
+            // Connection is dead, remove it so we can try again
+            removePeer(ip);
+        }
 
-            if (attempts < maxAttempts) {
-                try {
-                    Thread.sleep(delayMs);
-                } catch (InterruptedException e) {
-                    LoggerUtil.logError("NetworkService", "connectToPeerWithRetry",
-                            "Interrupted while waiting to retry connection to " + ip, e);
-                    Thread.currentThread().interrupt();
-                    return false;
-                }
+        long start = System.nanoTime();
+        boolean known = peerStatus.containsKey(ip);
+        return transport.connect(ip, portOf(ip), CONNECT_TIMEOUT_MS).whenComplete((connected, error) -> {
+            if (error != null) {
+                connectFailed(ip, error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            CONNECT_TIME.recordSince(start);
+            CONNECTS.increment();
+            if (known) {
+                RECONNECTS.increment(); // connected to this peer before, or it to us
             }
-        }
 
-        LoggerUtil.logWarning("NetworkService", "connectToPeerWithRetry",
-                "Failed to connect to " + ip + " after " + maxAttempts + " attempts");
-        return false;
+            // Notify listener about successful connection
+            if (listener != null) {
+                listener.onConnectionEvent(ip, true, "Connesso a " + ip);// if i put another params -> new Object() it will show on view
+            }
+        });
     }
 
-    /**
-     * Sends a Base64 encoded message to the specified peer.
-     * @param ip The IP address of the peer to send the message to.
-     * @param base64Message The Base64 encoded message.
-     * @return True if the message was sent successfully.
-     * @throws IOException if there is no active connection to the peer or if a send error occurs.
-     */
-    public boolean sendMessage(String ip, String base64Message) throws IOException {
-        BufferedWriter w = outWriters.get(ip);
-        if (w == null)
-            w = inWriters.get(ip); // fallback su incoming
-
-        if (w != null) {
-            try {
-                w.write(base64Message);
-                w.newLine();
-                w.flush();
-                return true;
-            } catch (IOException e) {
-                // Handle disconnected peer during send
-                removePeer(ip);
-                if (listener != null) {
-                    listener.onConnectionEvent(ip, false, "Peer disconnesso durante l'invio: " + ip);
-                    //NOtifica gia gestitia
-                    listener.onPeerStatusChange(ip, false);
-                }
-                throw new IOException("Nessuna connessione attiva verso " + ip);
-            }
+    private void connectFailed(String ip, Throwable e) {
+        CONNECT_FAILURES.increment();
+        String message;
+        if (e instanceof UnknownHostException) {
+            // Handle when hostname can't be resolved (e.g., when a name is entered instead of IP)
+            message = "Host non trovato: " + ip;
+            LoggerUtil.logError("NetworkService", "connectToPeer", "Unknown host: " + ip, e);
+        } else if (e instanceof ConnectException) {
+            // Handle connection refused (peer not listening or firewall)
+            message = "Connessione rifiutata a " + ip;
+            LoggerUtil.logError("NetworkService", "connectToPeer", "Connection refused to: " + ip, e);
+        } else if (e instanceof SocketTimeoutException) {
+            // Handle timeout (no response)
+            message = "Timeout connessione a " + ip;
+            LoggerUtil.logError("NetworkService", "connectToPeer", "Connection timeout to: " + ip, e);
         } else {
-            throw new IOException("Nessuna connessione attiva verso " + ip);
+            // Handle other errors
+            message = "Errore connessione a " + ip + ": " + e.getMessage();
+            LoggerUtil.logError("NetworkService", "connectToPeer", "Error connecting to: " + ip, e);
         }
+        notifyOffline(ip, message);
     }
 
-    private void addOutgoingConnection(String ip, Socket socket) throws IOException {
-        outgoing.put(ip, socket);
-        outWriters.put(ip, new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
-        
-        // Update peer status to online
-        peerStatus.put(ip, true);
-        
-        // Notify listener about online status
-        if (listener != null) {
-            listener.onPeerStatusChange(ip, true);
-        }
+    // Refused by the circuit breaker: nothing was attempted, the last failures were reported already
+    private void connectRejected(String ip, long retryMs) {
+        notifyOffline(ip, "Peer non raggiungibile, nuovo tentativo tra " + (retryMs + 999) / 1000 + " s");
     }
 
-    private void addIncomingConnection(String ip, Socket socket) throws IOException {
-        incoming.put(ip, socket);
-        inWriters.put(ip, new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
-
-        // Update peer status to online
-        peerStatus.put(ip, true);
-        
-        // Notify listener about new incoming connection
+    private void notifyOffline(String ip, String message) {
         if (listener != null) {
-            listener.onConnectionEvent(ip, true, "Online " + ip, new Object());
-            listener.onPeerStatusChange(ip, true); // Notify about online status
+            listener.onConnectionEvent(ip, false, message);
+            // Ensure peer status is set to offline
+            peerStatus.put(ip, false);
+            listener.onPeerStatusChange(ip, false);
         }
     }
 
-    private void startReaderThread(String ip, Socket socket) {
-        new Thread(() -> {
-            try (BufferedReader r = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-                String line;
-                while ((line = r.readLine()) != null) {
-                    listener.onMessageReceived(ip, line);
-                }
-            } catch (Exception e) {
-                LoggerUtil.logError("NetworkService", "startReaderThread", "Error in reader thread for: " + ip, e);
-            } finally {
-                // Handle disconnection when reader thread ends
-                removePeer(ip);
-                if (listener != null) {
-                    listener.onConnectionEvent(ip, false, "Peer disconnesso: " + ip);
-                    listener.onPeerStatusChange(ip, false); // Notify about offline status
-                }
+    // Connection is valid, ensure status is set to online
+    private void markOnline(String ip) {
+        if (peerStatus.getOrDefault(ip, false) == false) {
+            peerStatus.put(ip, true);
+            if (listener != null) {
+                listener.onPeerStatusChange(ip, true);
             }
-        }, "Reader-" + ip).start();
+        }
     }
 
-    // Helper methods for connection management
-
-    private boolean isConnectionValid(Socket socket) {
-        if (socket == null || socket.isClosed() || !socket.isConnected()) {
-            return false;
+    /**
+     * Sends a frame to the specified peer.
+     * Peers that have not announced binary support receive the payload as a Base64 text line.
+     * @param ip The IP address of the peer to send the message to.
+     * @param frame The frame holding the encrypted message.
+     * @return True if the message was sent successfully.
+     * @throws IOException if there is no active connection to the peer or if a send error occurs.
+     */
+    public boolean sendMessage(String ip, Frame frame) throws IOException {
+        ByteBuffer[] data;
+        if (isBinaryPeer(ip)) {
+            data = new ByteBuffer[] { FrameCodec.header(frame), ByteBuffer.wrap(frame.getPayload()) };
+        } else if (frame.getType() == Frame.TYPE_TEXT && frame.getFlags() == 0) {
+            data = new ByteBuffer[] { FrameCodec.line(frame) };
+        } else {
+            throw new IOException("Il peer " + ip + " non supporta questo tipo di messaggio");
         }
-
-        // Additional check: try to read socket state (won't block but will detect
-        // closed sockets)
+        boolean sent;
         try {
-            socket.getOutputStream().flush(); // Try flushing to test connection
-            return true;
+            sent = transport.send(ip, data);
         } catch (IOException e) {
-            return false; // Connection is broken
+            SEND_FAILURES.increment();
+            // Handle disconnected peer during send
+            removePeer(ip);
+            if (listener != null) {
+                listener.onConnectionEvent(ip, false, "Peer disconnesso durante l'invio: " + ip);
+                //NOtifica gia gestitia
+                listener.onPeerStatusChange(ip, false);
+            }
+            throw new IOException("Nessuna connessione attiva verso " + ip);
         }
+        if (!sent) {
+            SEND_FAILURES.increment();
+            throw new IOException("Nessuna connessione attiva verso " + ip);
+        }
+        MESSAGES_OUT.increment();
+        for (ByteBuffer buf : data) {
+            BYTES_OUT.add(buf.limit()); // written from position 0 by the transport
+        }
+        return true;
     }
 
     /**
@@ -303,26 +418,9 @@ public class NetworkService {
      * @param ip The IP address of the peer to remove.
      */
     public void removePeer(String ip) {
-        // Clean up outgoing connection
-        Socket outSocket = outgoing.remove(ip);
-        if (outSocket != null) {
-            try {
-                outSocket.close();
-            } catch (IOException e) {
-                /* ignore */ }
-        }
-        outWriters.remove(ip);
-
-        // Clean up incoming connection
-        Socket inSocket = incoming.remove(ip);
-        if (inSocket != null) {
-            try {
-                inSocket.close();
-            } catch (IOException e) {
-                /* ignore */ }
-        }
-        inWriters.remove(ip);
-        
+        transport.close(ip);
+        peerFeatures.remove(ip);
+
         // Update peer status to offline
         peerStatus.put(ip, false);
         
@@ -333,13 +431,21 @@ public class NetworkService {
     }
 
     /**
-     * Checks if there is an active and valid connection (either outgoing or incoming) to the specified peer.
+     * Checks if there is an active and valid connection (opened by either side) to the specified peer.
      * @param ip The IP address of the peer.
      * @return True if a valid connection exists, false otherwise.
      */
     public boolean isPeerConnected(String ip) {
-        return (outgoing.containsKey(ip) && isConnectionValid(outgoing.get(ip))) ||
-                (incoming.containsKey(ip) && isConnectionValid(incoming.get(ip)));
+        return transport.isAlive(ip);
+    }
+
+    /**
+     * Gets the number of messages queued for a peer that have not been written to the socket yet.
+     * @param ip The IP address of the peer.
+     * @return The send queue depth, 0 if there is no connection.
+     */
+    public int getQueueDepth(String ip) {
+        return transport.queueDepth(ip);
     }
 
     /**
@@ -352,4 +458,68 @@ public class NetworkService {
         Boolean status = peerStatus.get(ip);
         return status != null && status && isPeerConnected(ip);
     }
-}
\ No newline at end of file
+
+    /**
+     * Bridges transport events to peer status tracking and the MessageListener.
+     */
+    private class TransportHandler implements Transport.Handler {
+        @Override
+        public ByteBuffer[] hello() {
+            if (wireFormat == WireFormat.TEXT) {
+                return null;
+            }
+            // The newlines make older peers read the HELLO as malformed lines and move on
+            ByteBuffer payload = ByteBuffer.allocate(11).put((byte) '\n').put((byte) FEATURES).putLong(nodeId)
+                    .put((byte) '\n');
+            Frame hello = new Frame(Frame.TYPE_HELLO, 0, payload.array());
+            return new ByteBuffer[] { FrameCodec.header(hello), ByteBuffer.wrap(hello.getPayload()) };
+        }
+
+        @Override
+        public void onOpened(String ip, boolean incoming) {
+            connector.reset(ip); // reachable after all
+            // Update peer status to online
+            peerStatus.put(ip, true);
+
+            if (listener != null) {
+                if (incoming) {
+                    // Notify listener about new incoming connection
+                    listener.onConnectionEvent(ip, true, "Online " + ip, new Object());
+                }
+                listener.onPeerStatusChange(ip, true); // Notify about online status
+            }
+        }
+
+        @Override
+        public void onFrame(String ip, Frame frame) {
+            switch (frame.getType()) {
+            case Frame.TYPE_HELLO:
+                byte[] hello = frame.getPayload();
+                peerFeatures.put(ip, hello.length > 1 ? hello[1] & 0xFF : 0);
+                break;
+            case Frame.TYPE_TEXT:
+            case Frame.TYPE_IMAGE:
+            case Frame.TYPE_FILE_START:
+            case Frame.TYPE_FILE_CHUNK:
+            case Frame.TYPE_FILE_END:
+            case Frame.TYPE_ACK:
+                MESSAGES_IN.increment();
+                listener.onMessageReceived(ip, frame);
+                break;
+            default:
+                // Unknown types come from newer peers, skip them
+                LoggerUtil.logWarning("NetworkService", "onFrame", "Ignoring frame of type " + frame.getType() + " from " + ip);
+            }
+        }
+
+        @Override
+        public void onClosed(String ip) {
+            // Handle disconnection when the connection ends
+            removePeer(ip);
+            if (listener != null) {
+                listener.onConnectionEvent(ip, false, "Peer disconnesso: " + ip);
+                listener.onPeerStatusChange(ip, false); // Notify about offline status
+            }
+        }
+    }
+}
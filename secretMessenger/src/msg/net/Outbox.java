@@ -0,0 +1,127 @@
+package msg.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ordered queue of encoded messages waiting to be written to one connection.
+ * Any thread may add messages, but only the thread holding the writer role
+ * (see {@link #claim()}) takes them out, so messages are never interleaved and
+ * several of them can be written with a single flush.
+ */
+final class Outbox {
+    /** Senders block once this many bytes are queued for a single connection. */
+    static final long MAX_PENDING_BYTES = 8L * 1024 * 1024;
+
+    private final Queue<ByteBuffer[]> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean writer = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    /**
+     * Queues one message, blocking while the outbox is full.
+     * @param data The buffers forming the message, written back to back.
+     * @throws IOException if the outbox is closed or the caller is interrupted.
+     */
+    void offer(ByteBuffer... data) throws IOException {
+        long size = 0;
+        for (ByteBuffer buf : data) {
+            size += buf.remaining();
+        }
+        synchronized (this) {
+            while (!closed && pendingBytes.get() > MAX_PENDING_BYTES) {
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for send queue space");
+                }
+            }
+            // Checked and added under the lock, so nothing is queued once sealed
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            pendingBytes.addAndGet(size);
+            depth.incrementAndGet();
+            messages.add(data);
+        }
+    }
+
+    /**
+     * Takes the oldest queued message. Only the writer may call this.
+     * @return The buffers of the message, or null if the outbox is empty.
+     */
+    ByteBuffer[] poll() {
+        ByteBuffer[] data = messages.poll();
+        if (data != null) {
+            depth.decrementAndGet();
+        }
+        return data;
+    }
+
+    /**
+     * Records bytes handed to the socket, waking up blocked senders when space frees up.
+     * @param bytes Number of bytes written.
+     */
+    void written(long bytes) {
+        if (pendingBytes.addAndGet(-bytes) <= MAX_PENDING_BYTES) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Tries to become the writer.
+     * @return True if the caller is now the writer and must drain the outbox.
+     */
+    boolean claim() {
+        return writer.compareAndSet(false, true);
+    }
+
+    /**
+     * Gives up the writer role. Messages queued while giving it up are not lost:
+     * in that case the caller takes the role back and must drain again.
+     * @return True if the caller is still the writer.
+     */
+    boolean release() {
+        writer.set(false);
+        return !messages.isEmpty() && writer.compareAndSet(false, true);
+    }
+
+    /**
+     * @return Number of messages waiting to be written.
+     */
+    int depth() {
+        return depth.get();
+    }
+
+    /**
+     * Fails blocked and future senders, keeping the queued messages for the writer.
+     * A sender whose message was accepted before can rely on it being in the queue.
+     */
+    synchronized void seal() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Drops every queued message and fails blocked and future senders.
+     */
+    void close() {
+        closed = true;
+        messages.clear();
+        depth.set(0);
+        pendingBytes.set(0);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+}
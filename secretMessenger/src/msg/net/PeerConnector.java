@@ -0,0 +1,221 @@
+package msg.net;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import msg.util.LoggerUtil;
+import msg.util.Metrics;
+
+/**
+ * Opens connections to peers without blocking the callers, who get a future instead.
+ * <p>
+ * Requests for a peer that is already being connected to share the attempt in progress,
+ * and their futures are completed in the order they were made. Failed attempts are retried
+ * after an exponential backoff with random jitter, timed by a single scheduler thread shared
+ * by every peer, so no thread sleeps between attempts.
+ * <p>
+ * Every peer has a circuit breaker: after a number of failed attempts in a row it opens, and
+ * requests fail at once until the cool-down is over. A single attempt is then let through,
+ * which closes the breaker if it succeeds and opens it again otherwise. A connection from the
+ * peer closes it as well.
+ */
+final class PeerConnector {
+    // Longest wait between two attempts
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final LongAdder BREAKER_OPENS = Metrics.counter("net.breakerOpens");
+    private static final LongAdder REJECTED = Metrics.counter("net.connectsRejected");
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PeerConnector");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Function<String, CompletableFuture<Void>> attempt;
+    private final BiConsumer<String, Long> rejected;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private volatile int maxFailures = 3;
+    private volatile long openMs = 30_000;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a new PeerConnector.
+     * @param attempt Makes a single connection attempt to a peer.
+     * @param rejected Told about requests refused by an open breaker, with the milliseconds left before it lets an attempt through.
+     */
+    PeerConnector(Function<String, CompletableFuture<Void>> attempt, BiConsumer<String, Long> rejected) {
+        this.attempt = attempt;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Sets up the circuit breakers.
+     * @param maxFailures Failed attempts in a row that open the breaker of a peer.
+     * @param openMs How long an open breaker refuses requests, in milliseconds.
+     */
+    void setBreaker(int maxFailures, long openMs) {
+        this.maxFailures = Math.max(1, maxFailures);
+        this.openMs = Math.max(0, openMs);
+    }
+
+    /**
+     * Connects to a peer, or joins the attempt already in progress.
+     * @param ip The IP address of the peer.
+     * @param maxAttempts Attempts made before giving up, fewer if the breaker opens meanwhile.
+     * @param delayMs Base delay before the second attempt, doubled for each following one.
+     * @return Completed once connected, or exceptionally with the error of the last attempt,
+     *         or a {@link ConnectException} if the breaker of the peer is open.
+     */
+    CompletableFuture<Void> connect(String ip, int maxAttempts, long delayMs) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new ConnectException("Servizio di rete arrestato"));
+        }
+        Peer peer = peers.computeIfAbsent(ip, k -> new Peer());
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        long left;
+        synchronized (peer) {
+            if (peer.connecting) {
+                peer.waiters.add(connected);
+                return connected;
+            }
+            left = peer.failures >= maxFailures ? peer.openUntil - System.nanoTime() : 0;
+            if (left <= 0) {
+                peer.waiters.add(connected);
+                peer.connecting = true;
+            }
+        }
+        if (left > 0) {
+            long leftMs = TimeUnit.NANOSECONDS.toMillis(left) + 1;
+            REJECTED.increment();
+            rejected.accept(ip, leftMs);
+            return CompletableFuture.failedFuture(new ConnectException(
+                    "Peer non raggiungibile, nuovo tentativo tra " + (leftMs + 999) / 1000 + " s"));
+        }
+        run(ip, peer, 1, maxAttempts, delayMs);
+        return connected;
+    }
+
+    /**
+     * @param ip The IP address of the peer.
+     * @return True while an attempt to connect to the peer is in progress or waiting to be retried.
+     */
+    boolean isConnecting(String ip) {
+        Peer peer = peers.get(ip);
+        if (peer == null) {
+            return false;
+        }
+        synchronized (peer) {
+            return peer.connecting;
+        }
+    }
+
+    /**
+     * Closes the breaker of a peer, e.g. because it connected to us.
+     * @param ip The IP address of the peer.
+     */
+    void reset(String ip) {
+        Peer peer = peers.get(ip);
+        if (peer != null) {
+            synchronized (peer) {
+                peer.failures = 0;
+            }
+        }
+    }
+
+    /**
+     * Cancels the retries waiting to run and fails their requests, and every later one.
+     */
+    void close() {
+        closed = true;
+        for (Peer peer : peers.values()) {
+            boolean cancelled;
+            synchronized (peer) {
+                cancelled = peer.retry != null && peer.retry.cancel(false);
+            }
+            if (cancelled) {
+                complete(peer, new ConnectException("Servizio di rete arrestato"));
+            }
+        }
+    }
+
+    private void run(String ip, Peer peer, int number, int maxAttempts, long delayMs) {
+        CompletableFuture<Void> connected;
+        try {
+            connected = attempt.apply(ip);
+        } catch (RuntimeException e) {
+            connected = CompletableFuture.failedFuture(e);
+        }
+        // The waiters are completed on the scheduler, never on the thread that connected
+        connected.whenCompleteAsync((done, error) -> attempted(ip, peer, number, maxAttempts, delayMs, error), SCHEDULER);
+    }
+
+    // Runs on the scheduler
+    private void attempted(String ip, Peer peer, int number, int maxAttempts, long delayMs, Throwable error) {
+        synchronized (peer) {
+            if (error == null) {
+                peer.failures = 0;
+            } else if (++peer.failures >= maxFailures) {
+                peer.openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openMs);
+                BREAKER_OPENS.increment();
+                LoggerUtil.logWarning("PeerConnector", "attempted", "Not connecting to " + ip + " for " + openMs
+                        + " ms after " + peer.failures + " failed attempts");
+            } else if (number < maxAttempts && !closed) {
+                peer.retry = SCHEDULER.schedule(() -> run(ip, peer, number + 1, maxAttempts, delayMs),
+                        backoff(delayMs, number), TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        complete(peer, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+    }
+
+    // Those who joined while the first waiters were completed are completed after them, with the same outcome
+    private static void complete(Peer peer, Throwable error) {
+        while (true) {
+            List<CompletableFuture<Void>> waiters;
+            synchronized (peer) {
+                if (peer.waiters.isEmpty()) {
+                    peer.connecting = false;
+                    peer.retry = null;
+                    return;
+                }
+                waiters = new ArrayList<>(peer.waiters);
+                peer.waiters.clear();
+            }
+            for (CompletableFuture<Void> waiter : waiters) {
+                if (error == null) {
+                    waiter.complete(null);
+                } else {
+                    waiter.completeExceptionally(error);
+                }
+            }
+        }
+    }
+
+    // Equal jitter: between half and all of the exponential delay, so peers retrying together spread out
+    private static long backoff(long delayMs, int failed) {
+        long ceiling = Math.min(MAX_BACKOFF_MS, delayMs << Math.min(failed - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Connection state of one peer, guarded by its own lock.
+     */
+    private static final class Peer {
+        private final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+        private boolean connecting;
+        private int failures; // attempts failed in a row
+        private long openUntil; // System.nanoTime() until which the breaker refuses requests
+        private ScheduledFuture<?> retry;
+    }
+}
@@ -1,40 +1,85 @@
 package msg.net;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import msg.util.LoggerUtil;
 import msg.util.NetworkUtils;
 
 /**
  * The PeerDiscoveryService is responsible for discovering other instances of the
  * SecretMessenger application on the local network. It does this by periodically
- * broadcasting a discovery message and listening for similar messages from other peers.
+ * announcing itself, by broadcast or on a multicast group, and listening for similar
+ * announcements from other peers. An announcement is a binary {@link Announcement}
+ * carrying the listen port, node id, name and features of the peer, followed by the
+ * fixed text understood by older versions.
+ * <p>
+ * Announcements start every second and back off to a third of the peer TTL while the
+ * set of peers does not change; a new or lost peer makes them fast again. Peers not
+ * heard from within the TTL are reported as lost.
+ * <p>
+ * Receiving does not allocate for unchanged announcements of known peers or for those of this
+ * host: datagrams are read into one buffer and compared byte by byte with the previous
+ * announcement of the sender, which is checked against a cached set of local addresses.
  */
 public class PeerDiscoveryService {
     /**
-     * Interface for listeners to be notified when a new peer is discovered.
+     * Interface for listeners to be notified when peers appear or disappear.
      */
     public interface DiscoveryListener {
         /**
-         * Called when a new peer is discovered on the network.
+         * Called when a new peer is discovered on the network, and again when a known
+         * peer announces different details, e.g. after a restart on another port.
          * @param ip The IP address of the discovered peer.
+         * @param info What the peer announced, or null for older peers that only send the fixed text.
          */
-        void onPeerDiscovered(String ip);
+        void onPeerDiscovered(String ip, Announcement info);
+
+        /**
+         * Called when a discovered peer has not announced itself within the TTL.
+         * It is reported by {@link #onPeerDiscovered} again if it comes back.
+         * @param ip The IP address of the lost peer.
+         */
+        void onPeerLost(String ip);
     }
 
     private static final int BROADCAST_PORT = 45678;
     private static final String BROADCAST_MSG = "SECRET_MESSENGER_DISCOVERY";
-    private final Set<String> knownPeers = new CopyOnWriteArraySet<>();
+    private static final byte[] MAGIC = BROADCAST_MSG.getBytes(StandardCharsets.US_ASCII);
+    private static final long MIN_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long TICK_MILLIS = 1000;
+    private static final long LOCAL_REFRESH = TimeUnit.SECONDS.toNanos(30);
+    private static final int MAX_DATAGRAM = 256;
+    private final Map<InetAddress, Peer> knownPeers = new ConcurrentHashMap<>();
+    private volatile Set<InetAddress> localAddresses = NetworkUtils.getLocalAddresses();
+    private volatile DatagramChannel channel;
     private final DiscoveryListener listener;
-    private boolean running = true;
+    private final Announcement self;
+    private final InetAddress group;
+    private final long ttl;
+    private final long maxInterval;
+    private volatile long interval = MIN_INTERVAL;
+    private volatile long nextAnnounce;
+    private volatile boolean running = true;
 
     /**
      * Constructs a new PeerDiscoveryService.
-     * @param listener The listener to be notified of discovered peers.
+     * @param listener The listener to be notified of discovered and lost peers.
+     * @param self What this instance announces about itself.
+     * @param group The multicast group to announce on, or null to use broadcast.
+     * @param ttlSeconds Seconds without announcements after which a peer is lost.
      */
-    public PeerDiscoveryService(DiscoveryListener listener) {
+    public PeerDiscoveryService(DiscoveryListener listener, Announcement self, InetAddress group, int ttlSeconds) {
         this.listener = listener;
+        this.self = self;
+        this.group = group;
+        this.ttl = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxInterval = Math.max(MIN_INTERVAL, ttl / 3); // a peer may miss two announcements
     }
 
     /**
@@ -52,47 +97,162 @@ public class PeerDiscoveryService {
         broadcastThread.start();
     }
 
+    /**
+     * Stops the discovery threads after their current iteration.
+     */
+    public void stop() {
+        running = false;
+        DatagramChannel ch = channel;
+        if (ch != null) {
+            try {
+                ch.close(); // wakes up the listener blocked in receive
+            } catch (Exception e) {
+                LoggerUtil.logWarning("PeerDiscoveryService", "stop", "Error closing discovery channel: " + e);
+            }
+        }
+    }
+
     /**
      * Gets the set of currently known peer IP addresses that have been discovered.
      * @return A new HashSet containing the IP addresses of known peers.
      */
     public Set<String> getKnownPeers() {
-        return new HashSet<>(knownPeers);
+        Set<String> peers = new HashSet<>();
+        knownPeers.keySet().forEach(peer -> peers.add(peer.getHostAddress()));
+        return peers;
     }
 
     private void listen() {
-        try (DatagramSocket socket = new DatagramSocket(BROADCAST_PORT, InetAddress.getByName("0.0.0.0"))) {
-            socket.setBroadcast(true);
-            byte[] buf = new byte[128];
+        try (DatagramChannel ch = openChannel()) {
+            channel = ch;
+            ByteBuffer buf = ByteBuffer.allocateDirect(MAX_DATAGRAM);
             while (running) {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                socket.receive(packet);
-                String msg = new String(packet.getData(), 0, packet.getLength());
-                String senderIp = packet.getAddress().getHostAddress();
-                if (BROADCAST_MSG.equals(msg) && !isSelf(senderIp)) {
-                    if (knownPeers.add(senderIp) && listener != null) {
-                        LoggerUtil.logInfo("PeerDiscoveryService", "listen", "Discovered new peer: " + senderIp);
-                        listener.onPeerDiscovered(senderIp);
+                buf.clear();
+                // The channel reuses the sender address object while the sender does not change
+                SocketAddress from = ch.receive(buf);
+                buf.flip();
+                boolean legacy = isMagic(buf);
+                if (!(from instanceof InetSocketAddress) || !(legacy || Announcement.isAnnouncement(buf))) {
+                    continue;
+                }
+                InetAddress sender = ((InetSocketAddress) from).getAddress();
+                if (localAddresses.contains(sender)) {
+                    continue; // our own announcement
+                }
+                long now = System.nanoTime();
+                Peer peer = knownPeers.get(sender);
+                if (peer != null) {
+                    peer.lastSeen = now;
+                    // Same details as before, or the fixed text that follows each announcement
+                    if (peer.sameAs(buf) || (legacy && peer.info != null)) {
+                        continue;
                     }
                 }
+                announced(sender, peer, buf, legacy, now);
+            }
+        } catch (ClosedChannelException e) {
+            if (running) {
+                LoggerUtil.logError("PeerDiscoveryService", "listen", "Discovery channel closed", e);
             }
         } catch (Exception e) {
             LoggerUtil.logError("PeerDiscoveryService", "listen", "Error in discovery listener", e);
         }
     }
 
+    // A new peer, or a known one announcing different details; the only path that allocates
+    private void announced(InetAddress sender, Peer known, ByteBuffer buf, boolean legacy, long now) {
+        Announcement info = legacy ? null : Announcement.decode(buf);
+        if (!legacy && info == null) {
+            return; // malformed
+        }
+        byte[] raw = new byte[buf.remaining()];
+        buf.get(buf.position(), raw);
+        Peer peer = new Peer(raw, info, now);
+        String senderIp = sender.getHostAddress();
+        if (known == null) {
+            if (knownPeers.putIfAbsent(sender, peer) != null) {
+                return;
+            }
+            LoggerUtil.logInfo("PeerDiscoveryService", "listen", "Discovered new peer: " + senderIp
+                    + (info != null ? " " + info : ""));
+            peersChanged();
+        } else if (knownPeers.replace(sender, known, peer)) {
+            LoggerUtil.logInfo("PeerDiscoveryService", "listen", "Peer " + senderIp + " now announces " + info);
+        } else {
+            return;
+        }
+        if (listener != null) {
+            listener.onPeerDiscovered(senderIp, info);
+        }
+    }
+
+    private DatagramChannel openChannel() throws Exception {
+        DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            ch.bind(new InetSocketAddress(BROADCAST_PORT));
+            if (group == null) {
+                ch.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            } else {
+                NetworkInterface iface = NetworkInterface.getByInetAddress(InetAddress.getByName(NetworkUtils.getLocalIp()));
+                if (iface == null) {
+                    throw new SocketException("No network interface for multicast discovery");
+                }
+                ch.join(group, iface);
+            }
+            return ch;
+        } catch (Exception e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private static boolean isMagic(ByteBuffer buf) {
+        if (buf.remaining() != MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void broadcast() {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setBroadcast(true);
-            byte[] data = BROADCAST_MSG.getBytes();
-            DatagramPacket packet = new DatagramPacket(data, data.length,
-                    InetAddress.getByName("255.255.255.255"), BROADCAST_PORT);
+        try (DatagramSocket socket = group == null ? new DatagramSocket() : new MulticastSocket()) {
+            InetAddress target = group;
+            if (group == null) {
+                socket.setBroadcast(true);
+                target = InetAddress.getByName("255.255.255.255");
+            } else {
+                ((MulticastSocket) socket).setTimeToLive(1); // stay on the local network
+            }
+            byte[] data = self.encode();
+            DatagramPacket packet = new DatagramPacket(data, data.length, target, BROADCAST_PORT);
+            DatagramPacket legacyPacket = new DatagramPacket(MAGIC, MAGIC.length, target, BROADCAST_PORT);
 
-            LoggerUtil.logInfo("PeerDiscoveryService", "broadcast", "Starting peer discovery broadcasts");
+            LoggerUtil.logInfo("PeerDiscoveryService", "broadcast",
+                    "Starting peer discovery " + (group == null ? "broadcasts" : "on multicast group " + group));
+            nextAnnounce = System.nanoTime();
+            long nextRefresh = nextAnnounce + LOCAL_REFRESH;
             while (running) {
                 try {
-                    socket.send(packet);
-                    Thread.sleep(2000); // ogni 2 secondi
+                    long now = System.nanoTime();
+                    if (now - nextAnnounce >= 0) {
+                        socket.send(packet);
+                        socket.send(legacyPacket); // for versions that only know the fixed text
+                        // Quiet network: announce less often, up to the maximum
+                        long current = interval;
+                        interval = Math.min(current * 2, maxInterval);
+                        nextAnnounce = now + current;
+                    }
+                    expirePeers(now);
+                    if (now - nextRefresh >= 0) {
+                        refreshLocalAddresses();
+                        nextRefresh = now + LOCAL_REFRESH;
+                    }
+                    Thread.sleep(TICK_MILLIS);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     LoggerUtil.logError("PeerDiscoveryService", "broadcast", "Broadcast thread interrupted", e);
@@ -107,7 +267,58 @@ public class PeerDiscoveryService {
         }
     }
 
-    private boolean isSelf(String ip) {
-        return ip.equals(NetworkUtils.getLocalIp());
+    private void expirePeers(long now) {
+        for (Map.Entry<InetAddress, Peer> peer : knownPeers.entrySet()) {
+            if (now - peer.getValue().lastSeen > ttl && knownPeers.remove(peer.getKey(), peer.getValue())) {
+                String ip = peer.getKey().getHostAddress();
+                LoggerUtil.logInfo("PeerDiscoveryService", "expirePeers", "Lost peer: " + ip);
+                peersChanged();
+                if (listener != null) {
+                    listener.onPeerLost(ip);
+                }
+            }
+        }
+    }
+
+    // Interfaces come and go (VPN, Wi-Fi); the set is only replaced when it changed
+    private void refreshLocalAddresses() {
+        Set<InetAddress> current = NetworkUtils.getLocalAddresses();
+        if (!current.isEmpty() && !current.equals(localAddresses)) {
+            LoggerUtil.logInfo("PeerDiscoveryService", "refreshLocalAddresses", "Local addresses changed: " + current);
+            localAddresses = current;
+        }
+    }
+
+    // The peer set moved: announce now and often, so the others learn about us quickly
+    private void peersChanged() {
+        interval = MIN_INTERVAL;
+        nextAnnounce = System.nanoTime();
+    }
+
+    /**
+     * A discovered peer: its last announcement, raw and decoded, and when it was heard from.
+     */
+    private static final class Peer {
+        final byte[] raw;
+        final Announcement info;
+        volatile long lastSeen; // System.nanoTime()
+
+        Peer(byte[] raw, Announcement info, long lastSeen) {
+            this.raw = raw;
+            this.info = info;
+            this.lastSeen = lastSeen;
+        }
+
+        boolean sameAs(ByteBuffer buf) {
+            if (buf.remaining() != raw.length) {
+                return false;
+            }
+            for (int i = 0; i < raw.length; i++) {
+                if (buf.get(buf.position() + i) != raw[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,444 @@
+package msg.net;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import msg.util.LoggerUtil;
+
+/**
+ * Non-blocking transport built on {@link Selector} and {@link SocketChannel}.
+ * Every connection is served by one of a small, fixed number of event-loop threads,
+ * so the thread count does not grow with the number of peers.
+ * Queued messages are written by the owning event loop with gathering writes,
+ * so a burst of small messages costs a single system call.
+ * The wire format is the same one spoken by {@link SocketTransport}, and so is the
+ * {@link ConnectionTable} keeping a single connection per peer.
+ */
+class SelectorTransport implements Transport {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Most buffers handed to a single gathering write
+    private static final int MAX_GATHER = 64;
+
+    private final Handler handler;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ConnectionTable<PeerChannel> links;
+    private volatile ServerSocketChannel server;
+    private volatile InetAddress localAddress;
+    private volatile boolean running = false;
+
+    SelectorTransport(int threads, long nodeId, Handler handler) {
+        this.handler = handler;
+        this.links = new ConnectionTable<>(nodeId);
+        this.loops = new EventLoop[Math.max(1, threads)];
+    }
+
+    @Override
+    public void start(InetAddress local, int port) {
+        running = true;
+        localAddress = local;
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop("NioLoop-" + i);
+                loops[i].start();
+            }
+            ServerSocketChannel ssc = ServerSocketChannel.open();
+            ssc.bind(new InetSocketAddress(local, port));
+            ssc.configureBlocking(false);
+            server = ssc;
+            loops[0].execute(() -> {
+                try {
+                    ssc.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+                } catch (IOException e) {
+                    LoggerUtil.logError("SelectorTransport", "start", "Cannot register server channel", e);
+                }
+            });
+        } catch (IOException e) {
+            LoggerUtil.logError("SelectorTransport", "start", "Error opening listening channel on port " + port, e);
+        }
+    }
+
+    private EventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            String ip = ((InetSocketAddress) ch.getRemoteAddress()).getAddress().getHostAddress();
+            PeerChannel pc = new PeerChannel(ip, true, ch, nextLoop());
+            opened(pc);
+            pc.loop.execute(() -> pc.register(SelectionKey.OP_READ));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> connect(String ip, int port, int timeoutMs) {
+        InetSocketAddress address = new InetSocketAddress(ip, port);
+        if (address.isUnresolved()) {
+            return CompletableFuture.failedFuture(new UnknownHostException(ip));
+        }
+        PeerChannel pc;
+        try {
+            pc = new PeerChannel(ip, false, SocketChannel.open(), nextLoop());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            SocketChannel ch = pc.channel;
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (localAddress != null) {
+                ch.bind(new InetSocketAddress(localAddress, 0));
+            }
+            if (ch.connect(address)) {
+                pc.connected.complete(null);
+                pc.loop.execute(() -> pc.register(SelectionKey.OP_READ));
+            } else {
+                pc.loop.execute(() -> pc.register(SelectionKey.OP_CONNECT));
+            }
+        } catch (IOException e) {
+            pc.close();
+            return CompletableFuture.failedFuture(e);
+        }
+        // Completed by the event loop, or by the timeout
+        return pc.connected.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).handle((done, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            try {
+                if (cause instanceof TimeoutException) {
+                    throw new SocketTimeoutException("Connect timed out");
+                } else if (cause instanceof IOException io) {
+                    throw io;
+                } else if (cause != null) {
+                    throw new IOException(cause);
+                }
+                opened(pc);
+                return null;
+            } catch (IOException e) {
+                pc.close();
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    // The HELLO goes first on every connection, the peer learns about the first one only
+    private void opened(PeerChannel pc) throws IOException {
+        pc.opened = true;
+        ByteBuffer[] hello = handler.hello();
+        if (hello != null) {
+            pc.enqueue(hello);
+        }
+        if (links.add(pc)) {
+            handler.onOpened(pc.ip, pc.incoming);
+        }
+    }
+
+    @Override
+    public boolean send(String ip, ByteBuffer... data) throws IOException {
+        PeerChannel pc = links.active(ip);
+        if (pc == null) {
+            return false;
+        }
+        try {
+            pc.enqueue(data);
+        } catch (IOException e) {
+            PeerChannel replacement = links.active(ip);
+            if (!pc.retired || replacement == null || replacement == pc) {
+                throw e;
+            }
+            // Retired before our message was queued, the connection kept takes over
+            replacement.enqueue(data);
+        }
+        return true;
+    }
+
+    @Override
+    public int queueDepth(String ip) {
+        int depth = 0;
+        for (PeerChannel pc : links.all(ip)) {
+            depth += pc.outbox.depth();
+        }
+        return depth;
+    }
+
+    @Override
+    public boolean hasLink(String ip) {
+        return links.active(ip) != null;
+    }
+
+    @Override
+    public boolean isAlive(String ip) {
+        return isUsable(links.active(ip));
+    }
+
+    private static boolean isUsable(PeerChannel pc) {
+        return pc != null && !pc.closed && pc.channel.isConnected();
+    }
+
+    @Override
+    public void close(String ip) {
+        links.all(ip).forEach(PeerChannel::close);
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                /* ignore */ }
+        }
+        links.all().forEach(PeerChannel::close);
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * A selector together with the thread that drives it.
+     * Work for the channels it owns is handed over through {@link #execute(Runnable)}.
+     */
+    private final class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        process(key);
+                    }
+                } catch (Exception e) {
+                    LoggerUtil.logError("SelectorTransport", "run", "Error in event loop " + getName(), e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                /* ignore */ }
+        }
+
+        private void process(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                try {
+                    accept();
+                } catch (IOException e) {
+                    LoggerUtil.logError("SelectorTransport", "accept", "Error accepting connection", e);
+                }
+                return;
+            }
+            PeerChannel pc = (PeerChannel) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    pc.finishConnect();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    pc.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    pc.flush();
+                }
+            } catch (IOException e) {
+                if (pc.opened) {
+                    LoggerUtil.logError("SelectorTransport", "process", "Error on channel for: " + pc.ip, e);
+                }
+                pc.connected.completeExceptionally(e);
+                pc.close();
+            }
+        }
+    }
+
+    /**
+     * State of a single connection: its channel, frame decoder and pending output.
+     */
+    private final class PeerChannel extends ConnectionTable.Link {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final CompletableFuture<Void> connected = new CompletableFuture<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final FrameCodec codec;
+        private final Outbox outbox = new Outbox();
+        // Buffers taken from the outbox but not completely written yet, event loop only
+        private final ArrayDeque<ByteBuffer> batch = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private SelectionKey key;
+        private volatile boolean opened = false;
+        private volatile boolean closed = false;
+        private boolean outputShut = false; // event loop only
+        private boolean peerDone = false; // event loop only, the peer shut its output
+
+        PeerChannel(String ip, boolean incoming, SocketChannel channel, EventLoop loop) {
+            super(ip, incoming);
+            this.channel = channel;
+            this.loop = loop;
+            this.codec = new FrameCodec(ip, frame -> {
+                links.onFrame(this, frame);
+                handler.onFrame(ip, frame);
+            });
+        }
+
+        @Override
+        void retire() {
+            retired = true;
+            loop.execute(() -> {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        // Runs on the event loop
+        void register(int ops) {
+            if (closed) {
+                return;
+            }
+            try {
+                key = channel.register(loop.selector, ops, this);
+                if (ops == SelectionKey.OP_READ) {
+                    flush(); // messages may have been queued before registration
+                }
+            } catch (IOException e) {
+                connected.completeExceptionally(e);
+                close();
+            }
+        }
+
+        // Runs on the event loop
+        void finishConnect() throws IOException {
+            if (channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                connected.complete(null);
+            }
+        }
+
+        // Runs on the event loop
+        void read() throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                // The peer is done with it: finish our side, flush() closes once it is written
+                peerDone = true;
+                retired = true;
+                flush();
+                return;
+            }
+            codec.feed(readBuffer.array(), 0, n);
+        }
+
+        // Runs on the event loop
+        void flush() throws IOException {
+            if (closed || key == null || !key.isValid()) {
+                return; // register() flushes once the key exists
+            }
+            if (retired) {
+                outbox.seal(); // later senders fail over to the connection kept
+            }
+            do {
+                while (true) {
+                    ByteBuffer[] message;
+                    while (batch.size() < MAX_GATHER && (message = outbox.poll()) != null) {
+                        for (ByteBuffer buf : message) {
+                            batch.add(buf);
+                        }
+                    }
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    int count = 0;
+                    for (ByteBuffer buf : batch) {
+                        if (count == MAX_GATHER) {
+                            break;
+                        }
+                        gather[count++] = buf;
+                    }
+                    outbox.written(channel.write(gather, 0, count));
+                    while (!batch.isEmpty() && !batch.peek().hasRemaining()) {
+                        batch.poll();
+                    }
+                    if (!batch.isEmpty()) {
+                        // Socket buffer full, keep the writer role until the channel is writable again
+                        key.interestOps((peerDone ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } while (outbox.release());
+            key.interestOps(SelectionKey.OP_READ);
+            if (retired && !outputShut) {
+                outputShut = true;
+                channel.shutdownOutput();
+            }
+            if (peerDone) {
+                close();
+            }
+        }
+
+        void enqueue(ByteBuffer... data) throws IOException {
+            outbox.offer(data);
+            if (outbox.claim()) {
+                // Only the sender that finds the outbox idle wakes the event loop
+                loop.execute(() -> {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        LoggerUtil.logError("SelectorTransport", "flush", "Error writing to: " + ip, e);
+                        close();
+                    }
+                });
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                /* ignore */ }
+            outbox.close();
+            if (links.remove(this)) {
+                handler.onClosed(ip);
+            }
+        }
+    }
+}
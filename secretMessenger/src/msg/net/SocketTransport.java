@@ -0,0 +1,297 @@
+package msg.net;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import msg.util.LoggerUtil;
+
+/**
+ * The classic blocking transport: one socket and one reader thread per peer, the
+ * duplicates of crossed connects being retired through a {@link ConnectionTable}.
+ * Writes go through an {@link Outbox}: the sender that finds it idle becomes the
+ * writer and also writes whatever other senders queued meanwhile, with one flush.
+ */
+class SocketTransport implements Transport {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Outgoing connections being opened at the same time
+    private static final int CONNECT_THREADS = 4;
+
+    private final Handler handler;
+    private final ConnectionTable<SocketLink> links;
+    private final ThreadPoolExecutor connector;
+    private volatile ServerSocket serverSocket;
+    private volatile InetAddress localAddress;
+    private volatile boolean running = false;
+
+    SocketTransport(long nodeId, Handler handler) {
+        this.handler = handler;
+        this.links = new ConnectionTable<>(nodeId);
+        AtomicInteger count = new AtomicInteger();
+        this.connector = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "Connector-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.connector.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void start(InetAddress local, int port) {
+        running = true;
+        localAddress = local;
+        Thread listenerThread = new Thread(() -> listen(port));
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    private void listen(int port) {
+        try (ServerSocket ss = new ServerSocket(port, 50, localAddress)) {
+            serverSocket = ss;
+            while (running) {
+                Socket socket = ss.accept();
+                try {
+                    opened(new SocketLink(socket.getInetAddress().getHostAddress(), true, socket));
+                } catch (IOException e) {
+                    LoggerUtil.logError("SocketTransport", "listen", "Error opening incoming connection", e);
+                    socket.close();
+                }
+            }
+        } catch (Exception e) {
+            if (running) {
+                LoggerUtil.logError("SocketTransport", "listen", "Error in listener thread", e);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> connect(String ip, int port, int timeoutMs) {
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        try {
+            connector.execute(() -> {
+                Socket socket = new Socket();
+                try {
+                    if (localAddress != null) {
+                        socket.bind(new InetSocketAddress(localAddress, 0));
+                    }
+                    socket.connect(new InetSocketAddress(ip, port), timeoutMs);
+                    opened(new SocketLink(ip, false, socket));
+                    connected.complete(null);
+                } catch (IOException e) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                        /* ignore */ }
+                    connected.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            connected.completeExceptionally(new SocketException("Transport shut down"));
+        }
+        return connected;
+    }
+
+    // The HELLO goes first on every connection, the peer learns about the first one only
+    private void opened(SocketLink link) throws IOException {
+        ByteBuffer[] hello = handler.hello();
+        if (hello != null) {
+            link.outbox.offer(hello);
+            link.drain();
+        }
+        boolean first = links.add(link);
+        if (first) {
+            handler.onOpened(link.ip, link.incoming);
+        }
+        startReaderThread(link);
+    }
+
+    @Override
+    public boolean send(String ip, ByteBuffer... data) throws IOException {
+        SocketLink link = links.active(ip);
+        if (link == null) {
+            return false;
+        }
+        try {
+            link.outbox.offer(data);
+        } catch (IOException e) {
+            SocketLink replacement = links.active(ip);
+            if (!link.retired || replacement == null || replacement == link) {
+                throw e;
+            }
+            // Retired before our message was queued, the connection kept takes over
+            link = replacement;
+            link.outbox.offer(data);
+        }
+        link.drain();
+        return true;
+    }
+
+    private void startReaderThread(SocketLink link) {
+        new Thread(() -> {
+            FrameCodec codec = new FrameCodec(link.ip, frame -> {
+                links.onFrame(link, frame);
+                handler.onFrame(link.ip, frame);
+            });
+            try (InputStream in = link.socket.getInputStream()) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    codec.feed(buf, 0, n);
+                }
+                link.retire(); // the peer is done with it, finish our side
+                link.awaitOutputShut();
+            } catch (Exception e) {
+                if (!link.socket.isClosed()) {
+                    LoggerUtil.logError("SocketTransport", "startReaderThread", "Error in reader thread for: " + link.ip, e);
+                }
+            } finally {
+                // Handle disconnection when reader thread ends
+                closeQuietly(link);
+                if (links.remove(link)) {
+                    handler.onClosed(link.ip);
+                }
+            }
+        }, "Reader-" + link.ip).start();
+    }
+
+    @Override
+    public boolean hasLink(String ip) {
+        return links.active(ip) != null;
+    }
+
+    @Override
+    public boolean isAlive(String ip) {
+        return isConnectionValid(links.active(ip));
+    }
+
+    private boolean isConnectionValid(SocketLink link) {
+        if (link == null) {
+            return false;
+        }
+        Socket socket = link.socket;
+        if (socket.isClosed() || !socket.isConnected()) {
+            return false;
+        }
+
+        // Additional check: try to read socket state (won't block but will detect
+        // closed sockets)
+        try {
+            socket.getOutputStream().flush(); // Try flushing to test connection
+            return true;
+        } catch (IOException e) {
+            return false; // Connection is broken
+        }
+    }
+
+    @Override
+    public int queueDepth(String ip) {
+        int depth = 0;
+        for (SocketLink link : links.all(ip)) {
+            depth += link.outbox.depth();
+        }
+        return depth;
+    }
+
+    @Override
+    public void close(String ip) {
+        links.all(ip).forEach(SocketTransport::closeQuietly); // the reader threads unregister them
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        connector.shutdown();
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                /* ignore */ }
+        }
+        links.all().forEach(SocketTransport::closeQuietly);
+    }
+
+    private static void closeQuietly(SocketLink link) {
+        if (link != null) {
+            link.outbox.close();
+            try {
+                link.socket.close();
+            } catch (IOException e) {
+                /* ignore */ }
+        }
+    }
+
+    /**
+     * A connected socket with its buffered output stream and send queue.
+     */
+    private static final class SocketLink extends ConnectionTable.Link {
+        private final Socket socket;
+        private final OutputStream out;
+        private final Outbox outbox = new Outbox();
+        private boolean outputShut; // writer only
+        private final CountDownLatch shut = new CountDownLatch(1);
+
+        SocketLink(String ip, boolean incoming, Socket socket) throws IOException {
+            super(ip, incoming);
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        @Override
+        void retire() {
+            retired = true;
+            try {
+                drain();
+            } catch (IOException e) {
+                // closed by its reader thread
+            }
+        }
+
+        // Lets the writer finish before the reader thread closes the socket
+        void awaitOutputShut() throws InterruptedException {
+            shut.await(5, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Writes every queued message if no other thread is already doing it.
+         * Small messages queued together leave the buffer with a single flush.
+         */
+        void drain() throws IOException {
+            if (!outbox.claim()) {
+                return; // the current writer will pick our message up
+            }
+            do {
+                try {
+                    if (retired) {
+                        outbox.seal(); // later senders fail over to the connection kept
+                    }
+                    ByteBuffer[] message;
+                    while ((message = outbox.poll()) != null) {
+                        for (ByteBuffer buf : message) {
+                            int size = buf.remaining();
+                            out.write(buf.array(), buf.arrayOffset() + buf.position(), size);
+                            outbox.written(size);
+                        }
+                    }
+                    out.flush();
+                    if (retired && !outputShut) {
+                        outputShut = true;
+                        socket.shutdownOutput();
+                        shut.countDown();
+                    }
+                } catch (IOException e) {
+                    outbox.close();
+                    outbox.release();
+                    shut.countDown();
+                    throw e;
+                }
+            } while (outbox.release() || (retired && !outputShut && outbox.claim()));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package msg.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Low level connection layer used by {@link NetworkService}.
+ * A transport only moves encoded bytes and decoded {@link Frame}s between peers;
+ * peer status tracking and listener notifications stay in the NetworkService.
+ * It sends over a single connection per peer, whichever side opened it.
+ */
+interface Transport {
+
+    /**
+     * Callbacks from the transport towards the NetworkService.
+     */
+    interface Handler {
+        /**
+         * Builds the HELLO written first on every connection, with our node id after the features.
+         * @return The encoded HELLO, or null to send none.
+         */
+        ByteBuffer[] hello();
+        /**
+         * Called when the first connection to a peer has been established.
+         * @param ip The IP address of the peer.
+         * @param incoming True if the peer connected to us, false if we connected to it.
+         */
+        void onOpened(String ip, boolean incoming);
+        /**
+         * Called for every complete frame received from a peer.
+         * @param ip The IP address of the peer.
+         * @param frame The received frame.
+         */
+        void onFrame(String ip, Frame frame);
+        /**
+         * Called when the last connection to a peer has been closed.
+         * @param ip The IP address of the peer.
+         */
+        void onClosed(String ip);
+    }
+
+    /**
+     * Starts accepting incoming connections.
+     * @param local The local address to listen on, which outgoing connections also
+     *              originate from, or null for every address.
+     * @param port The port to listen on.
+     */
+    void start(InetAddress local, int port);
+
+    /**
+     * Opens an outgoing connection without blocking the caller.
+     * @param ip The IP address of the peer.
+     * @param port The port the peer listens on.
+     * @param timeoutMs Connection timeout in milliseconds.
+     * @return Completed once the connection is established and registered, or exceptionally
+     *         with the IOException that prevented it.
+     */
+    CompletableFuture<Void> connect(String ip, int port, int timeoutMs);
+
+    /**
+     * Queues encoded bytes for a peer.
+     * Messages queued for the same connection are written in order and never interleaved;
+     * the call blocks only while the connection's send queue is full.
+     * @param ip The IP address of the peer.
+     * @param data The buffers to write, in order.
+     * @return False if there is no connection to the peer.
+     * @throws IOException if the write fails.
+     */
+    boolean send(String ip, ByteBuffer... data) throws IOException;
+
+    /**
+     * @param ip The IP address of the peer.
+     * @return Number of messages queued for the peer and not yet written.
+     */
+    int queueDepth(String ip);
+
+    /**
+     * @param ip The IP address of the peer.
+     * @return True if a connection to the peer is registered, alive or not.
+     */
+    boolean hasLink(String ip);
+
+    /**
+     * @param ip The IP address of the peer.
+     * @return True if the connection to the peer is usable.
+     */
+    boolean isAlive(String ip);
+
+    /**
+     * Closes every connection to a peer.
+     * @param ip The IP address of the peer.
+     */
+    void close(String ip);
+
+    /**
+     * Stops listening and closes every connection.
+     */
+    void shutdown();
+}
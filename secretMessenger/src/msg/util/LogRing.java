@@ -0,0 +1,82 @@
+package msg.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ * Each slot carries a sequence number telling whether it is free for the producer
+ * at a given position or holds the item for the consumer, so producers only contend
+ * on one compare-and-set and never wait for each other or for the consumer.
+ * @param <T> The type of the items.
+ */
+final class LogRing<T> {
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next position to fill
+    private long head; // next position to take, consumer only
+
+    /**
+     * Constructs a new LogRing.
+     * @param capacity Maximum number of items, rounded up to a power of two.
+     */
+    LogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an item. Can be called from any thread.
+     * @param item The item.
+     * @return False if the queue is full.
+     */
+    boolean offer(T item) {
+        long pos = tail.get();
+        while (true) {
+            int i = (int) pos & mask;
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items[i] = item;
+                    sequences.lazySet(i, pos + 1); // publishes the item to the consumer
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false; // the consumer has not freed this slot yet
+            } else {
+                pos = tail.get(); // another producer took it
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest item. Must only be called by the consumer thread.
+     * @return The item, or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        int i = (int) head & mask;
+        if (sequences.get(i) != head + 1) {
+            return null;
+        }
+        T item = (T) items[i];
+        items[i] = null;
+        sequences.lazySet(i, head + items.length); // free for the producer one lap later
+        head++;
+        return item;
+    }
+
+    /**
+     * @return True if there is nothing to take. Only meaningful on the consumer thread.
+     */
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
@@ -1,97 +1,248 @@
 package msg.util;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.logging.FileHandler;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
 /**
  * Utility class to handle logging to a file for the application.
- * Configures a logger to write messages to a specified log file.
+ * <p>
+ * Logging never does I/O on the calling thread: messages below the configured level
+ * are dropped before anything is built, the others are queued in a lock-free ring and
+ * a background thread formats and writes them in batches. When the ring is full new
+ * messages are dropped, and counted in the log, unless blocking has been configured.
  */
 public class LoggerUtil {
     private static final String LOG_FOLDER = "logs";
     private static final String LOG_FILE_NAME = "secretMessenger.log";
-    private static final Logger logger = Logger.getLogger("SecretMessengerLogger");
+    private static final int QUEUE_SIZE = 8192;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
 
-    static {
-        try {
-            // Create logs directory if it doesn't exist
-            File logDir = new File(LOG_FOLDER);
-            if (!logDir.exists()) {
-                logDir.mkdir();
-            }
+    private static final LogRing<Entry> queue = new LogRing<>(QUEUE_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile int threshold = Level.INFO.intValue();
+    private static volatile boolean blockWhenFull;
+    private static volatile boolean idle;
+    private static final Thread writer;
 
-            // Set up the file handler to write to the log file
-            FileHandler fileHandler = new FileHandler(LOG_FOLDER + "/" + LOG_FILE_NAME, false);
-            fileHandler.setFormatter(new SimpleFormatter());
-            logger.addHandler(fileHandler);
+    // Writer thread only: the time of the last line, formatted once per second
+    private static long cachedSecond = -1;
+    private static String cachedTime;
 
-            // Don't let the logger use parent handlers
-            logger.setUseParentHandlers(false);
+    static {
+        writer = new Thread(LoggerUtil::writeLoop, "Logger");
+        writer.setDaemon(true);
+        writer.start();
+        // Write out what is still queued when the application exits
+        Runtime.getRuntime().addShutdownHook(new Thread(LoggerUtil::flush, "Logger-Flush"));
+        logInfo("LoggerUtil", "<staticInit>", "Logger initialized");
+    }
 
-            logger.log(Level.INFO, "Logger initialized at {0}", getCurrentTime());
-        } catch (IOException e) {
-            System.err.println("Failed to initialize logger: " + e.getMessage());
-            logger.log(Level.SEVERE, "Failed to initialize logger", e);
+    /**
+     * Sets the lowest level written and what happens when messages arrive faster than they are written.
+     * @param level Name of the lowest level written: INFO, WARNING or SEVERE.
+     * @param block True to make callers wait for room, false to drop their messages.
+     */
+    public static void configure(String level, boolean block) {
+        try {
+            threshold = Level.parse(level.toUpperCase()).intValue();
+        } catch (IllegalArgumentException e) {
+            logWarning("LoggerUtil", "configure", "Unknown log level " + level + ", using INFO");
+            threshold = Level.INFO.intValue();
         }
+        blockWhenFull = block;
     }
 
     /**
      * Logs an error message with exception details.
-     * 
+     *
      * @param className  The name of the class where the error occurred.
      * @param methodName The name of the method where the error occurred.
      * @param message    Additional context about the error.
      * @param throwable  The exception to log.
      */
     public static void logError(String className, String methodName, String message, Throwable throwable) {
-        String logMessage = String.format("[%s] Error in %s.%s: %s - %s: %s",
-                getCurrentTime(), className, methodName, message,
-                throwable.getClass().getName(), throwable.getMessage());
-
-        logger.log(Level.SEVERE, logMessage, throwable);
+        log(Level.SEVERE, className, methodName, message, throwable);
     }
 
     /**
      * Logs a warning message.
-     * 
+     *
      * @param className  The name of the class where the warning occurred.
      * @param methodName The name of the method where the warning occurred.
      * @param message    The warning message.
      */
     public static void logWarning(String className, String methodName, String message) {
-        String logMessage = String.format("[%s] Warning in %s.%s: %s",
-                getCurrentTime(), className, methodName, message);
-
-        logger.log(Level.WARNING, logMessage);
+        log(Level.WARNING, className, methodName, message, null);
     }
 
     /**
      * Logs an informational message.
-     * 
+     *
      * @param className  The name of the class generating the info.
      * @param methodName The name of the method generating the info.
      * @param message    The info message.
      */
     public static void logInfo(String className, String methodName, String message) {
-        String logMessage = String.format("[%s] Info in %s.%s: %s",
-                getCurrentTime(), className, methodName, message);
+        log(Level.INFO, className, methodName, message, null);
+    }
+
+    /**
+     * Waits until the queued messages are written, for at most one second.
+     */
+    public static void flush() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        Entry marker = new Entry(null, 0, null, null, null, null);
+        while (!queue.offer(marker)) {
+            if (System.nanoTime() - deadline > 0) {
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        LockSupport.unpark(writer);
+        synchronized (marker) {
+            while (!marker.written && System.nanoTime() - deadline < 0) {
+                try {
+                    marker.wait(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void log(Level level, String className, String methodName, String message, Throwable throwable) {
+        if (level.intValue() < threshold) {
+            return; // nothing is built for messages that are not written
+        }
+        Entry entry = new Entry(level, System.currentTimeMillis(), className, methodName, message, throwable);
+        while (!queue.offer(entry)) {
+            if (!blockWhenFull || Thread.currentThread() == writer) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void writeLoop() {
+        Writer out = open();
+        while (true) {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                try {
+                    out.flush(); // one write per batch
+                } catch (IOException e) {
+                    System.err.println("Failed to write log: " + e.getMessage());
+                }
+                idle = true;
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+            try {
+                if (dropped.get() > 0) {
+                    long lost = dropped.getAndSet(0);
+                    out.write("WARNING: [" + time(System.currentTimeMillis()) + "] " + lost
+                            + " log messages dropped, queue full\n");
+                }
+                if (entry.level == null) {
+                    out.flush();
+                    synchronized (entry) {
+                        entry.written = true;
+                        entry.notifyAll();
+                    }
+                } else {
+                    write(out, entry);
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to write log: " + e.getMessage());
+            }
+        }
+    }
+
+    private static Writer open() {
+        File logDir = new File(LOG_FOLDER);
+        if (!logDir.exists()) {
+            logDir.mkdir();
+        }
+        try {
+            return new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(logDir, LOG_FILE_NAME), false), StandardCharsets.UTF_8), 64 * 1024);
+        } catch (IOException e) {
+            System.err.println("Failed to initialize logger: " + e.getMessage());
+            return new PrintWriter(System.err);
+        }
+    }
+
+    private static void write(Writer out, Entry e) throws IOException {
+        String kind = e.level == Level.SEVERE ? "Error" : e.level == Level.WARNING ? "Warning" : "Info";
+        StringBuilder line = new StringBuilder(128);
+        line.append(e.level.getName()).append(": [").append(time(e.millis)).append("] ").append(kind).append(" in ")
+                .append(e.className).append('.').append(e.methodName).append(": ").append(e.message);
+        if (e.throwable != null) {
+            line.append(" - ").append(e.throwable.getClass().getName()).append(": ").append(e.throwable.getMessage());
+        }
+        out.append(line).append('\n');
+        if (e.throwable != null) {
+            e.throwable.printStackTrace(new PrintWriter(out)); // unbuffered, goes straight to out
+        }
+    }
 
-        logger.log(Level.INFO, logMessage);
+    /**
+     * Gets the time formatted for logging, reusing the text while the second does not change.
+     *
+     * @return Formatted time string (yyyy-MM-dd HH:mm:ss).
+     */
+    private static String time(long millis) {
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = TIME_FORMAT.format(Instant.ofEpochMilli(millis));
+        }
+        return cachedTime;
     }
 
     /**
-     * Gets the current time formatted for logging.
-     * 
-     * @return Formatted current time string (yyyy-MM-dd HH:mm:ss).
+     * One queued message, formatted on the writer thread. A null level marks a flush request.
      */
-    private static String getCurrentTime() {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        return dateFormat.format(new Date());
+    private static final class Entry {
+        final Level level;
+        final long millis;
+        final String className;
+        final String methodName;
+        final String message;
+        final Throwable throwable;
+        boolean written; // flush requests only, guarded by the entry itself
+
+        Entry(Level level, long millis, String className, String methodName, String message, Throwable throwable) {
+            this.level = level;
+            this.millis = millis;
+            this.className = className;
+            this.methodName = methodName;
+            this.message = message;
+            this.throwable = throwable;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,217 @@
+package msg.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Registry of the runtime metrics of the application: counters, gauges and latency histograms,
+ * looked up by name once and then updated without locks. Counters are {@link LongAdder}s, so
+ * threads updating the same one do not contend; gauges are read only when a snapshot is taken.
+ * <p>
+ * Snapshots flatten every metric into numbers, histograms giving their count, mean, p50, p90,
+ * p99 and max in microseconds. They are published as attributes of the {@code msg:type=Metrics}
+ * MBean and, if configured, written periodically to a local file.
+ */
+public final class Metrics {
+    private static final String MBEAN_NAME = "msg:type=Metrics";
+    private static final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Gets or creates a counter.
+     * @param name The name of the counter, e.g. {@code net.bytesIn}.
+     * @return The counter, to be kept by the caller.
+     */
+    public static LongAdder counter(String name) {
+        return get(name, LongAdder.class, new LongAdder());
+    }
+
+    /**
+     * Gets or creates a latency histogram.
+     * @param name The name of the histogram, e.g. {@code net.connectTime}.
+     * @return The histogram, recording nanoseconds, to be kept by the caller.
+     */
+    public static Histogram histogram(String name) {
+        return get(name, Histogram.class, new Histogram());
+    }
+
+    /**
+     * Registers a gauge, replacing any previous one with the same name.
+     * @param name The name of the gauge, e.g. {@code model.messages}.
+     * @param value Reads the current value; called when a snapshot is taken, from any thread.
+     */
+    public static void gauge(String name, LongSupplier value) {
+        Object old = metrics.put(name, value);
+        if (old != null && !(old instanceof LongSupplier)) {
+            metrics.put(name, old);
+            throw new IllegalArgumentException("Metric " + name + " is not a gauge");
+        }
+    }
+
+    private static <T> T get(String name, Class<T> type, T created) {
+        Object metric = metrics.putIfAbsent(name, created);
+        if (metric == null) {
+            return created;
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * Reads every metric.
+     * @return The values by name, sorted; histograms are expanded into several entries.
+     */
+    public static SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        metrics.forEach((name, metric) -> {
+            if (metric instanceof LongAdder counter) {
+                values.put(name, counter.sum());
+            } else if (metric instanceof Histogram h) {
+                values.put(name + ".count", h.count());
+                values.put(name + ".meanMicros", h.mean() / 1000);
+                values.put(name + ".p50Micros", h.percentile(50) / 1000);
+                values.put(name + ".p90Micros", h.percentile(90) / 1000);
+                values.put(name + ".p99Micros", h.percentile(99) / 1000);
+                values.put(name + ".maxMicros", h.max() / 1000);
+            } else {
+                try {
+                    values.put(name, ((LongSupplier) metric).getAsLong());
+                } catch (RuntimeException e) {
+                    LoggerUtil.logWarning("Metrics", "snapshot", "Gauge " + name + " failed: " + e);
+                }
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Publishes the metrics.
+     * @param jmx True to register the {@code msg:type=Metrics} MBean.
+     * @param file The file the snapshot is written to, or null for none.
+     * @param intervalSeconds Seconds between two snapshot files.
+     */
+    public static void start(boolean jmx, Path file, int intervalSeconds) {
+        if (jmx) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                LoggerUtil.logError("Metrics", "start", "Cannot register the metrics MBean", e);
+            }
+        }
+        if (file != null) {
+            ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            writer.scheduleWithFixedDelay(() -> write(file), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+            // The last numbers of the session are the most interesting ones
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> write(file), "Metrics-Final"));
+            LoggerUtil.logInfo("Metrics", "start", "Writing metrics to " + file + " every " + intervalSeconds + "s");
+        }
+    }
+
+    /**
+     * Writes a snapshot of every metric to a file, replacing it atomically.
+     * @param file The file, written as {@code name=value} lines.
+     */
+    public static void write(Path file) {
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            try {
+                try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    out.write("# " + Instant.now() + "\n");
+                    for (Map.Entry<String, Long> value : snapshot().entrySet()) {
+                        out.write(value.getKey() + "=" + value.getValue() + "\n");
+                    }
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            LoggerUtil.logError("Metrics", "write", "Cannot write metrics to " + file, e);
+        }
+    }
+
+    /**
+     * Exposes the snapshot as read-only attributes. Metrics registered later appear
+     * as soon as the console asks for the MBean info again.
+     */
+    private static final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            SortedMap<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                Long value = values.get(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = snapshot().keySet().stream()
+                    .map(name -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(Metrics.class.getName(), "SecretMessenger runtime metrics", attributes, null, null,
+                    null);
+        }
+    }
+}
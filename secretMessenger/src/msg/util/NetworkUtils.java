@@ -1,8 +1,12 @@
 package msg.util;
 
+import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -46,6 +50,25 @@ public class NetworkUtils {
         return "127.0.0.1";
     }
 
+    /**
+     * Retrieves every address of every interface that is up, loopback included.
+     * Enumerating the interfaces is slow, so callers should keep the result.
+     * @return The local addresses, or an empty set if they cannot be read.
+     */
+    public static Set<InetAddress> getLocalAddresses() {
+        Set<InetAddress> addresses = new HashSet<>();
+        try {
+            for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (iface.isUp()) {
+                    addresses.addAll(Collections.list(iface.getInetAddresses()));
+                }
+            }
+        } catch (Exception e) {
+            LoggerUtil.logError("NetworkUtils", "getLocalAddresses", "Error reading the network interfaces", e);
+        }
+        return addresses;
+    }
+
     /**
      * Validates if the given string is a valid IPv4 address.
      * @param ip The string to validate.
@@ -0,0 +1,35 @@
+package msg.view;
+
+import java.awt.Image;
+
+/**
+ * One line of the chat as shown by the {@link Window}: a text, or a prefix followed by an image.
+ */
+public final class ChatEntry {
+	private final String text;
+	private final Image image;
+
+	/**
+	 * Constructs a new ChatEntry.
+	 * @param text The text, or the sender prefix of an image.
+	 * @param image The image to show below the prefix, or null for a text line.
+	 */
+	public ChatEntry(String text, Image image) {
+		this.text = text;
+		this.image = image;
+	}
+
+	/**
+	 * @return The text, or the sender prefix of an image.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return The image, or null for a text line.
+	 */
+	public Image getImage() {
+		return image;
+	}
+}
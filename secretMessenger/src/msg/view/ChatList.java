@@ -0,0 +1,270 @@
+package msg.view;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.*;
+
+/**
+ * The chat messages, laid out as a virtual list: only the entries intersecting the
+ * visible area are measured and painted, so the cost of a repaint does not depend on
+ * the length of the chat.
+ * <p>
+ * Entry heights are cached together with the layout they were measured for and summed
+ * in a Fenwick tree, so locating the entry at a given position, appending an entry and
+ * correcting one height are all O(log n). When the width changes the cached heights are
+ * kept as estimates and only re-measured once their entries become visible.
+ * All methods must be called on the Event Dispatch Thread.
+ */
+class ChatList extends JComponent implements Scrollable {
+	private static final long serialVersionUID = 1L;
+	private static final int PADDING = 4;
+	private static final int IMAGE_WIDTH = Window.IMAGE_WIDTH;
+	// Width used to measure entries added before the list is first laid out
+	private static final int DEFAULT_WIDTH = 800;
+
+	private final List<ChatEntry> entries = new ArrayList<>();
+	private int[] heights = new int[64];
+	private int[] measuredFor = new int[64]; // layout each height was measured for
+	private int[] tree = new int[65]; // Fenwick tree over heights, 1-based
+	private int layout = 1; // bumped whenever the width changes
+	private final JTextArea renderer = new JTextArea();
+	private final CellRendererPane rendererPane = new CellRendererPane();
+
+	ChatList() {
+		setOpaque(true);
+		renderer.setLineWrap(true);
+		renderer.setWrapStyleWord(true);
+		renderer.setOpaque(false);
+		renderer.setEditable(false);
+		add(rendererPane);
+	}
+
+	/**
+	 * Adds entries below the others, with a single layout of the list.
+	 * @param newer The entries, oldest first.
+	 */
+	void append(List<ChatEntry> newer) {
+		ensureCapacity(entries.size() + newer.size());
+		for (ChatEntry entry : newer) {
+			int i = entries.size();
+			entries.add(entry);
+			heights[i] = measure(entry);
+			measuredFor[i] = layout;
+			update(i, heights[i]);
+		}
+		resized();
+	}
+
+	/**
+	 * Adds entries above the others.
+	 * @param older The entries, oldest first.
+	 * @return The height added above the entries already shown.
+	 */
+	int prepend(List<ChatEntry> older) {
+		int k = older.size();
+		int n = entries.size();
+		ensureCapacity(n + k);
+		System.arraycopy(heights, 0, heights, k, n);
+		System.arraycopy(measuredFor, 0, measuredFor, k, n);
+		entries.addAll(0, older);
+		int added = 0;
+		for (int i = 0; i < k; i++) {
+			heights[i] = measure(older.get(i));
+			measuredFor[i] = layout;
+			added += heights[i];
+		}
+		rebuild();
+		resized();
+		return added;
+	}
+
+	/**
+	 * Removes every entry.
+	 */
+	void clear() {
+		entries.clear();
+		Arrays.fill(tree, 0);
+		resized();
+		repaint();
+	}
+
+	/**
+	 * Scrolls to the newest entry.
+	 */
+	void scrollToEnd() {
+		scrollRectToVisible(new Rectangle(0, getHeight() - 1, 1, 1));
+	}
+
+	@Override
+	public void setBounds(int x, int y, int width, int height) {
+		if (width != getWidth()) {
+			layout++; // every cached height becomes an estimate
+		}
+		super.setBounds(x, y, width, height);
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		return new Dimension(IMAGE_WIDTH + 2 * PADDING, sum(entries.size()) + 2 * PADDING);
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+		boolean changed = false;
+		int i = indexAt(clip.y - PADDING);
+		int y = PADDING + sum(i);
+		for (; i < entries.size() && y < clip.y + clip.height; i++) {
+			ChatEntry entry = entries.get(i);
+			if (measuredFor[i] != layout) {
+				int h = measure(entry);
+				if (h != heights[i]) {
+					update(i, h - heights[i]);
+					heights[i] = h;
+					changed = true;
+				}
+				measuredFor[i] = layout;
+			}
+			paintEntry(g, entry, y, heights[i]);
+			y += heights[i];
+		}
+		if (changed) {
+			revalidate(); // the total height moved, let the scroll pane know
+		}
+	}
+
+	private void paintEntry(Graphics g, ChatEntry entry, int y, int height) {
+		int width = getWidth() - 2 * PADDING;
+		int textHeight = 0;
+		if (!entry.getText().isEmpty()) {
+			prepareRenderer(entry.getText(), width);
+			textHeight = renderer.getPreferredSize().height;
+			rendererPane.paintComponent(g, renderer, this, PADDING, y, width, textHeight, true);
+		}
+		Image image = entry.getImage();
+		if (image != null && image.getWidth(null) == IMAGE_WIDTH) {
+			g.drawImage(image, PADDING, y + textHeight + PADDING, null); // thumbnail, a plain copy
+		} else if (image != null) {
+			Graphics2D g2 = (Graphics2D) g.create();
+			g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2.drawImage(image, PADDING, y + textHeight + PADDING, IMAGE_WIDTH, imageHeight(image), null);
+			g2.dispose();
+		}
+	}
+
+	private int measure(ChatEntry entry) {
+		int width = (getWidth() > 0 ? getWidth() : DEFAULT_WIDTH) - 2 * PADDING;
+		int height = 0;
+		if (!entry.getText().isEmpty()) {
+			prepareRenderer(entry.getText(), width);
+			height += renderer.getPreferredSize().height;
+		}
+		if (entry.getImage() != null) {
+			height += imageHeight(entry.getImage()) + 2 * PADDING;
+		}
+		return height;
+	}
+
+	private void prepareRenderer(String text, int width) {
+		renderer.setFont(getFont());
+		renderer.setForeground(getForeground());
+		renderer.setText(text);
+		renderer.setSize(width, Short.MAX_VALUE); // wraps the text at this width
+	}
+
+	private static int imageHeight(Image image) {
+		int w = image.getWidth(null);
+		return w > 0 ? image.getHeight(null) * IMAGE_WIDTH / w : 0;
+	}
+
+	// Applies the new total height now, so the viewport can be positioned right away
+	private void resized() {
+		if (getParent() != null && getWidth() > 0) {
+			setSize(getWidth(), Math.max(getPreferredSize().height, getParent().getHeight()));
+		}
+		revalidate();
+		repaint();
+	}
+
+	private void ensureCapacity(int size) {
+		if (size > heights.length) {
+			int capacity = Math.max(size, heights.length * 2);
+			heights = Arrays.copyOf(heights, capacity);
+			measuredFor = Arrays.copyOf(measuredFor, capacity);
+			tree = new int[capacity + 1];
+			rebuild();
+		}
+	}
+
+	// Fenwick tree over the first entries.size() heights, the other slots stay 0
+	private void rebuild() {
+		Arrays.fill(tree, 0);
+		int n = entries.size();
+		for (int i = 1; i <= n; i++) {
+			tree[i] += heights[i - 1];
+			int parent = i + (i & -i);
+			if (parent < tree.length) {
+				tree[parent] += tree[i];
+			}
+		}
+	}
+
+	private void update(int index, int delta) {
+		for (int i = index + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	// Total height of the first count entries
+	private int sum(int count) {
+		int s = 0;
+		for (int i = count; i > 0; i -= i & -i) {
+			s += tree[i];
+		}
+		return s;
+	}
+
+	// Index of the entry covering position y, counted from the first entry
+	private int indexAt(int y) {
+		int index = 0;
+		int remaining = y;
+		for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+			int next = index + step;
+			if (next < tree.length && tree[next] <= remaining) {
+				index = next;
+				remaining -= tree[next];
+			}
+		}
+		return Math.min(index, entries.size());
+	}
+
+	@Override
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+
+	@Override
+	public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return 16;
+	}
+
+	@Override
+	public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportWidth() {
+		return true; // text wraps at the visible width
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportHeight() {
+		return getParent() != null && getParent().getHeight() > getPreferredSize().height;
+	}
+}
@@ -0,0 +1,72 @@
+package msg.view;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.AbstractListModel;
+
+/**
+ * The rows of the peer list, keyed by IP address. Adding or renaming a peer only
+ * touches its own row; peers keep the order in which they were added.
+ * All methods must be called on the Event Dispatch Thread.
+ */
+class PeerListModel extends AbstractListModel<String> {
+	private static final long serialVersionUID = 1L;
+
+	private final List<String> ips = new ArrayList<>();
+	private final Map<String, String> displays = new HashMap<>();
+	private final Map<String, Integer> indexes = new HashMap<>();
+
+	/**
+	 * Adds a peer, or changes its display if it is already listed.
+	 * @param ip The IP address of the peer.
+	 * @param display The text shown for the peer.
+	 */
+	void put(String ip, String display) {
+		displays.put(ip, display);
+		Integer index = indexes.get(ip);
+		if (index != null) {
+			fireContentsChanged(this, index, index);
+		} else {
+			indexes.put(ip, ips.size());
+			ips.add(ip);
+			fireIntervalAdded(this, ips.size() - 1, ips.size() - 1);
+		}
+	}
+
+	/**
+	 * Removes a peer, if listed.
+	 * @param ip The IP address of the peer.
+	 */
+	void remove(String ip) {
+		Integer index = indexes.remove(ip);
+		if (index == null) {
+			return;
+		}
+		displays.remove(ip);
+		ips.remove((int) index);
+		for (int i = index; i < ips.size(); i++) {
+			indexes.put(ips.get(i), i);
+		}
+		fireIntervalRemoved(this, index, index);
+	}
+
+	/**
+	 * @param ip The IP address of a peer.
+	 * @return The row of the peer, or -1 if it is not listed.
+	 */
+	int indexOf(String ip) {
+		return indexes.getOrDefault(ip, -1);
+	}
+
+	@Override
+	public int getSize() {
+		return ips.size();
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		return displays.get(ips.get(index));
+	}
+}
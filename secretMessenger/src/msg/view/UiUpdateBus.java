@@ -0,0 +1,137 @@
+package msg.view;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import msg.util.Histogram;
+import msg.util.Metrics;
+
+/**
+ * Collects changes to the {@link Window} made from any thread and applies them on the
+ * Event Dispatch Thread in one batch per frame, at most 60 times per second.
+ * <p>
+ * Chat entries are all kept and appended together. Other changes go to a slot, such as
+ * the status bar, where a newer change replaces the pending one, so a burst of status
+ * updates costs a single repaint.
+ * <p>
+ * The metrics {@code ui.updateDelay}, from the first change of a batch to its application,
+ * and {@code ui.applyTime}, spent on the EDT applying it, show how far the view lags behind.
+ */
+final class UiUpdateBus {
+	private static final int FRAME_MILLIS = 1000 / 60;
+	private static final Histogram UPDATE_DELAY = Metrics.histogram("ui.updateDelay");
+	private static final Histogram APPLY_TIME = Metrics.histogram("ui.applyTime");
+
+	private final Consumer<List<ChatEntry>> chat;
+	private final Timer timer;
+	private List<ChatEntry> entries = new ArrayList<>();
+	private List<Runnable> shown = new ArrayList<>();
+	private Map<Object, Runnable> slots = new LinkedHashMap<>();
+	private boolean scheduled;
+	private long scheduledAt;
+
+	/**
+	 * Constructs a new UiUpdateBus.
+	 * @param chat Receives the chat entries of each batch, oldest first, on the EDT.
+	 */
+	UiUpdateBus(Consumer<List<ChatEntry>> chat) {
+		this.chat = chat;
+		this.timer = new Timer(FRAME_MILLIS, e -> flush());
+		this.timer.setRepeats(false);
+	}
+
+	/**
+	 * Queues a chat entry. Can be called from any thread.
+	 * @param entry The entry to append.
+	 */
+	synchronized void append(ChatEntry entry) {
+		entries.add(entry);
+		schedule();
+	}
+
+	/**
+	 * Queues a chat entry. Can be called from any thread.
+	 * @param entry The entry to append.
+	 * @param onShown Run on the EDT right after the batch holding the entry was appended.
+	 */
+	synchronized void append(ChatEntry entry, Runnable onShown) {
+		entries.add(entry);
+		shown.add(onShown);
+		schedule();
+	}
+
+	/**
+	 * Queues a change, replacing the change still pending for the same slot. Can be called from any thread.
+	 * @param slot Identifies what the change updates.
+	 * @param update The change, run on the EDT.
+	 */
+	synchronized void replace(Object slot, Runnable update) {
+		slots.remove(slot); // re-inserted last, so the changes keep their order
+		slots.put(slot, update);
+		schedule();
+	}
+
+	/**
+	 * Drops the pending change of a slot, e.g. because it no longer applies.
+	 * @param slot Identifies what the change updates.
+	 */
+	synchronized void discard(Object slot) {
+		slots.remove(slot);
+	}
+
+	/**
+	 * Drops the pending chat entries, e.g. because the chat they belong to was cleared.
+	 */
+	synchronized void discardEntries() {
+		entries.clear();
+		shown.clear();
+	}
+
+	/**
+	 * Applies every pending change now. Must be called on the Event Dispatch Thread.
+	 */
+	void flush() {
+		List<ChatEntry> batch;
+		List<Runnable> callbacks;
+		Map<Object, Runnable> updates;
+		long queuedAt;
+		synchronized (this) {
+			if (!scheduled) {
+				return; // already flushed
+			}
+			batch = entries;
+			callbacks = shown;
+			updates = slots;
+			queuedAt = scheduledAt;
+			entries = new ArrayList<>();
+			shown = callbacks.isEmpty() ? callbacks : new ArrayList<>();
+			slots = new LinkedHashMap<>();
+			scheduled = false;
+		}
+		long start = System.nanoTime();
+		UPDATE_DELAY.record(start - queuedAt);
+		updates.values().forEach(Runnable::run);
+		if (!batch.isEmpty()) {
+			chat.accept(batch);
+		}
+		APPLY_TIME.recordSince(start);
+		callbacks.forEach(Runnable::run);
+	}
+
+	// Called with the lock held; the timer fires once per batch, not once per change
+	private void schedule() {
+		if (!scheduled) {
+			scheduled = true;
+			scheduledAt = System.nanoTime();
+			if (SwingUtilities.isEventDispatchThread()) {
+				timer.restart();
+			} else {
+				SwingUtilities.invokeLater(timer::restart);
+			}
+		}
+	}
+}
@@ -2,16 +2,10 @@ package msg.view;
 
 import java.awt.*;
 import java.awt.event.*;
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.util.Base64;
 import java.util.List;
+import java.util.Map;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter; // Import FileNameExtensionFilter
-import javax.swing.text.BadLocationException;
-import javax.swing.text.DefaultCaret;
-import javax.swing.text.StyledDocument;
 import msg.controller.Controller;
 
 /**
@@ -20,9 +14,13 @@ import msg.controller.Controller;
  */
 public class Window extends JFrame {
 	private static final long serialVersionUID = 1L;
-	private final DefaultListModel<String> peersModel = new DefaultListModel<>();
+	/** Width at which images are shown in the chat. */
+	public static final int IMAGE_WIDTH = 400;
+	private final PeerListModel peersModel = new PeerListModel();
 	private final JList<String> peersList = new JList<>(peersModel);
-	private final JTextPane chatPane = new JTextPane();
+	private final ChatList chatList = new ChatList();
+	private final UiUpdateBus updates = new UiUpdateBus(this::showEntries);
+	private final JScrollPane chatScroll = new JScrollPane(chatList);
 	private final JTextField inputArea = new JTextField();
 	private final JTextField peerIpField = new JTextField(12);
 	private final JButton sendBtn = new JButton("Invia");
@@ -47,11 +45,7 @@ public class Window extends JFrame {
 		setDefaultCloseOperation(EXIT_ON_CLOSE);
 		setSize(1200, 800);
 		setLocationRelativeTo(null);
-		DefaultCaret caret = (DefaultCaret) chatPane.getCaret();
-		caret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
-
-		chatPane.setEditable(false); // Set non-editable
-		chatPane.setFont(new Font("Helvetica Neue", Font.PLAIN, 14));
+		chatList.setFont(new Font("Helvetica Neue", Font.PLAIN, 14));
 
 		JPanel leftPanel = new JPanel(new BorderLayout());
 		leftPanel.add(new JLabel("Peer"), BorderLayout.NORTH);
@@ -102,7 +96,7 @@ public class Window extends JFrame {
 		chatHeaderPanel.add(peerStatusLabel, BorderLayout.EAST);
 		
 		centerPanel.add(chatHeaderPanel, BorderLayout.NORTH);
-		centerPanel.add(new JScrollPane(chatPane), BorderLayout.CENTER);
+		centerPanel.add(chatScroll, BorderLayout.CENTER);
 
 		JPanel inputPanel = new JPanel(new BorderLayout());
 		inputPanel.add(inputArea, BorderLayout.CENTER);
@@ -130,13 +124,7 @@ public class Window extends JFrame {
 			chooser.setAcceptAllFileFilterUsed(false); // Optionally disable the "All Files" option
 
 			if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-				File img = chooser.getSelectedFile();
-				try {
-					byte[] bytes = Files.readAllBytes(img.toPath());
-					String b64 = Base64.getEncoder().encodeToString(bytes);
-					controller.onSendMessage("!IMG" + b64);
-				} catch (IOException ignored) {
-				}
+				controller.onSendImage(chooser.getSelectedFile());
 			}
 		});
 
@@ -166,6 +154,15 @@ public class Window extends JFrame {
             }
         });
 
+		// Reaching the top of the chat asks for the previous page of history
+		chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+			JScrollBar bar = chatScroll.getVerticalScrollBar();
+			if (!e.getValueIsAdjusting() && e.getValue() == bar.getMinimum()
+					&& bar.getMaximum() - bar.getMinimum() > bar.getVisibleAmount()) {
+				controller.onHistoryTopReached();
+			}
+		});
+
 		peerIpField.addKeyListener(new KeyAdapter() {
 			@Override
 			public void keyPressed(KeyEvent e) {
@@ -193,54 +190,76 @@ public class Window extends JFrame {
 			toggleDarkMode();
 		});
 
+		addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				controller.shutdown(); // let pending handlers finish before EXIT_ON_CLOSE
+			}
+		});
+
 		// Apply initial theme before showing the window
 		toggleDarkMode(); // (dark mode)
 		
 	}
 
 	/**
-	 * Appends a text message to the chat pane.
+	 * Appends a text message to the chat pane. Can be called from any thread.
 	 * @param text The text message to append.
 	 */
 	public void appendText(String text) {
-		SwingUtilities.invokeLater(() -> {
-			StyledDocument doc = chatPane.getStyledDocument();
-			try {
-				doc.insertString(doc.getLength(), text + "\n", null);
-				chatPane.setCaretPosition(doc.getLength());
-			} catch (BadLocationException ignored) {}
-		});
+		updates.append(new ChatEntry(text, null));
 	}
 
 	/**
-	 * Appends an image to the chat pane.
-	 * @param img The image to append.
+	 * Appends a text message to the chat pane and reports when it is shown. Can be called from any thread.
+	 * @param text The text message to append.
+	 * @param onShown Run on the EDT once the message is in the chat pane.
+	 */
+	public void appendText(String text, Runnable onShown) {
+		updates.append(new ChatEntry(text, null), onShown);
+	}
+
+	/**
+	 * Appends an image to the chat pane. Can be called from any thread.
+	 * @param img The image to append, ideally already {@link #IMAGE_WIDTH} wide so painting it needs no scaling.
 	 */
 	public void appendImage(Image img) {
-		SwingUtilities.invokeLater(() -> {
-			StyledDocument doc = chatPane.getStyledDocument();
-			try {
-				doc.insertString(doc.getLength(), "\n", null);
-	
-				chatPane.setCaretPosition(doc.getLength());
-				chatPane.insertIcon(new ImageIcon(img.getScaledInstance(400, -1, Image.SCALE_SMOOTH)));
-	
-				doc.insertString(doc.getLength(), "\n", null);
-	
-				chatPane.setCaretPosition(doc.getLength());
-	
-				// Force the repainting for some bug of Java
-				chatPane.revalidate();
-				chatPane.repaint();
-			} catch (BadLocationException ignored) {}
-		});
+		updates.append(new ChatEntry("", img));
+	}
+
+	// One batch of appended messages, a single layout and scroll however many arrived
+	private void showEntries(List<ChatEntry> entries) {
+		chatList.append(entries);
+		chatList.scrollToEnd();
 	}
 
 	/**
-	 * Updates the status of the selected peer (Online/Offline).
+	 * Inserts a page of older messages above the ones shown, as a single update of the chat.
+	 * Unless {@code scrollToEnd} is set, the messages the user is looking at stay in place.
+	 * Must be called on the Event Dispatch Thread.
+	 * @param entries The messages, oldest first.
+	 * @param scrollToEnd True to show the newest message afterwards, as for the first page of a chat.
+	 */
+	public void prependHistory(List<ChatEntry> entries, boolean scrollToEnd) {
+		int oldY = chatScroll.getViewport().getViewPosition().y;
+		int added = chatList.prepend(entries);
+		if (scrollToEnd) {
+			chatList.scrollToEnd();
+		} else {
+			// Shift the view by the height of what was inserted above it
+			chatScroll.getViewport().setViewPosition(new Point(0, oldY + added));
+		}
+	}
+
+	/**
+	 * Updates the status of the selected peer (Online/Offline). Can be called from any thread.
 	 * @param online True if the peer is online, false otherwise.
 	 */
 	public void updatePeerStatus(boolean online) {
+		updates.replace(peerStatusLabel, () -> showPeerStatus(online));
+	}
+
+	private void showPeerStatus(boolean online) {
 	    if (online) {
 	        peerStatusLabel.setText("Online");
 	        peerStatusLabel.setBackground(new Color(76, 175, 80)); //Verde
@@ -255,28 +274,58 @@ public class Window extends JFrame {
 
 	/**
 	 * Selects a peer in the peer list.
-	 * @param display The display name of the peer to select.
+	 * @param ip The IP address of the peer to select.
+	 * @return False if the peer is not listed.
+	 */
+	public boolean selectPeer(String ip) {
+		updates.flush(); // the peer may be in a list update still pending
+		return select(peersModel.indexOf(ip));
+	}
+
+	/**
+	 * Selects the first peer of the peer list.
+	 * @return False if the list is empty.
 	 */
-	public void selectPeer(String display) {
-		peersList.setSelectedValue(display, true);
+	public boolean selectFirstPeer() {
+		updates.flush();
+		return select(peersModel.getSize() > 0 ? 0 : -1);
+	}
+
+	private boolean select(int index) {
+		if (index < 0) {
+			return false;
+		}
+		updates.discard(peerStatusLabel); // that status was for the previous peer
+		peersList.setSelectedIndex(index);
+		peersList.ensureIndexIsVisible(index);
 		peerStatusLabel.setVisible(false);
+		return true;
+	}
+
+	/**
+	 * Adds a peer to the peer list, or changes how it is shown. Can be called from any thread.
+	 * Only the row of that peer is updated; changes to the same peer within a frame are merged.
+	 * @param ip The IP address of the peer.
+	 * @param display The text shown for the peer.
+	 */
+	public void putPeer(String ip, String display) {
+		updates.replace(Map.entry(peersModel, ip), () -> peersModel.put(ip, display));
 	}
 
 	/**
-	 * Sets the list of peers to be displayed.
-	 * @param peers A list of peer display names.
+	 * Removes a peer from the peer list. Can be called from any thread.
+	 * @param ip The IP address of the peer.
 	 */
-	public void setPeers(List<String> peers) {
-		peersModel.clear();
-		peers.forEach(peersModel::addElement);
+	public void removePeer(String ip) {
+		updates.replace(Map.entry(peersModel, ip), () -> peersModel.remove(ip));
 	}
 
 	/**
-	 * Sets the status message displayed at the bottom of the window.
+	 * Sets the status message displayed at the bottom of the window. Can be called from any thread.
 	 * @param text The status text to display.
 	 */
 	public void setStatus(String text) {
-		statusLabel.setText(text);
+		updates.replace(statusLabel, () -> statusLabel.setText(text));
 	}
 
 	/**
@@ -305,7 +354,8 @@ public class Window extends JFrame {
 	 * Clears the chat pane.
 	 */
 	public void clearChat() {
-		chatPane.setText("");
+		updates.discardEntries(); // they belong to the chat being cleared
+		chatList.clear();
 	}
 
 	/**
@@ -342,10 +392,10 @@ public class Window extends JFrame {
 				textField.setBackground(listBg); // Use listBg for text fields
 				textField.setForeground(fg);
 				textField.setCaretColor(fg);
-			} else if (comp instanceof JTextPane textPane) {
-				textPane.setBackground(listBg);
-				textPane.setForeground(fg);
-				textPane.setCaretColor(fg);
+			} else if (comp instanceof ChatList chat) {
+				chat.setBackground(listBg);
+				chat.setForeground(fg);
+				chat.repaint();
 			} else if (comp instanceof JList list) {
 				list.setBackground(listBg);
 				list.setForeground(fg);
@@ -0,0 +1,127 @@
+package msg.controller;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class EventExecutorTest {
+	private final EventExecutor executor = EventExecutor.pool(4);
+
+	@AfterEach
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	@Test
+	void runsTheTasksOfALaneInSubmissionOrder() throws InterruptedException {
+		List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch done = new CountDownLatch(500);
+		for (int i = 0; i < 500; i++) {
+			int n = i;
+			assertTrue(executor.execute("10.0.0.1", () -> {
+				seen.add(n);
+				done.countDown();
+			}));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 500; i++) {
+			assertEquals(i, seen.get(i));
+		}
+	}
+
+	@Test
+	void runsATaskAtATimePerLane() throws InterruptedException {
+		int[] running = { 0 };
+		boolean[] overlapped = { false };
+		CountDownLatch done = new CountDownLatch(200);
+		for (int i = 0; i < 200; i++) {
+			executor.execute("10.0.0.1", () -> {
+				synchronized (running) {
+					overlapped[0] |= ++running[0] > 1;
+				}
+				Thread.yield();
+				synchronized (running) {
+					running[0]--;
+				}
+				done.countDown();
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertFalse(overlapped[0]);
+	}
+
+	@Test
+	void lanesDoNotWaitForEachOther() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch other = new CountDownLatch(1);
+		executor.execute("10.0.0.1", () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		executor.execute("10.0.0.2", other::countDown);
+		assertTrue(other.await(5, TimeUnit.SECONDS), "a blocked lane holds up another one");
+		release.countDown();
+	}
+
+	@Test
+	void refusesTasksBeyondTheLaneBacklog() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		executor.execute("10.0.0.1", () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+		int accepted = 0;
+		for (int i = 0; i < 1100; i++) {
+			int n = i;
+			if (executor.execute("10.0.0.1", () -> seen.add(n))) {
+				accepted++;
+			}
+		}
+		assertEquals(1024, accepted);
+		CountDownLatch last = new CountDownLatch(1);
+		release.countDown();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (seen.size() < accepted && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(accepted, seen.size());
+		for (int i = 0; i < accepted; i++) {
+			assertEquals(i, seen.get(i), "the accepted tasks are the first ones, in order");
+		}
+		assertTrue(executor.execute("10.0.0.1", last::countDown), "the drained lane takes tasks again");
+		assertTrue(last.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void refusesTasksOnceShutDown() {
+		executor.shutdown();
+		assertFalse(executor.execute(() -> { }));
+		assertFalse(executor.execute("10.0.0.1", () -> { }));
+	}
+
+	@Test
+	void survivesFailingTasks() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(1);
+		executor.execute("10.0.0.1", () -> {
+			throw new IllegalStateException("handler bug");
+		});
+		executor.execute("10.0.0.1", done::countDown);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,93 @@
+package msg.controller;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class PayloadCompressorTest {
+	private static final String PEER = "10.0.0.1";
+
+	// The network is only asked whether a peer accepts compression, which these tests do not need
+	private final PayloadCompressor compressor = new PayloadCompressor(null, true, 64);
+
+	@AfterEach
+	void release() {
+		compressor.close();
+	}
+
+	private static byte[] text(int size) {
+		byte[] line = "Ciao, come stai? Tutto bene qui.\n".getBytes(StandardCharsets.UTF_8);
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = line[i % line.length];
+		}
+		return data;
+	}
+
+	private static byte[] withSize(byte[] compressed, int size) {
+		byte[] copy = compressed.clone();
+		ByteBuffer.wrap(copy).putInt(size);
+		return copy;
+	}
+
+	@Test
+	void restoresCompressedPayloads() throws IOException {
+		byte[] data = text(100_000);
+		byte[] compressed = compressor.deflate(PEER, data);
+		assertNotNull(compressed);
+		assertTrue(compressed.length < data.length / 10);
+		assertArrayEquals(data, compressor.inflate(PEER, compressed));
+		compressor.release(PEER); // the codecs are created again
+		assertArrayEquals(data, compressor.inflate(PEER, compressed));
+	}
+
+	@Test
+	void sendsSmallAndIncompressiblePayloadsAsTheyAre() {
+		assertNull(compressor.deflate(PEER, text(63)));
+		byte[] random = new byte[4096];
+		new Random(1).nextBytes(random);
+		assertNull(compressor.deflate(PEER, random));
+	}
+
+	@Test
+	void rejectsSizesAboveTheLimit() throws IOException {
+		byte[] compressed = compressor.deflate(PEER, text(10_000));
+		assertThrows(IOException.class, () -> compressor.inflate(PEER, compressed, 0, compressed.length, 9_999));
+		assertThrows(IOException.class, () -> compressor.inflate(PEER, withSize(compressed, -1)));
+		assertThrows(IOException.class,
+				() -> compressor.inflate(PEER, withSize(compressed, PayloadCompressor.MAX_INFLATED + 1)));
+		assertArrayEquals(text(10_000), compressor.inflate(PEER, compressed, 0, compressed.length, 10_000));
+	}
+
+	@Test
+	void rejectsPayloadsLargerThanAnnounced() {
+		byte[] compressed = compressor.deflate(PEER, text(10_000));
+		IOException e = assertThrows(IOException.class, () -> compressor.inflate(PEER, withSize(compressed, 1000)));
+		assertTrue(e.getMessage().contains("larger"), e.getMessage());
+	}
+
+	@Test
+	void rejectsPayloadsSmallerThanAnnounced() {
+		byte[] compressed = compressor.deflate(PEER, text(10_000));
+		IOException e = assertThrows(IOException.class, () -> compressor.inflate(PEER, withSize(compressed, 20_000)));
+		assertTrue(e.getMessage().contains("smaller"), e.getMessage());
+	}
+
+	@Test
+	void rejectsTruncatedAndCorruptPayloads() throws IOException {
+		byte[] compressed = compressor.deflate(PEER, text(10_000));
+		assertThrows(IOException.class,
+				() -> compressor.inflate(PEER, Arrays.copyOf(compressed, compressed.length / 2)));
+		assertThrows(IOException.class, () -> compressor.inflate(PEER, new byte[3]));
+		byte[] corrupt = compressed.clone();
+		Arrays.fill(corrupt, 4, corrupt.length, (byte) 0xFF);
+		assertThrows(IOException.class, () -> compressor.inflate(PEER, corrupt));
+		assertArrayEquals(text(10_000), compressor.inflate(PEER, compressed), "the codec is usable afterwards");
+	}
+}
@@ -0,0 +1,171 @@
+package msg.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.crypto.spec.SecretKeySpec;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+@SuppressWarnings("rawtypes")
+class ChatLogTest {
+    private static final String PEER = "10.0.0.2";
+    private static final String UNREADABLE = "--- Messaggio non leggibile ---";
+
+    @TempDir
+    Path dir;
+
+    private final CryptoEngine crypto = new CryptoEngine(new SecretKeySpec(new byte[32], "AES"));
+    private ChatLog current; // closed after each test
+
+    private ChatLog open() throws IOException {
+        if (current != null) {
+            current.close();
+        }
+        current = new ChatLog(dir.resolve("history"), () -> crypto, new ImageCache(64L << 20),
+                new Thumbnails(16L << 20, dir.resolve("thumbnails"), 16L << 20, () -> crypto));
+        return current;
+    }
+
+    @AfterEach
+    void close() {
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(1, 1, 0xFF0000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private Path segment() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.resolve("history"))) {
+            return files.filter(p -> p.toString().endsWith(".log")).findFirst().orElseThrow();
+        }
+    }
+
+    @Test
+    void readsBackMessagesAfterReopening() throws Exception {
+        ChatLog log = open();
+        log.rename(PEER, "Anna");
+        log.append(PEER, "Anna: ciao", null, null);
+        log.append(PEER, "Tu: è tutto a posto?", null, null);
+        assertEquals(2, log.count(PEER));
+
+        log = open();
+        assertEquals(List.of(PEER), List.copyOf(log.peers()));
+        assertEquals("Anna", log.names().get(PEER));
+        assertEquals(2, log.count(PEER));
+        List<Message> messages = log.read(PEER, 0, 10);
+        assertEquals("Anna: ciao", messages.get(0).getMessage());
+        assertEquals("Tu: è tutto a posto?", messages.get(1).getMessage());
+        assertFalse(messages.get(0).haveContent());
+    }
+
+    @Test
+    void readsBackImages() throws Exception {
+        ChatLog log = open();
+        log.append(PEER, "Tu: ", null, png(40, 30));
+        log.append(PEER, "Anna: ", null, png(20, 10));
+        log = open();
+        List<Message> messages = log.read(PEER, 0, 2);
+        assertEquals("Tu: ", messages.get(0).getMessage());
+        assertEquals(PEER + ": ", messages.get(1).getMessage(), "named after the chat as it is now");
+        Image image = ((ImageContent) messages.get(0).getContent()).getImage();
+        assertEquals(40, image.getWidth(null));
+        assertEquals(30, image.getHeight(null));
+        ImageContent second = (ImageContent) messages.get(1).getContent();
+        assertEquals(20, second.getImage().getWidth(null));
+        assertTrue(second.getDiskName().startsWith(PEER + "/"));
+    }
+
+    @Test
+    void reportsDamagedRecordsAsUnreadable() throws Exception {
+        ChatLog log = open();
+        log.append(PEER, "uno", null, null);
+        log.append(PEER, "due", null, null);
+        log.append(PEER, "tre", null, null);
+        log.count(PEER); // waits for the writes
+        log.close();
+        current = null;
+        Path segment = segment();
+        byte[] data = Files.readAllBytes(segment);
+        int second = ByteBuffer.wrap(data).getInt() + 5; // after the first record
+        data[second + 10] ^= 1;
+        Files.write(segment, data);
+
+        List<Message> messages = open().read(PEER, 0, 3);
+        assertEquals("uno", messages.get(0).getMessage());
+        assertEquals(UNREADABLE, messages.get(1).getMessage());
+        assertEquals("tre", messages.get(2).getMessage());
+    }
+
+    @Test
+    void reportsDamagedImagesAsUnreadableImages() throws Exception {
+        ChatLog log = open();
+        log.append(PEER, "Tu: ", null, png(40, 30));
+        log.count(PEER);
+        log.close();
+        current = null;
+        Path segment = segment();
+        byte[] data = Files.readAllBytes(segment);
+        data[data.length - 5] ^= 1; // in the tag of the last image chunk
+        Files.write(segment, data);
+
+        Message message = open().read(PEER, 0, 1).get(0);
+        assertNull(((ImageContent) message.getContent()).getImage());
+    }
+
+    @Test
+    void cutsOffATornRecord() throws Exception {
+        ChatLog log = open();
+        log.append(PEER, "uno", null, null);
+        log.append(PEER, "due", null, null);
+        log.count(PEER);
+        log.close();
+        current = null;
+        Path segment = segment();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3); // a crash in the middle of the second write
+        }
+
+        log = open();
+        assertEquals(1, log.count(PEER));
+        log.append(PEER, "tre", null, null);
+        List<Message> messages = log.read(PEER, 0, 5);
+        assertEquals(2, messages.size());
+        assertEquals("uno", messages.get(0).getMessage());
+        assertEquals("tre", messages.get(1).getMessage());
+    }
+
+    @Test
+    void removesAChatWithItsFiles() throws Exception {
+        ChatLog log = open();
+        log.append(PEER, "ciao", null, null);
+        log.count(PEER);
+        Path folder = segment().getParent();
+        assertTrue(log.remove(PEER));
+        assertFalse(log.remove(PEER));
+        assertEquals(-1, log.count(PEER));
+        log.close();
+        current = null;
+        assertFalse(Files.exists(folder));
+        assertTrue(open().peers().isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+package msg.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.Test;
+
+class SealedBlobTest {
+    private final CryptoEngine crypto = new CryptoEngine(new SecretKeySpec(new byte[32], "AES"));
+
+    private byte[] seal(byte[] plain) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SealedBlob.write(crypto, new ByteArrayInputStream(plain), plain.length, Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private byte[] open(byte[] sealed) throws IOException {
+        try (InputStream in = SealedBlob.open(() -> crypto, ByteBuffer.wrap(sealed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void roundTripsAnySize() throws Exception {
+        for (int size : new int[] { 0, 1, SealedBlob.CHUNK - 1, SealedBlob.CHUNK, 3 * SealedBlob.CHUNK + 5 }) {
+            byte[] plain = random(size);
+            byte[] sealed = seal(plain);
+            assertEquals(SealedBlob.size(size), sealed.length, "size of " + size);
+            assertArrayEquals(plain, open(sealed), "content of " + size);
+        }
+    }
+
+    @Test
+    void eachBlobGetsItsOwnId() throws Exception {
+        byte[] plain = random(100);
+        byte[] a = seal(plain);
+        byte[] b = seal(plain);
+        assertNotEquals(SealedBlob.id(ByteBuffer.wrap(a)), SealedBlob.id(ByteBuffer.wrap(b)));
+        assertFalse(Arrays.equals(a, b));
+        assertEquals(24, SealedBlob.id(ByteBuffer.wrap(a)).length());
+        assertNull(SealedBlob.id(ByteBuffer.wrap(a, 0, 11)));
+    }
+
+    @Test
+    void detectsTamperedChunks() throws Exception {
+        byte[] sealed = seal(random(2 * SealedBlob.CHUNK));
+        sealed[sealed.length - 20] ^= 1;
+        assertThrows(IOException.class, () -> open(sealed));
+    }
+
+    @Test
+    void detectsMissingChunks() throws Exception {
+        byte[] sealed = seal(random(3 * SealedBlob.CHUNK));
+        int chunk = CryptoEngine.encryptedSize(SealedBlob.CHUNK);
+        // Cut after the second chunk, on a chunk boundary
+        assertThrows(IOException.class, () -> open(Arrays.copyOf(sealed, 12 + 2 * chunk)));
+        // The first chunk taken out
+        byte[] reordered = new byte[sealed.length - chunk];
+        System.arraycopy(sealed, 0, reordered, 0, 12);
+        System.arraycopy(sealed, 12 + chunk, reordered, 12, reordered.length - 12);
+        assertThrows(IOException.class, () -> open(reordered));
+    }
+
+    @Test
+    void detectsChunksMovedBetweenBlobs() throws Exception {
+        byte[] a = seal(random(1000));
+        byte[] b = seal(random(1000));
+        System.arraycopy(b, 0, a, 0, 12); // the chunk of a under the id of b
+        assertThrows(IOException.class, () -> open(a));
+    }
+
+    @Test
+    void failsOnAShortStream() {
+        byte[] plain = random(10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThrows(EOFException.class, () -> SealedBlob.write(crypto, new ByteArrayInputStream(plain), 11,
+                Channels.newChannel(out)));
+        assertThrows(EOFException.class, () -> SealedBlob.open(() -> crypto, ByteBuffer.allocate(11)));
+    }
+
+    @Test
+    void readsLazily() throws Exception {
+        byte[] plain = random(2 * SealedBlob.CHUNK);
+        byte[] sealed = seal(plain);
+        sealed[sealed.length - 20] ^= 1; // only the second chunk is damaged
+        try (InputStream in = SealedBlob.open(() -> crypto, ByteBuffer.wrap(sealed))) {
+            assertArrayEquals(Arrays.copyOf(plain, SealedBlob.CHUNK), in.readNBytes(SealedBlob.CHUNK));
+            assertThrows(IOException.class, in::read);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package msg.net;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class ConnectionTableTest {
+    private static final String PEER = "10.0.0.2";
+
+    private static final class TestLink extends ConnectionTable.Link {
+        int retires;
+
+        TestLink(boolean incoming) {
+            super(PEER, incoming);
+        }
+
+        @Override
+        void retire() {
+            retires++;
+        }
+    }
+
+    private static Frame hello(long nodeId) {
+        byte[] payload = ByteBuffer.allocate(11).put((byte) '\n').put((byte) Frame.FEATURE_GCM).putLong(nodeId)
+                .put((byte) '\n').array();
+        return new Frame(Frame.TYPE_HELLO, 0, payload);
+    }
+
+    @Test
+    void reportsTheFirstAndLastConnectionOfAPeer() {
+        ConnectionTable<TestLink> table = new ConnectionTable<>(1);
+        TestLink a = new TestLink(false);
+        TestLink b = new TestLink(true);
+        assertTrue(table.add(a));
+        assertFalse(table.add(b));
+        assertSame(a, table.active(PEER));
+        assertFalse(table.remove(a));
+        assertSame(b, table.active(PEER));
+        assertTrue(table.remove(b));
+        assertFalse(table.remove(b));
+        assertNull(table.active(PEER));
+        assertTrue(table.all(PEER).isEmpty());
+    }
+
+    @Test
+    void bothSidesKeepTheConnectionOpenedByTheLargerId() {
+        // Node 10 and node 20 connect to each other at the same time
+        ConnectionTable<TestLink> small = new ConnectionTable<>(10);
+        TestLink smallOut = new TestLink(false);
+        TestLink smallIn = new TestLink(true); // opened by 20
+        small.add(smallOut);
+        small.add(smallIn);
+        ConnectionTable<TestLink> large = new ConnectionTable<>(20);
+        TestLink largeOut = new TestLink(false); // the same socket as smallIn
+        TestLink largeIn = new TestLink(true); // the same socket as smallOut
+        large.add(largeOut);
+        large.add(largeIn);
+
+        small.onFrame(smallOut, hello(20));
+        assertEquals(0, smallOut.retires, "undecided until the other HELLO arrived");
+        small.onFrame(smallIn, hello(20));
+        large.onFrame(largeIn, hello(10));
+        large.onFrame(largeOut, hello(10));
+
+        assertEquals(1, smallOut.retires);
+        assertEquals(0, smallIn.retires);
+        assertSame(smallIn, small.active(PEER));
+        assertEquals(1, largeIn.retires);
+        assertEquals(0, largeOut.retires);
+        assertSame(largeOut, large.active(PEER));
+
+        small.onFrame(smallIn, hello(20)); // settled once only
+        assertEquals(1, smallOut.retires);
+        assertEquals(2, small.all(PEER).size(), "retired connections stay until they close");
+    }
+
+    @Test
+    void neverRetiresConnectionsWithoutNodeId() {
+        ConnectionTable<TestLink> table = new ConnectionTable<>(10);
+        TestLink out = new TestLink(false);
+        TestLink in = new TestLink(true);
+        table.add(out);
+        table.add(in);
+        Frame oldHello = new Frame(Frame.TYPE_HELLO, 0, new byte[] { '\n', 0 });
+        table.onFrame(out, oldHello);
+        table.onFrame(in, oldHello);
+        assertEquals(0, out.retires);
+        assertEquals(0, in.retires);
+        assertSame(out, table.active(PEER));
+    }
+
+    @Test
+    void keepsTheNewestConnectionAfterAReconnect() {
+        ConnectionTable<TestLink> table = new ConnectionTable<>(10);
+        TestLink first = new TestLink(true);
+        table.add(first);
+        table.onFrame(first, hello(20));
+        TestLink second = new TestLink(true); // the peer reconnected before the first closed
+        table.add(second);
+        table.onFrame(second, hello(20));
+        assertEquals(1, first.retires);
+        assertEquals(0, second.retires);
+        assertSame(second, table.active(PEER));
+    }
+}
@@ -0,0 +1,112 @@
+package msg.net;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class FrameCodecTest {
+    private final List<Frame> frames = new ArrayList<>();
+    private final FrameCodec codec = new FrameCodec("10.0.0.1", frames::add);
+
+    private static byte[] encode(Frame frame) {
+        ByteBuffer header = FrameCodec.header(frame);
+        byte[] wire = new byte[header.remaining() + frame.getPayload().length];
+        header.get(wire, 0, Frame.HEADER_SIZE);
+        System.arraycopy(frame.getPayload(), 0, wire, Frame.HEADER_SIZE, frame.getPayload().length);
+        return wire;
+    }
+
+    private static byte[] line(Frame frame) {
+        ByteBuffer line = FrameCodec.line(frame);
+        byte[] wire = new byte[line.remaining()];
+        line.get(wire);
+        return wire;
+    }
+
+    @Test
+    void decodesFramesFedOneByteAtATime() throws IOException {
+        byte[] wire = encode(new Frame(Frame.TYPE_TEXT, Frame.FLAG_GCM, "ciao".getBytes(StandardCharsets.UTF_8)));
+        for (byte b : wire) {
+            codec.feed(new byte[] { b }, 0, 1);
+        }
+        assertEquals(1, frames.size());
+        Frame frame = frames.get(0);
+        assertEquals(Frame.TYPE_TEXT, frame.getType());
+        assertEquals(Frame.FLAG_GCM, frame.getFlags());
+        assertEquals("ciao", new String(frame.getPayload(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void decodesSeveralFramesInOneRead() throws IOException {
+        byte[] a = encode(new Frame(Frame.TYPE_ACK, 0, new byte[12]));
+        byte[] b = encode(new Frame(Frame.TYPE_HELLO, 0, new byte[0]));
+        byte[] both = new byte[a.length + b.length];
+        System.arraycopy(a, 0, both, 0, a.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        codec.feed(both, 0, both.length);
+        assertEquals(2, frames.size());
+        assertEquals(Frame.TYPE_ACK, frames.get(0).getType());
+        assertEquals(Frame.TYPE_HELLO, frames.get(1).getType());
+        assertEquals(0, frames.get(1).getPayload().length);
+    }
+
+    @Test
+    void growsTheBufferOfLargePayloads() throws IOException {
+        byte[] payload = new byte[300 * 1024 + 7];
+        new Random(1).nextBytes(payload);
+        byte[] wire = encode(new Frame(Frame.TYPE_FILE_CHUNK, 0, payload));
+        for (int off = 0; off < wire.length; off += 1500) {
+            codec.feed(wire, off, Math.min(1500, wire.length - off));
+        }
+        assertEquals(1, frames.size());
+        assertArrayEquals(payload, frames.get(0).getPayload());
+    }
+
+    @Test
+    void decodesLegacyLinesBetweenFrames() throws IOException {
+        byte[] text = "vecchio".getBytes(StandardCharsets.UTF_8);
+        byte[] legacy = line(new Frame(Frame.TYPE_TEXT, 0, text));
+        byte[] binary = encode(new Frame(Frame.TYPE_IMAGE, 0, new byte[] { 1, 2, 3 }));
+        codec.feed(binary, 0, binary.length);
+        codec.feed(legacy, 0, 3);
+        codec.feed(legacy, 3, legacy.length - 3);
+        codec.feed(binary, 0, binary.length);
+        assertEquals(3, frames.size());
+        assertEquals(Frame.TYPE_IMAGE, frames.get(0).getType());
+        assertEquals(Frame.TYPE_TEXT, frames.get(1).getType());
+        assertArrayEquals(text, frames.get(1).getPayload());
+        assertEquals(Frame.TYPE_IMAGE, frames.get(2).getType());
+    }
+
+    @Test
+    void skipsMalformedLinesAndBlankLines() throws IOException {
+        byte[] wire = "!!not base64!!\n\r\n\nAQID\n".getBytes(StandardCharsets.US_ASCII);
+        codec.feed(wire, 0, wire.length);
+        assertEquals(1, frames.size());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, frames.get(0).getPayload());
+    }
+
+    @Test
+    void rejectsUnknownVersions() {
+        byte[] header = { 2, Frame.TYPE_TEXT, 0, 0, 0, 0, 1 };
+        assertThrows(IOException.class, () -> codec.feed(header, 0, header.length));
+    }
+
+    @Test
+    void rejectsOversizedAndNegativeLengths() {
+        byte[] tooLarge = ByteBuffer.allocate(Frame.HEADER_SIZE).put(Frame.VERSION).put(Frame.TYPE_TEXT).put((byte) 0)
+                .putInt(FrameCodec.MAX_PAYLOAD + 1).array();
+        assertThrows(IOException.class, () -> codec.feed(tooLarge, 0, tooLarge.length));
+        FrameCodec other = new FrameCodec("10.0.0.2", frames::add);
+        byte[] negative = ByteBuffer.allocate(Frame.HEADER_SIZE).put(Frame.VERSION).put(Frame.TYPE_TEXT).put((byte) 0)
+                .putInt(-1).array();
+        assertThrows(IOException.class, () -> other.feed(negative, 0, negative.length));
+        assertTrue(frames.isEmpty());
+    }
+}
@@ -0,0 +1,104 @@
+package msg.net;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+
+class OutboxTest {
+    private static ByteBuffer bytes(int n) {
+        return ByteBuffer.allocate(n);
+    }
+
+    @Test
+    void keepsMessagesInOrder() throws IOException {
+        Outbox outbox = new Outbox();
+        ByteBuffer a = bytes(1);
+        ByteBuffer b = bytes(2);
+        ByteBuffer c = bytes(3);
+        outbox.offer(a);
+        outbox.offer(b, c);
+        assertEquals(2, outbox.depth());
+        assertSame(a, outbox.poll()[0]);
+        ByteBuffer[] second = outbox.poll();
+        assertSame(b, second[0]);
+        assertSame(c, second[1]);
+        assertNull(outbox.poll());
+        assertEquals(0, outbox.depth());
+    }
+
+    @Test
+    void letsOneWriterDrainEverythingQueued() throws IOException {
+        Outbox outbox = new Outbox();
+        assertTrue(outbox.claim());
+        assertFalse(outbox.claim(), "a single writer at a time");
+        // Queued while the writer drains, so it is written with the same flush
+        outbox.offer(bytes(1));
+        outbox.offer(bytes(1));
+        assertTrue(outbox.release(), "messages left, the writer keeps the role");
+        assertNotNull(outbox.poll());
+        assertNotNull(outbox.poll());
+        assertFalse(outbox.release());
+        assertTrue(outbox.claim());
+    }
+
+    @Test
+    void sealKeepsQueuedMessagesAndRefusesNewOnes() throws IOException {
+        Outbox outbox = new Outbox();
+        outbox.offer(bytes(4));
+        outbox.seal();
+        assertThrows(IOException.class, () -> outbox.offer(bytes(4)));
+        assertEquals(1, outbox.depth());
+        assertNotNull(outbox.poll());
+    }
+
+    @Test
+    void closeDropsQueuedMessages() throws IOException {
+        Outbox outbox = new Outbox();
+        outbox.offer(bytes(4));
+        outbox.close();
+        assertNull(outbox.poll());
+        assertEquals(0, outbox.depth());
+        assertThrows(IOException.class, () -> outbox.offer(bytes(4)));
+    }
+
+    @Test
+    void blocksSendersUntilTheWriterCatchesUp() throws Exception {
+        Outbox outbox = new Outbox();
+        int big = (int) Outbox.MAX_PENDING_BYTES + 1;
+        outbox.offer(bytes(big));
+        CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                outbox.offer(bytes(1));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> blocked.get(300, TimeUnit.MILLISECONDS));
+        outbox.poll();
+        outbox.written(big);
+        blocked.get(5, TimeUnit.SECONDS);
+        assertEquals(1, outbox.depth());
+    }
+
+    @Test
+    void sealFailsBlockedSenders() throws Exception {
+        Outbox outbox = new Outbox();
+        outbox.offer(bytes((int) Outbox.MAX_PENDING_BYTES + 1));
+        CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                outbox.offer(bytes(1));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> blocked.get(200, TimeUnit.MILLISECONDS));
+        outbox.seal();
+        Exception e = assertThrows(Exception.class, () -> blocked.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, e.getCause().getCause());
+    }
+}
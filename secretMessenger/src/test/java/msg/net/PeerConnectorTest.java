@@ -0,0 +1,131 @@
+package msg.net;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class PeerConnectorTest {
+    private static final String PEER = "10.0.0.2";
+
+    private final List<Long> attempts = new CopyOnWriteArrayList<>(); // System.nanoTime() of each attempt
+    private final List<Long> rejections = new CopyOnWriteArrayList<>();
+
+    private PeerConnector failing(int failuresBeforeSuccess) {
+        AtomicInteger calls = new AtomicInteger();
+        return new PeerConnector(ip -> {
+            attempts.add(System.nanoTime());
+            return calls.incrementAndGet() <= failuresBeforeSuccess
+                    ? CompletableFuture.failedFuture(new IOException("refused"))
+                    : CompletableFuture.completedFuture(null);
+        }, (ip, leftMs) -> rejections.add(leftMs));
+    }
+
+    // Requests made while the waiters of an attempt are being completed share its outcome
+    private static void awaitIdle(PeerConnector connector) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (connector.isConnecting(PEER) && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        assertFalse(connector.isConnecting(PEER));
+    }
+
+    private static Throwable failure(CompletableFuture<Void> future) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        return e.getCause();
+    }
+
+    @Test
+    void requestsJoinTheAttemptInProgress() throws Exception {
+        CompletableFuture<Void> pending = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+        PeerConnector connector = new PeerConnector(ip -> {
+            calls.incrementAndGet();
+            return pending;
+        }, (ip, leftMs) -> { });
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> first = connector.connect(PEER, 1, 10).thenRun(() -> order.add(1));
+        CompletableFuture<Void> second = connector.connect(PEER, 1, 10).thenRun(() -> order.add(2));
+        assertTrue(connector.isConnecting(PEER));
+        pending.complete(null);
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(1, calls.get());
+        assertEquals(List.of(1, 2), order);
+        assertFalse(connector.isConnecting(PEER));
+    }
+
+    @Test
+    void retriesWithGrowingDelays() throws Exception {
+        PeerConnector connector = failing(2);
+        connector.connect(PEER, 3, 100).get(5, TimeUnit.SECONDS);
+        assertEquals(3, attempts.size());
+        // Equal jitter: between half and all of 100 ms, then of 200 ms
+        long firstWait = TimeUnit.NANOSECONDS.toMillis(attempts.get(1) - attempts.get(0));
+        long secondWait = TimeUnit.NANOSECONDS.toMillis(attempts.get(2) - attempts.get(1));
+        assertTrue(firstWait >= 50, "first wait " + firstWait);
+        assertTrue(secondWait >= 100, "second wait " + secondWait);
+    }
+
+    @Test
+    void givesUpAfterTheLastAttempt() {
+        PeerConnector connector = failing(Integer.MAX_VALUE);
+        connector.setBreaker(10, 60_000);
+        assertInstanceOf(IOException.class, failure(connector.connect(PEER, 2, 1)));
+        assertEquals(2, attempts.size());
+        assertTrue(rejections.isEmpty());
+    }
+
+    @Test
+    void openBreakerRefusesRequestsUntilReset() throws Exception {
+        PeerConnector connector = failing(3);
+        connector.setBreaker(3, 60_000);
+        assertInstanceOf(IOException.class, failure(connector.connect(PEER, 10, 1)));
+        assertEquals(3, attempts.size(), "the breaker stops the retries");
+        awaitIdle(connector);
+
+        assertInstanceOf(ConnectException.class, failure(connector.connect(PEER, 10, 1)));
+        assertEquals(3, attempts.size());
+        assertEquals(1, rejections.size());
+        assertTrue(rejections.get(0) > 0 && rejections.get(0) <= 60_001);
+
+        connector.reset(PEER); // e.g. the peer connected to us
+        connector.connect(PEER, 1, 1).get(5, TimeUnit.SECONDS);
+        assertEquals(4, attempts.size());
+    }
+
+    @Test
+    void letsOneAttemptThroughAfterTheCoolDown() throws Exception {
+        PeerConnector connector = failing(1);
+        connector.setBreaker(1, 100);
+        failure(connector.connect(PEER, 5, 1));
+        awaitIdle(connector);
+        assertInstanceOf(ConnectException.class, failure(connector.connect(PEER, 5, 1)));
+        Thread.sleep(150);
+        connector.connect(PEER, 1, 1).get(5, TimeUnit.SECONDS);
+        assertEquals(2, attempts.size());
+    }
+
+    @Test
+    void closeFailsWaitingRetries() {
+        PeerConnector connector = failing(Integer.MAX_VALUE);
+        connector.setBreaker(10, 60_000);
+        CompletableFuture<Void> connecting = connector.connect(PEER, 5, 10_000);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (attempts.isEmpty() && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        connector.close();
+        // Failed by close() if the retry was waiting, or by the first attempt if it had not been scheduled yet
+        assertInstanceOf(IOException.class, failure(connecting));
+        awaitIdle(connector);
+        assertInstanceOf(ConnectException.class, failure(connector.connect(PEER, 1, 1)));
+    }
+}
@@ -0,0 +1,78 @@
+package msg.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+    @Test
+    void emptyHistogramReportsZero() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.mean());
+        assertEquals(0, h.max());
+        assertEquals(0, h.percentile(99));
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        Histogram h = new Histogram();
+        for (int i = 0; i < 16; i++) {
+            h.record(i);
+        }
+        assertEquals(7, h.percentile(50));
+        assertEquals(15, h.percentile(100));
+        assertEquals(0, h.percentile(0));
+    }
+
+    @Test
+    void percentilesAreWithinTheBucketError() {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 1_000_000; v++) {
+            h.record(v * 1000);
+        }
+        assertEquals(1_000_000, h.count());
+        assertEquals(1_000_000_000L, h.max());
+        assertEquals(500_000_500L, h.mean());
+        for (double p : new double[] { 1, 50, 90, 99, 99.9 }) {
+            long exact = (long) Math.ceil(1_000_000 * p / 100) * 1000;
+            long reported = h.percentile(p);
+            assertTrue(reported <= exact, p + ": " + reported + " above " + exact);
+            assertTrue(reported >= exact - exact / 16, p + ": " + reported + " too far below " + exact);
+        }
+        long top = h.percentile(100);
+        assertTrue(top <= h.max() && top >= h.max() - h.max() / 16, "100: " + top);
+    }
+
+    @Test
+    void largeValuesDoNotOverflow() {
+        Histogram h = new Histogram();
+        h.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, h.max());
+        assertTrue(h.percentile(50) > Long.MAX_VALUE / 2);
+    }
+
+    @Test
+    void negativeValuesCountAsZero() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        assertEquals(1, h.count());
+        assertEquals(0, h.max());
+        assertEquals(0, h.percentile(50));
+    }
+
+    @Test
+    void addMergesCountsSumAndMax() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        a.record(10);
+        a.record(20);
+        b.record(3000);
+        a.add(b);
+        assertEquals(3, a.count());
+        assertEquals(1010, a.mean());
+        assertEquals(3000, a.max());
+        assertEquals(10, a.percentile(33));
+        assertTrue(a.percentile(100) <= 3000 && a.percentile(100) > 3000 - 3000 / 16);
+    }
+}
@@ -0,0 +1,92 @@
+package msg.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+class LogRingTest {
+    @Test
+    void takesItemsInOrder() {
+        LogRing<Integer> ring = new LogRing<>(8);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.isEmpty());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, ring.poll());
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    void refusesItemsWhenFull() {
+        LogRing<Integer> ring = new LogRing<>(5); // rounded up to 8
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(8));
+        assertEquals(0, ring.poll());
+        assertTrue(ring.offer(8), "the slot is free again once taken");
+        assertFalse(ring.offer(9));
+    }
+
+    @Test
+    void reusesSlotsLapAfterLap() {
+        LogRing<Integer> ring = new LogRing<>(4);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(ring.offer(i));
+            assertTrue(ring.offer(-i));
+            assertEquals(i, ring.poll());
+            assertEquals(-i, ring.poll());
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    void keepsTheOrderOfEachProducer() throws InterruptedException {
+        int producers = 4;
+        int items = 20_000;
+        LogRing<int[]> ring = new LogRing<>(64);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < items; i++) {
+                    while (!ring.offer(new int[] { producer, i })) {
+                        Thread.yield(); // lets the consumer run on a single core
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        int[] next = new int[producers];
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        for (int taken = 0; taken < producers * items; ) {
+            int[] item = ring.poll();
+            if (item == null) {
+                assertTrue(System.nanoTime() < deadline, "producers stalled");
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[item[0]]++, item[1]);
+            taken++;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+}